@@ -1,17 +1,54 @@
 package org.scm;
 
 import org.scm.core.*;
-import org.scm.models.IndexEntry;
+import org.scm.daemon.DaemonClient;
+import org.scm.daemon.GittyDaemon;
+import org.scm.tools.Bench;
+import org.scm.transport.Connection;
+import org.scm.transport.PackService;
+import org.scm.transport.RemoteManager;
+import org.scm.transport.Transport;
 
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 
 
 public class Main {
+    // Commands that must not be forwarded to a daemon: they serve the daemon, use stdin/stdout as a channel
+    // or, for bench, start gitty processes of their own
+    private static final Set<String> LOCAL_ONLY_COMMANDS = Set.of("daemon", "bench", Transport.UPLOAD_PACK, Transport.RECEIVE_PACK);
+
     public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+        // A running daemon answers without JVM startup or cold caches; otherwise run here
+        if (args.length > 0 && !LOCAL_ONLY_COMMANDS.contains(args[0]) && !isBatchCatFile(args)) {
+            int exitCode = DaemonClient.forward(args);
+            if (exitCode != DaemonClient.NOT_FORWARDED) {
+                if (exitCode != 0) {
+                    System.exit(exitCode);
+                }
+                return;
+            }
+        }
+
+        run(args);
+    }
 
+    public static void run(String[] args) throws IOException, NoSuchAlgorithmException {
+        try {
+            runCommand(args);
+        } finally {
+            // Objects written in batch durability mode that no index or ref update synced yet
+            ObjectStore.syncPendingObjects();
+        }
+    }
+
+    private static void runCommand(String[] args) throws IOException, NoSuchAlgorithmException {
         if (args.length == 0) {
             Initialize.gittyIntroduction();
             return;
@@ -29,6 +66,10 @@ public class Main {
                     System.out.println("Error: Missing hash for 'cat-file' command.");
                     return;
                 }
+                if (isBatchCatFile(args)) {
+                    new BatchCatFile(new ObjectStore()).run(System.in, System.out);
+                    return;
+                }
                 String hash = args[1];
                 Initialize.readBlob(hash);
             }
@@ -37,7 +78,10 @@ public class Main {
                 FileScanner scanner = new FileScanner();
                 IndexManager indexManager = new IndexManager();
                 scanner.scanDirectory(".");
-                indexManager.addFilesToIndex(scanner.getFiles());
+                StagingPipeline.Stats stats = indexManager.addFilesToIndex(scanner.getFiles());
+                if (args.length > 1 && args[1].equals("--stats")) {
+                    stats.print();
+                }
             }
 
             case "commit" -> {
@@ -49,19 +93,131 @@ public class Main {
                 String authorName = args.length > 2 ? args[2] : "Default User";
                 String authorEmail = args.length > 3 ? args[3] : "default@example.com";
 
-                IndexManager indexManager = new IndexManager();
-                List<IndexEntry> entries = indexManager.readIndex();
-
                 CommitManager commitManager = new CommitManager();
-                String parentSha = commitManager.getLatestCommitSha();
-
-                String result = commitManager.writeCommit(commitMessage, entries, authorName, authorEmail, parentSha);
+                String result = commitManager.commitIndex(commitMessage, authorName, authorEmail);
                 System.out.println(result);
             }
 
             case "log" -> {
+                String path = null;
+                long limit = Long.MAX_VALUE;
+                long skip = 0;
+                RevWalk.Order order = RevWalk.Order.FIRST_PARENT;
+                for (int i = 1; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "-n", "--skip" -> {
+                            if (i + 1 == args.length) {
+                                System.out.println("Error: Missing number after '" + args[i] + "' for 'log' command.");
+                                return;
+                            }
+                            long value;
+                            try {
+                                value = Long.parseLong(args[++i]);
+                            } catch (NumberFormatException e) {
+                                value = -1;
+                            }
+                            if (value < 0) {
+                                System.out.println("Error: Invalid number '" + args[i] + "' after '" + args[i - 1]
+                                        + "' for 'log' command.");
+                                return;
+                            }
+                            if (args[i - 1].equals("-n")) {
+                                limit = value;
+                            } else {
+                                skip = value;
+                            }
+                        }
+                        case "--date-order" -> order = RevWalk.Order.DATE;
+                        case "--topo-order" -> order = RevWalk.Order.TOPOLOGICAL;
+                        default -> path = args[i];
+                    }
+                }
                 CommitManager commitManager = new CommitManager();
-                commitManager.viewCommitHistory();
+                commitManager.viewCommitHistory(path, order, skip, limit);
+            }
+
+            case "grep" -> {
+                boolean ignoreCase = false;
+                boolean lineNumbers = false;
+                boolean filesWithMatches = false;
+                boolean cached = false;
+                List<String> operands = new ArrayList<>();
+                for (int i = 1; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "-i" -> ignoreCase = true;
+                        case "-n" -> lineNumbers = true;
+                        case "-l" -> filesWithMatches = true;
+                        case "--cached" -> cached = true;
+                        default -> operands.add(args[i]);
+                    }
+                }
+                if (operands.isEmpty()) {
+                    System.out.println("Error: Missing pattern for 'grep' command.");
+                    return;
+                }
+                try {
+                    Pattern.compile(operands.get(0));
+                } catch (PatternSyntaxException e) {
+                    System.out.println("Error: Invalid pattern '" + operands.get(0) + "' for 'grep' command: " + e.getDescription() + ".");
+                    return;
+                }
+                GrepManager grepManager = new GrepManager();
+                GrepManager.Options options = new GrepManager.Options(ignoreCase, lineNumbers, filesWithMatches);
+                if (operands.size() > 1) {
+                    grepManager.grepRevision(operands.get(0), options, operands.get(1));
+                } else if (cached) {
+                    grepManager.grepIndex(operands.get(0), options);
+                } else {
+                    grepManager.grepWorkingTree(operands.get(0), options);
+                }
+            }
+
+            case "archive" -> {
+                ArchiveManager.Format format = ArchiveManager.Format.TAR;
+                String outputPath = null;
+                String prefix = "";
+                String revision = null;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].startsWith("--format=")) {
+                        String name = args[i].substring("--format=".length());
+                        if (!name.equals("tar") && !name.equals("zip")) {
+                            System.out.println("Error: Unknown archive format '" + name + "'. Use tar or zip.");
+                            return;
+                        }
+                        format = name.equals("zip") ? ArchiveManager.Format.ZIP : ArchiveManager.Format.TAR;
+                    } else if (args[i].startsWith("--prefix=")) {
+                        prefix = args[i].substring("--prefix=".length());
+                    } else if (args[i].equals("-o") && i + 1 < args.length) {
+                        outputPath = args[++i];
+                    } else {
+                        revision = args[i];
+                    }
+                }
+                if (revision == null) {
+                    System.out.println("Error: Missing commit for 'archive' command.");
+                    return;
+                }
+                ArchiveManager archiveManager = new ArchiveManager();
+                if (outputPath == null) {
+                    // The archive is the only thing written to stdout
+                    archiveManager.writeArchive(revision, format, prefix, System.out);
+                } else {
+                    if (outputPath.endsWith(".zip")) {
+                        format = ArchiveManager.Format.ZIP;
+                    }
+                    try (OutputStream output = new FileOutputStream(outputPath)) {
+                        int files = archiveManager.writeArchive(revision, format, prefix, output);
+                        System.out.println("Archived " + files + " files to " + outputPath);
+                    }
+                }
+            }
+
+            case "blame" -> {
+                if (args.length < 2) {
+                    System.out.println("Error: Missing file path for 'blame' command.");
+                    return;
+                }
+                new BlameManager().printBlame(args[1], args.length > 2 ? args[2] : null);
             }
 
             case "branch" -> {
@@ -120,7 +276,101 @@ public class Main {
                 cloneManager.cloneRepo(path);
             }
 
+            case "config" -> {
+                if (args.length < 2) {
+                    System.out.println("Error: Missing key for 'config' command.");
+                    return;
+                }
+                RepoConfig config = new RepoConfig();
+                if (args.length > 2) {
+                    config.set(args[1], args[2]);
+                } else {
+                    String value = config.get(args[1]);
+                    System.out.println(value == null ? "" : value);
+                }
+            }
+
+            case "sparse-checkout" -> {
+                if (args.length < 2) {
+                    System.out.println("Error: Missing subcommand for 'sparse-checkout' command (set, list or disable).");
+                    return;
+                }
+                SparseCheckout sparseCheckout = new SparseCheckout();
+                switch (args[1]) {
+                    case "set" -> sparseCheckout.setCones(List.of(args).subList(2, args.length));
+                    case "disable" -> sparseCheckout.setCones(List.of());
+                    case "list" -> sparseCheckout.getCones().forEach(System.out::println);
+                    default -> System.out.println("Error: Unknown subcommand '" + args[1] + "' for 'sparse-checkout' command.");
+                }
+            }
+
+            case "gc" -> new GcManager().collectGarbage();
+
+            case "count-objects" -> new GcManager().countObjects(args.length > 1 ? args[1] : null);
+
+            case "daemon" -> new GittyDaemon().serve();
+
+            case "bench" -> {
+                List<String> options = new ArrayList<>();
+                String outputPath = null;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].equals("-o") && i + 1 < args.length) {
+                        outputPath = args[++i];
+                    } else {
+                        options.add(args[i]);
+                    }
+                }
+                Bench bench;
+                try {
+                    bench = new Bench(Bench.Options.parse(options));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Error: " + e.getMessage());
+                    return;
+                }
+                if (outputPath == null) {
+                    bench.run(System.out);
+                } else {
+                    try (OutputStream output = new FileOutputStream(outputPath)) {
+                        bench.run(output);
+                    }
+                    System.out.println("Wrote benchmark report to " + outputPath);
+                }
+            }
+
+            case "fetch" -> {
+                if (args.length < 2) {
+                    System.out.println("Error: Missing repository path for 'fetch' command.");
+                    return;
+                }
+                new RemoteManager().fetch(args[1], args.length > 2 ? args[2] : null);
+            }
+
+            case "push" -> {
+                if (args.length < 2) {
+                    System.out.println("Error: Missing repository path for 'push' command.");
+                    return;
+                }
+                new RemoteManager().push(args[1], args.length > 2 ? args[2] : null);
+            }
+
+            // Remote side of fetch and push when the transport runs gitty as a separate process
+            case Transport.UPLOAD_PACK, Transport.RECEIVE_PACK -> {
+                if (args.length < 2) {
+                    System.err.println("Error: Missing repository path for '" + command + "' command.");
+                    return;
+                }
+                Connection connection = new Connection(System.in, System.out, () -> { });
+                try (connection) {
+                    PackService.run(command, new File(args[1], ".gitty"), connection);
+                }
+            }
+
             default -> System.out.println("Unknown command: " + command + ". Use 'gitty --help' for the command list.");
         }
     }
+
+    // Batch mode reads SHAs from stdin, which a daemon cannot see
+    private static boolean isBatchCatFile(String[] args) {
+        return args.length > 1 && args[0].equals("cat-file") && args[1].equals("--batch");
+    }
 }
@@ -0,0 +1,202 @@
+package org.scm.core;
+
+import org.scm.models.Commit;
+import org.scm.utils.Futures;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the files of a commit as a tar or zip archive, straight from the object store to the
+ * output stream with no files in between.
+ *
+ * <p>Blobs are inflated on one worker per core ahead of the single writer, which adds them to
+ * the archive in path order. At most a few blobs per core and 64 MB of content, going by the
+ * sizes in their headers, are read ahead, so memory stays bounded whatever the file sizes.
+ * Entries carry the commit time, so archiving the same commit twice gives the same bytes. Tar
+ * archives use the ustar format, with a pax header for paths too long for it; zip entries are
+ * deflated by the writer.
+ */
+public class ArchiveManager {
+    public enum Format {
+        TAR, ZIP
+    }
+
+    private static final int TAR_BLOCK = 512;
+    private static final int BLOBS_IN_FLIGHT_PER_THREAD = 4;
+    private static final int IN_FLIGHT_BYTES = 64 * 1024 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectStore objectStore;
+    private final int threads;
+
+    /**
+     * A blob being inflated, with the bytes of the read-ahead window it holds.
+     */
+    private record PendingBlob(String path, int permits, Future<byte[]> content) {
+    }
+
+    public ArchiveManager() {
+        this(new ObjectStore());
+    }
+
+    public ArchiveManager(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Writes the archive of a commit.
+     *
+     * @param revision a branch name, {@code HEAD} or a commit SHA
+     * @param prefix   a directory name to put in front of every path, such as {@code "project-1.0/"}, or ""
+     * @return the number of files written
+     */
+    public int writeArchive(String revision, Format format, String prefix, OutputStream output) throws IOException {
+        String commitSha = new RefDatabase(objectStore.getGitDir()).resolveExistingRevision(revision, objectStore);
+        Commit commit = new CommitManager(objectStore).readCommit(commitSha);
+        long modifiedTime = commit.getCommitTime();
+        Map<String, String> files = new TreeMap<>(new TreeManager(objectStore).flattenTree(commit.getTreeSha()));
+
+        BufferedOutputStream buffered = new BufferedOutputStream(output, OUTPUT_BUFFER_SIZE);
+        ZipOutputStream zip = format == Format.ZIP ? new ZipOutputStream(buffered, StandardCharsets.UTF_8) : null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // Inflate ahead in parallel, write in path order, with at most IN_FLIGHT_BYTES read ahead
+            Semaphore inFlight = new Semaphore(IN_FLIGHT_BYTES);
+            Deque<PendingBlob> pending = new ArrayDeque<>();
+            int window = threads * BLOBS_IN_FLIGHT_PER_THREAD;
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                String blobSha = file.getValue();
+                int permits = Math.min(IN_FLIGHT_BYTES, Math.max(1, objectStore.readSize(blobSha)));
+                // Only this thread takes permits, so it frees them by writing what is ahead of it
+                while (pending.size() >= window || !inFlight.tryAcquire(permits)) {
+                    writeEntry(pending.poll(), inFlight, zip, buffered, modifiedTime);
+                }
+                pending.add(new PendingBlob(prefix + file.getKey(), permits, pool.submit(() -> objectStore.readContent(blobSha))));
+            }
+            while (!pending.isEmpty()) {
+                writeEntry(pending.poll(), inFlight, zip, buffered, modifiedTime);
+            }
+
+            if (zip != null) {
+                zip.finish();
+            } else {
+                // Two empty blocks end a tar archive
+                buffered.write(new byte[TAR_BLOCK * 2]);
+            }
+            buffered.flush();
+            return files.size();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void writeEntry(PendingBlob blob, Semaphore inFlight, ZipOutputStream zip, OutputStream out,
+                                   long modifiedTime) throws IOException {
+        byte[] content = Futures.await(blob.content(), "archiving");
+        if (zip != null) {
+            ZipEntry entry = new ZipEntry(blob.path());
+            entry.setTime(modifiedTime * 1000);
+            zip.putNextEntry(entry);
+            zip.write(content);
+            zip.closeEntry();
+        } else {
+            writeTarEntry(out, blob.path(), content, modifiedTime);
+        }
+        inFlight.release(blob.permits());
+    }
+
+    private static void writeTarEntry(OutputStream out, String path, byte[] content, long modifiedTime) throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        String ustarName = path;
+        String ustarPrefix = "";
+        if (name.length > 100) {
+            int split = ustarSplit(path);
+            if (split < 0) {
+                // Too long for ustar: a pax header carries the real path
+                String record = " path=" + path + "\n";
+                int length = record.getBytes(StandardCharsets.UTF_8).length;
+                int total = length + String.valueOf(length).length();
+                total = length + String.valueOf(total).length();
+                byte[] pax = (total + record).getBytes(StandardCharsets.UTF_8);
+                writeTarHeader(out, "pax_header", "", pax.length, modifiedTime, (byte) 'x');
+                writePadded(out, pax);
+                ustarName = truncate(path, 100);
+            } else {
+                ustarPrefix = path.substring(0, split);
+                ustarName = path.substring(split + 1);
+            }
+        }
+        writeTarHeader(out, ustarName, ustarPrefix, content.length, modifiedTime, (byte) '0');
+        writePadded(out, content);
+    }
+
+    // Finds a slash that splits a path into a prefix of at most 155 and a name of at most 100 bytes
+    private static int ustarSplit(String path) {
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+            int prefixLength = path.substring(0, i).getBytes(StandardCharsets.UTF_8).length;
+            int nameLength = path.substring(i + 1).getBytes(StandardCharsets.UTF_8).length;
+            if (prefixLength <= 155 && nameLength <= 100 && nameLength > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeTarHeader(OutputStream out, String name, String prefix, long size, long modifiedTime, byte type)
+            throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        put(header, 0, 100, name.getBytes(StandardCharsets.UTF_8));
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, modifiedTime);
+        Arrays.fill(header, 148, 156, (byte) ' '); // The checksum counts its own field as spaces
+        header[156] = type;
+        put(header, 257, 6, "ustar\0".getBytes(StandardCharsets.US_ASCII));
+        put(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+        put(header, 345, 155, prefix.getBytes(StandardCharsets.UTF_8));
+
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+        out.write(header);
+    }
+
+    private static void writePadded(OutputStream out, byte[] data) throws IOException {
+        out.write(data);
+        int remainder = data.length % TAR_BLOCK;
+        if (remainder != 0) {
+            out.write(new byte[TAR_BLOCK - remainder]);
+        }
+    }
+
+    private static void put(byte[] header, int offset, int length, byte[] value) {
+        System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+    }
+
+    // Zero-padded octal digits followed by a NUL
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        String padded = "0".repeat(Math.max(0, length - 1 - digits.length())) + digits;
+        put(header, offset, length - 1, padded.getBytes(StandardCharsets.US_ASCII));
+        header[offset + length - 1] = 0;
+    }
+
+    private static String truncate(String path, int maxBytes) {
+        String truncated = path;
+        while (truncated.getBytes(StandardCharsets.UTF_8).length > maxBytes) {
+            truncated = truncated.substring(0, truncated.length() - 1);
+        }
+        return truncated;
+    }
+}
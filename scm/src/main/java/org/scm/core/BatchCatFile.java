@@ -0,0 +1,62 @@
+package org.scm.core;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams many objects through one process for {@code cat-file --batch}.
+ *
+ * <p>Reads one SHA per line from the input and writes {@code "<sha> <type> <size>\n"}, the raw
+ * content and a newline for each, or {@code "<sha> missing\n"} for unknown objects. Objects are
+ * read with {@link ObjectStore#readObject(String)}, which reuses its inflater and sizes the
+ * result from the header, and the output buffer is flushed only when the input has no more
+ * lines ready, so a caller that writes a SHA and waits for the answer is not left hanging.
+ */
+public class BatchCatFile {
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectStore objectStore;
+
+    public BatchCatFile(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+    }
+
+    public void run(InputStream input, OutputStream output) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        BufferedOutputStream out = new BufferedOutputStream(output, OUTPUT_BUFFER_SIZE);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String sha = line.trim();
+            if (!sha.isEmpty()) {
+                writeObject(sha, out);
+            }
+            if (!reader.ready()) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    private void writeObject(String sha, OutputStream out) throws IOException {
+        // A chunked blob comes back reassembled, with a plain blob header
+        byte[] object;
+        try {
+            object = sha.matches("[0-9a-f]{40}") ? objectStore.readObject(sha) : null;
+        } catch (FileNotFoundException e) {
+            object = null;
+        }
+        if (object == null) {
+            out.write((sha + " missing\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        int headerEnd = 0;
+        while (object[headerEnd] != 0) {
+            headerEnd++;
+        }
+        out.write((sha + " ").getBytes(StandardCharsets.UTF_8));
+        out.write(object, 0, headerEnd);
+        out.write('\n');
+        out.write(object, headerEnd + 1, object.length - headerEnd - 1);
+        out.write('\n');
+    }
+}
@@ -0,0 +1,346 @@
+package org.scm.core;
+
+import org.scm.models.Commit;
+import org.scm.models.TreeEntry;
+import org.scm.utils.EwahBitmap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.scm.utils.FileUtils.bytesToHex;
+
+/**
+ * Reachability bitmaps stored in {@code .gitty/bitmaps/index.bitmap}.
+ *
+ * <p>Every object known to the index has a position, and selected commits carry an
+ * EWAH-compressed bitmap with a bit set for every object they reach. The objects reachable
+ * from any commit are then the OR of the bitmaps of the nearest selected ancestors plus a
+ * short walk over the commits and trees in between.
+ *
+ * <p>File layout: magic, version, object count, bitmap count; the raw SHAs in position order;
+ * the positions sorted by SHA (for binary search); then per bitmap the raw commit SHA, the
+ * number of compressed words and the words. The file is memory-mapped and never parsed whole.
+ */
+public class BitmapIndex {
+    private static final int MAGIC = 0x47424D50; // "GBMP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    // One bitmap per this many commits, plus one for every ref tip
+    private static final int SELECTION_INTERVAL = 100;
+
+    private final MappedByteBuffer buffer;
+    private final int objectCount;
+    private final Map<String, Integer> bitmapOffsets = new HashMap<>();
+
+    private BitmapIndex(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported bitmap index");
+        }
+        this.objectCount = buffer.getInt(8);
+        int bitmapCount = buffer.getInt(12);
+
+        int offset = HEADER_SIZE + objectCount * 24;
+        for (int i = 0; i < bitmapCount; i++) {
+            byte[] sha = new byte[20];
+            buffer.get(offset, sha);
+            bitmapOffsets.put(bytesToHex(sha), offset + 20);
+            offset += 20 + 4 + buffer.getInt(offset + 20) * 8;
+        }
+    }
+
+    public static File getIndexFile(File gitDir) {
+        return new File(gitDir, "bitmaps/index.bitmap");
+    }
+
+    /**
+     * Opens the bitmap index of a repository.
+     *
+     * @return the index, or null if the repository has none
+     */
+    public static BitmapIndex open(File gitDir) throws IOException {
+        File indexFile = getIndexFile(gitDir);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            return new BitmapIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    public int getBitmapCount() {
+        return bitmapOffsets.size();
+    }
+
+    public String shaAt(int position) {
+        byte[] sha = new byte[20];
+        buffer.get(HEADER_SIZE + position * 20, sha);
+        return bytesToHex(sha);
+    }
+
+    /**
+     * Finds the position of an object by binary search over the SHA-sorted table.
+     *
+     * @return the position, or -1 if the object is newer than the index
+     */
+    public int positionOf(String sha) {
+        byte[] target = HashUtils.hexToBytes(sha);
+        byte[] candidate = new byte[20];
+        int sortedTable = HEADER_SIZE + objectCount * 20;
+        int low = 0;
+        int high = objectCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = buffer.getInt(sortedTable + middle * 4);
+            buffer.get(HEADER_SIZE + position * 20, candidate);
+            int comparison = Arrays.compareUnsigned(candidate, target);
+            if (comparison == 0) {
+                return position;
+            } else if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    public BitSet getBitmap(String commitSha) {
+        Integer offset = bitmapOffsets.get(commitSha);
+        if (offset == null) {
+            return null;
+        }
+        long[] words = new long[buffer.getInt(offset)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = buffer.getLong(offset + 4 + i * 8);
+        }
+        return EwahBitmap.decompress(words);
+    }
+
+    /**
+     * Computes the objects reachable from the given commits.
+     */
+    public ReachableObjects reachable(Collection<String> commitShas, ObjectStore objectStore) throws IOException {
+        ReachableObjects result = new ReachableObjects(this);
+        walk(commitShas, objectStore, this::getBitmap, this::positionOf, result.bits, result.extra);
+        return result;
+    }
+
+    /**
+     * Objects reachable from a set of commits: bits for objects the index knows, SHAs for newer ones.
+     */
+    public static class ReachableObjects {
+        private final BitmapIndex index;
+        private final BitSet bits = new BitSet();
+        private final Set<String> extra = new LinkedHashSet<>();
+
+        private ReachableObjects(BitmapIndex index) {
+            this.index = index;
+        }
+
+        public int size() {
+            return bits.cardinality() + extra.size();
+        }
+
+        public boolean contains(String sha) {
+            int position = index.positionOf(sha);
+            return position >= 0 ? bits.get(position) : extra.contains(sha);
+        }
+
+        /**
+         * Removes everything the other set contains.
+         */
+        public void removeAll(ReachableObjects other) {
+            bits.andNot(other.bits);
+            extra.removeAll(other.extra);
+        }
+
+        public List<String> toList() {
+            List<String> shas = new ArrayList<>(size());
+            for (int position = bits.nextSetBit(0); position >= 0; position = bits.nextSetBit(position + 1)) {
+                shas.add(index.shaAt(position));
+            }
+            shas.addAll(extra);
+            return shas;
+        }
+    }
+
+    /**
+     * Builds or refreshes the bitmap index for everything reachable from the given ref tips.
+     * Positions and bitmaps of an existing index are kept, so a refresh only walks history
+     * added since the last one.
+     *
+     * @return the number of objects in the new index
+     */
+    public static int write(File gitDir, Collection<String> tips) throws IOException {
+        ObjectStore objectStore = new ObjectStore(gitDir);
+        CommitManager commitManager = new CommitManager(objectStore);
+
+        // Keep the old positions, new objects are appended after them
+        Map<String, Integer> positions = new LinkedHashMap<>();
+        Map<String, long[]> bitmaps = new LinkedHashMap<>();
+        BitmapIndex previous = open(gitDir);
+        if (previous != null) {
+            for (int position = 0; position < previous.objectCount; position++) {
+                positions.put(previous.shaAt(position), position);
+            }
+            for (String commitSha : previous.bitmapOffsets.keySet()) {
+                bitmaps.put(commitSha, EwahBitmap.compress(previous.getBitmap(commitSha)));
+            }
+        }
+
+        // Parents before children, stopping at commits the previous index already covers
+        List<String> order = new ArrayList<>();
+        Set<String> visited = new HashSet<>(bitmaps.keySet());
+        Deque<String[]> stack = new ArrayDeque<>();
+        for (String tip : tips) {
+            stack.push(new String[]{tip, "enter"});
+        }
+        while (!stack.isEmpty()) {
+            String[] frame = stack.pop();
+            if (frame[1].equals("exit")) {
+                order.add(frame[0]);
+                continue;
+            }
+            if (!visited.add(frame[0])) {
+                continue;
+            }
+            stack.push(new String[]{frame[0], "exit"});
+            for (String parent : commitManager.readCommit(frame[0]).getParentShas()) {
+                stack.push(new String[]{parent, "enter"});
+            }
+        }
+
+        Set<String> selected = new LinkedHashSet<>();
+        for (int i = 0; i < order.size(); i++) {
+            if ((i + 1) % SELECTION_INTERVAL == 0) {
+                selected.add(order.get(i));
+            }
+        }
+        selected.addAll(tips);
+
+        for (String commitSha : order) {
+            if (!selected.contains(commitSha)) {
+                continue;
+            }
+            BitSet bits = new BitSet();
+            walk(List.of(commitSha), objectStore,
+                    sha -> bitmaps.containsKey(sha) ? EwahBitmap.decompress(bitmaps.get(sha)) : null,
+                    sha -> positions.computeIfAbsent(sha, key -> positions.size()),
+                    bits, new HashSet<>());
+            bitmaps.put(commitSha, EwahBitmap.compress(bits));
+        }
+
+        writeFile(getIndexFile(gitDir), new ArrayList<>(positions.keySet()), bitmaps);
+        return positions.size();
+    }
+
+    private static void writeFile(File indexFile, List<String> objects, Map<String, long[]> bitmaps) throws IOException {
+        Integer[] sorted = new Integer[objects.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, Comparator.comparing(objects::get));
+
+        indexFile.getParentFile().mkdirs();
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(objects.size());
+            out.writeInt(bitmaps.size());
+            for (String sha : objects) {
+                out.write(HashUtils.hexToBytes(sha));
+            }
+            for (Integer position : sorted) {
+                out.writeInt(position);
+            }
+            for (Map.Entry<String, long[]> bitmap : bitmaps.entrySet()) {
+                out.write(HashUtils.hexToBytes(bitmap.getKey()));
+                out.writeInt(bitmap.getValue().length);
+                for (long word : bitmap.getValue()) {
+                    out.writeLong(word);
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private interface BitmapLookup {
+        BitSet get(String commitSha);
+    }
+
+    private interface PositionLookup {
+        int get(String sha);
+    }
+
+    /**
+     * Marks everything reachable from the start commits, ORing in the bitmap of any commit that
+     * has one instead of walking past it. Objects without a position go to {@code extra}.
+     */
+    private static void walk(Collection<String> startShas, ObjectStore objectStore, BitmapLookup bitmaps,
+                             PositionLookup positions, BitSet bits, Set<String> extra) throws IOException {
+        CommitManager commitManager = new CommitManager(objectStore);
+        TreeManager treeManager = new TreeManager(objectStore);
+        Deque<String> pending = new ArrayDeque<>(startShas);
+        Set<String> visited = new HashSet<>();
+
+        while (!pending.isEmpty()) {
+            String commitSha = pending.pop();
+            if (!visited.add(commitSha)) {
+                continue;
+            }
+            BitSet bitmap = bitmaps.get(commitSha);
+            if (bitmap != null) {
+                bits.or(bitmap);
+                continue;
+            }
+            if (!mark(commitSha, positions, bits, extra)) {
+                continue; // Already covered by a bitmap ORed in earlier
+            }
+            Commit commit = commitManager.readCommit(commitSha);
+            markTree(commit.getTreeSha(), treeManager, objectStore, positions, bits, extra);
+            pending.addAll(commit.getParentShas());
+        }
+    }
+
+    private static void markTree(String treeSha, TreeManager treeManager, ObjectStore objectStore,
+                                 PositionLookup positions, BitSet bits, Set<String> extra) throws IOException {
+        // A subtree that is already marked was reached through an unchanged directory
+        if (!mark(treeSha, positions, bits, extra)) {
+            return;
+        }
+        for (TreeEntry entry : treeManager.readTreeEntries(treeSha)) {
+            if (entry.isDirectory()) {
+                markTree(entry.getSha1(), treeManager, objectStore, positions, bits, extra);
+            } else if (mark(entry.getSha1(), positions, bits, extra)) {
+                for (String chunkSha : objectStore.getChunkShas(entry.getSha1())) {
+                    mark(chunkSha, positions, bits, extra);
+                }
+            }
+        }
+    }
+
+    private static boolean mark(String sha, PositionLookup positions, BitSet bits, Set<String> extra) {
+        int position = positions.get(sha);
+        if (position < 0) {
+            return extra.add(sha);
+        }
+        if (bits.get(position)) {
+            return false;
+        }
+        bits.set(position);
+        return true;
+    }
+}
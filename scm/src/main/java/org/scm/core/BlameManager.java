@@ -0,0 +1,243 @@
+package org.scm.core;
+
+import org.scm.models.Commit;
+import org.scm.utils.LineDiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Finds the commit that last changed each line of a file.
+ *
+ * <p>The walk starts at the given commit with every line unattributed and moves to older
+ * commits newest first. A line is passed on to a parent whose version of the file contains it,
+ * and is attributed to a commit when no parent has it. The walk ends as soon as every line is
+ * attributed, so old history is only read for lines that are old.
+ *
+ * <p>Blob contents and line matches are kept in memory by blob SHA, and finished results are
+ * stored under {@code .gitty/cache/blame} by blob SHA and path, so every commit that left the
+ * file alone shares one result. A later blame of the same file stops at the first version of it
+ * that has a stored result and takes the older attributions from it. A file changed back to
+ * an earlier version takes that version's attributions.
+ */
+public class BlameManager {
+    private static final int MAX_CACHED_BLOBS = 1_000;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    // Blob contents never change, so these are shared by every blame in the process
+    private static final Map<String, List<String>> blobLines = Collections.synchronizedMap(lru(MAX_CACHED_BLOBS));
+    private static final Map<String, int[]> lineMatches = Collections.synchronizedMap(lru(MAX_CACHED_BLOBS));
+
+    private final File cacheDir;
+    private final ObjectStore objectStore;
+    private final CommitManager commitManager;
+    private final TreeManager treeManager;
+
+    public BlameManager() {
+        this(new ObjectStore());
+    }
+
+    public BlameManager(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+        this.cacheDir = new File(objectStore.getGitDir(), "cache/blame");
+        this.commitManager = new CommitManager(objectStore);
+        this.treeManager = new TreeManager(objectStore);
+    }
+
+    public void printBlame(String path, String commitSha) throws IOException {
+        if (commitSha == null) {
+            commitSha = commitManager.getLatestCommitSha();
+            if (commitSha == null) {
+                System.out.println("Error: No commits yet.");
+                return;
+            }
+        }
+
+        String blobSha = treeManager.findBlob(commitManager.readCommit(commitSha).getTreeSha(), path);
+        if (blobSha == null) {
+            System.out.println("Error: No such path " + path + " in " + commitSha.substring(0, 7));
+            return;
+        }
+
+        List<String> lines = readLines(blobSha);
+        String[] owners = blame(path, commitSha);
+        int width = String.valueOf(lines.size()).length();
+        for (int i = 0; i < lines.size(); i++) {
+            Commit owner = commitManager.readCommit(owners[i]);
+            System.out.println(owners[i].substring(0, 7) + " (" + authorName(owner) + " "
+                    + DATE_FORMAT.format(Instant.ofEpochSecond(owner.getCommitTime())) + " "
+                    + String.format("%" + width + "d", i + 1) + ") " + lines.get(i));
+        }
+    }
+
+    /**
+     * Attributes every line of a file to the commit that introduced it.
+     *
+     * @return for each line of the file at the given commit, the SHA of the commit that last changed it
+     */
+    public String[] blame(String path, String commitSha) throws IOException {
+        String blobSha = treeManager.findBlob(commitManager.readCommit(commitSha).getTreeSha(), path);
+        if (blobSha == null) {
+            throw new IOException("No such path " + path + " in " + commitSha);
+        }
+        String[] cached = readCachedResult(blobSha, path);
+        if (cached != null) {
+            return cached;
+        }
+        String[] owners = new String[readLines(blobSha).size()];
+
+        // Per pending commit: its blob of the file and, for each unattributed line, its line number there
+        Map<String, String> pendingBlobs = new HashMap<>();
+        Map<String, Map<Integer, Integer>> pendingLines = new HashMap<>();
+        Map<String, Long> commitTimes = new HashMap<>();
+        PriorityQueue<String> queue = new PriorityQueue<>(
+                Comparator.comparing((String sha) -> commitTimes.get(sha)).reversed());
+
+        Map<Integer, Integer> allLines = new HashMap<>();
+        for (int i = 0; i < owners.length; i++) {
+            allLines.put(i, i);
+        }
+        enqueue(commitSha, blobSha, allLines, pendingBlobs, pendingLines, commitTimes, queue);
+
+        int remaining = owners.length;
+        while (remaining > 0 && !queue.isEmpty()) {
+            String sha = queue.poll();
+            String currentBlob = pendingBlobs.remove(sha);
+            Map<Integer, Integer> lines = pendingLines.remove(sha);
+
+            // A stored result for an older version settles everything that reached it
+            String[] stored = currentBlob.equals(blobSha) ? null : readCachedResult(currentBlob, path);
+            if (stored != null) {
+                for (Map.Entry<Integer, Integer> line : lines.entrySet()) {
+                    owners[line.getKey()] = stored[line.getValue()];
+                }
+                remaining -= lines.size();
+                continue;
+            }
+
+            Commit commit = commitManager.readCommit(sha);
+            for (String parentSha : commit.getParentShas()) {
+                if (lines.isEmpty()) {
+                    break;
+                }
+                String parentBlob = treeManager.findBlob(commitManager.readCommit(parentSha).getTreeSha(), path);
+                if (parentBlob == null) {
+                    continue; // The file did not exist on this side
+                }
+
+                Map<Integer, Integer> passed = new HashMap<>();
+                if (parentBlob.equals(currentBlob)) {
+                    // Unchanged on this side, so nothing here was introduced by this commit
+                    passed.putAll(lines);
+                    lines.clear();
+                } else {
+                    int[] matches = matchLines(parentBlob, currentBlob);
+                    Iterator<Map.Entry<Integer, Integer>> iterator = lines.entrySet().iterator();
+                    while (iterator.hasNext()) {
+                        Map.Entry<Integer, Integer> line = iterator.next();
+                        int parentLine = matches[line.getValue()];
+                        if (parentLine >= 0) {
+                            passed.put(line.getKey(), parentLine);
+                            iterator.remove();
+                        }
+                    }
+                }
+                if (!passed.isEmpty()) {
+                    enqueue(parentSha, parentBlob, passed, pendingBlobs, pendingLines, commitTimes, queue);
+                }
+            }
+
+            // Lines no parent has were written in this commit
+            for (Integer finalLine : lines.keySet()) {
+                owners[finalLine] = sha;
+            }
+            remaining -= lines.size();
+        }
+
+        writeCachedResult(blobSha, path, owners);
+        return owners;
+    }
+
+    private void enqueue(String commitSha, String blobSha, Map<Integer, Integer> lines, Map<String, String> pendingBlobs,
+                         Map<String, Map<Integer, Integer>> pendingLines, Map<String, Long> commitTimes,
+                         PriorityQueue<String> queue) throws IOException {
+        // A commit reached through both sides of a merge is expanded once with all its lines
+        Map<Integer, Integer> existing = pendingLines.get(commitSha);
+        if (existing != null) {
+            existing.putAll(lines);
+            return;
+        }
+        commitTimes.put(commitSha, commitManager.readCommit(commitSha).getCommitTime());
+        pendingBlobs.put(commitSha, blobSha);
+        pendingLines.put(commitSha, new HashMap<>(lines));
+        queue.add(commitSha);
+    }
+
+    private int[] matchLines(String oldBlobSha, String newBlobSha) throws IOException {
+        String key = oldBlobSha + newBlobSha;
+        int[] matches = lineMatches.get(key);
+        if (matches == null) {
+            matches = LineDiff.matchLines(readLines(oldBlobSha), readLines(newBlobSha));
+            lineMatches.put(key, matches);
+        }
+        return matches;
+    }
+
+    private List<String> readLines(String blobSha) throws IOException {
+        List<String> lines = blobLines.get(blobSha);
+        if (lines == null) {
+            String content = new String(objectStore.readContent(blobSha), StandardCharsets.UTF_8);
+            lines = content.isEmpty() ? List.of() : List.of(content.split("\n", -1));
+            // A trailing newline ends the last line rather than starting an empty one
+            if (!lines.isEmpty() && content.endsWith("\n")) {
+                lines = lines.subList(0, lines.size() - 1);
+            }
+            blobLines.put(blobSha, lines);
+        }
+        return lines;
+    }
+
+    private File cacheFile(String blobSha, String path) {
+        String normalized = path.startsWith("./") ? path.substring(2) : path;
+        return new File(cacheDir, HashUtils.computeSHA1(("blob " + blobSha + " " + normalized).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String[] readCachedResult(String blobSha, String path) throws IOException {
+        File file = cacheFile(blobSha, path);
+        if (!file.exists()) {
+            return null;
+        }
+        String content = Files.readString(file.toPath()).trim();
+        return content.isEmpty() ? new String[0] : content.split("\n");
+    }
+
+    private void writeCachedResult(String blobSha, String path, String[] owners) throws IOException {
+        cacheDir.mkdirs();
+        File file = cacheFile(blobSha, path);
+        File tempFile = new File(file.getPath() + ".tmp");
+        Files.writeString(tempFile.toPath(), String.join("\n", owners));
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String authorName(Commit commit) {
+        String author = commit.getAuthor();
+        int emailStart = author == null ? -1 : author.indexOf(" <");
+        return emailStart == -1 ? String.valueOf(author) : author.substring(0, emailStart);
+    }
+
+    private static <V> Map<String, V> lru(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+}
@@ -1,46 +1,61 @@
 package org.scm.core;
 
-import org.scm.models.Commit;
 import org.scm.models.IndexEntry;
+import org.scm.utils.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
+/**
+ * Merges another branch into the current one against their merge base.
+ *
+ * <p>Each side's changes since the base are taken file by file, following renames on either
+ * side, so a file one branch moved and the other edited ends up edited at its new place. A file
+ * changed differently on both sides is a conflict and stops the merge before anything is
+ * written.
+ */
 public class BranchMerger {
 
-    public void mergeBranch(String branchName) throws IOException, NoSuchAlgorithmException {
+    public void mergeBranch(String branchName) throws IOException {
         // Step 1: Ensure the branch exists
-        File branchFile = new File(".gitty/refs/heads/" + branchName);
-        if (!branchFile.exists()) {
+        RefDatabase refDatabase = new RefDatabase();
+        String targetHeadSha = refDatabase.resolveBranch(branchName);
+        if (targetHeadSha == null) {
             throw new IOException("Branch " + branchName + " does not exist.");
         }
 
         // Step 2: Get the current branch's HEAD SHA
-        File headFile = new File(".gitty/HEAD");
-        if (!headFile.exists()) {
-            throw new IOException("No .gitty directory found. Are you inside a repository?");
-        }
-
-        String currentBranchRef = Files.readString(headFile.toPath()).trim();
-        if (!currentBranchRef.startsWith("ref: ")) {
+        String currentBranch = refDatabase.getHeadRef();
+        if (currentBranch == null) {
             throw new IOException("HEAD is not pointing to a branch.");
         }
-
-        String currentBranch = currentBranchRef.substring(5); // Remove "ref: "
-        File currentBranchFile = new File(".gitty/" + currentBranch);
-        if (!currentBranchFile.exists()) {
+        String currentHeadSha = refDatabase.resolveHead();
+        if (currentHeadSha == null) {
             throw new IOException("Current branch reference does not exist.");
         }
-        String currentHeadSha = Files.readString(currentBranchFile.toPath()).trim();
+        if (new SparseCheckout().isEnabled()) {
+            throw new IOException("Merging is not supported in a sparse checkout.");
+        }
+
+        // Step 3: Find where the two branches forked
+        ObjectStore objectStore = new ObjectStore();
+        String baseSha = new ObjectWalk(objectStore).findMergeBase(currentHeadSha, targetHeadSha);
+        if (targetHeadSha.equals(baseSha)) {
+            System.out.println("Already up to date.");
+            return;
+        }
 
-        // Step 3: Get the target branch's HEAD SHA
-        String targetHeadSha = Files.readString(branchFile.toPath()).trim();
+        // Step 4: Combine both sides' changes, stopping at conflicting ones
+        CommitManager commitManager = new CommitManager(objectStore);
+        TreeManager treeManager = new TreeManager(objectStore);
+        Map<String, String> baseTree = baseSha == null ? new HashMap<>()
+                : treeManager.flattenTree(commitManager.readCommit(baseSha).getTreeSha());
+        Map<String, String> currentTree = treeManager.flattenTree(commitManager.readCommit(currentHeadSha).getTreeSha());
+        Map<String, String> targetTree = treeManager.flattenTree(commitManager.readCommit(targetHeadSha).getTreeSha());
 
-        // Step 4: Detect conflicting changes (basic conflict detection)
-        List<String> conflicts = detectConflicts(currentHeadSha, targetHeadSha);
+        List<String> conflicts = new ArrayList<>();
+        Map<String, String> merged = mergeTrees(baseTree, currentTree, targetTree, new RenameDetector(objectStore), conflicts);
         if (!conflicts.isEmpty()) {
             System.out.println("Merge aborted: Conflicting changes detected in the following files:");
             for (String conflict : conflicts) {
@@ -49,51 +64,219 @@ public class BranchMerger {
             return;
         }
 
-        // Step 5: Create a new merge commit
-        List<String> parentShas = new ArrayList<>();
-        parentShas.add(currentHeadSha); // Current branch's HEAD
-        parentShas.add(targetHeadSha);  // Target branch's HEAD
-
-        // Dummy commit message for simplicity
+        // Step 5: Bring the working tree and index in line, then create the merge commit
+        String parentShas = currentHeadSha + " " + targetHeadSha;
         String mergeMessage = "Merge branch '" + branchName + "' into " + currentBranch;
         String authorName = "Default Author";
         String authorEmail = "default@example.com";
 
-        String newCommitSha = new CommitManager().writeCommit(mergeMessage, Collections.emptyList(), authorName, authorEmail, String.join(" ", parentShas));
+        IndexManager indexManager = new IndexManager();
+        String newCommitSha;
+        try (LockFile lock = indexManager.lock()) {
+            PathTrie index = indexManager.readIndexTrie();
+            List<String> staged = findStagedChanges(currentTree, index);
+            if (!staged.isEmpty()) {
+                System.out.println("Merge aborted: The index has staged changes, commit them first:");
+                for (String path : staged) {
+                    System.out.println(" - " + path);
+                }
+                return;
+            }
+            List<String> overwritten = findLocalChanges(currentTree, merged, objectStore);
+            if (!overwritten.isEmpty()) {
+                System.out.println("Merge aborted: Local changes to the following files would be overwritten:");
+                for (String path : overwritten) {
+                    System.out.println(" - " + path);
+                }
+                return;
+            }
+            PathTrie entries = updateWorkingTree(currentTree, merged, index, objectStore);
+            indexManager.writeIndex(lock, entries);
 
-        // Step 6: Update the current branch to point to the new commit
-        Files.writeString(currentBranchFile.toPath(), newCommitSha);
-        String currentBranchName =  currentBranch.substring(11);
+            // Step 6: createCommit moves the current branch to the new commit
+            newCommitSha = commitManager.createCommit(mergeMessage, entries, authorName, authorEmail, parentShas);
+        }
+        String currentBranchName = currentBranch.substring(11);
         System.out.println("Merged branch '" + branchName + "' into '" + currentBranchName + "'. New commit: " + newCommitSha);
     }
 
-    // Helper function to detect conflicts
-    private List<String> detectConflicts(String currentHeadSha, String targetHeadSha) throws IOException {
-        CommitManager commitManager = new CommitManager();
+    /**
+     * Applies the changes both sides made to the base tree, following renames.
+     *
+     * @param conflicts receives the paths changed differently on both sides
+     * @return the merged tree, path to blob SHA; incomplete if there were conflicts
+     */
+    private Map<String, String> mergeTrees(Map<String, String> base, Map<String, String> ours, Map<String, String> theirs,
+                                           RenameDetector renameDetector, List<String> conflicts) throws IOException {
+        Map<String, String> ourRenames = findRenames(base, ours, renameDetector);
+        Map<String, String> theirRenames = findRenames(base, theirs, renameDetector);
+        Map<String, String> merged = new TreeMap<>(ours);
 
-        // Load the commits
-        Commit currentCommit = commitManager.readCommit(currentHeadSha);
-        Commit targetCommit = commitManager.readCommit(targetHeadSha);
+        for (Map.Entry<String, String> file : new TreeMap<>(base).entrySet()) {
+            String basePath = file.getKey();
+            String baseSha = file.getValue();
+            String ourPath = ourRenames.getOrDefault(basePath, basePath);
+            String theirPath = theirRenames.getOrDefault(basePath, basePath);
+            String ourSha = ours.get(ourPath);
+            String theirSha = theirs.get(theirPath);
 
-        // Load the trees
-        TreeManager treeManager = new TreeManager();
-        Map<String, String> currentTree = treeManager.readTree(currentCommit.getTreeSha());
-        Map<String, String> targetTree = treeManager.readTree(targetCommit.getTreeSha());
+            if (theirPath.equals(basePath) && Objects.equals(theirSha, baseSha)) {
+                continue; // Ours already holds the result
+            }
+            if (!ourPath.equals(basePath) && !theirPath.equals(basePath) && !ourPath.equals(theirPath)) {
+                conflicts.add(basePath + " (renamed to " + ourPath + " and " + theirPath + ")");
+                continue;
+            }
 
-        // Detect conflicting files
-        List<String> conflicts = new ArrayList<>();
-        for (String filePath : currentTree.keySet()) {
-            if (targetTree.containsKey(filePath)) {
-                String currentFileSha = currentTree.get(filePath);
-                String targetFileSha = targetTree.get(filePath);
-                if (!currentFileSha.equals(targetFileSha)) {
-                    conflicts.add(filePath); // File exists in both trees with different content
+            String path = theirPath.equals(basePath) ? ourPath : theirPath;
+            String sha;
+            if (Objects.equals(ourSha, baseSha) || Objects.equals(ourSha, theirSha)) {
+                sha = theirSha;
+            } else if (Objects.equals(theirSha, baseSha)) {
+                sha = ourSha; // They only moved it
+            } else {
+                conflicts.add(path);
+                continue;
+            }
+
+            merged.remove(ourPath);
+            if (sha != null) {
+                String existing = merged.get(path);
+                if (existing != null && !existing.equals(sha)) {
+                    conflicts.add(path);
+                    continue;
                 }
+                merged.put(path, sha);
             }
         }
 
-        return conflicts;
+        // Files they added, apart from the targets of their renames handled above
+        Set<String> renameTargets = new HashSet<>(theirRenames.values());
+        for (Map.Entry<String, String> file : new TreeMap<>(theirs).entrySet()) {
+            String path = file.getKey();
+            if (base.containsKey(path) || renameTargets.contains(path)) {
+                continue;
+            }
+            String existing = merged.get(path);
+            if (existing == null) {
+                merged.put(path, file.getValue());
+            } else if (!existing.equals(file.getValue())) {
+                conflicts.add(path);
+            }
+        }
+        return merged;
     }
 
-}
+    // Maps each base path one side renamed to its new path
+    private Map<String, String> findRenames(Map<String, String> base, Map<String, String> side,
+                                            RenameDetector renameDetector) throws IOException {
+        Map<String, String> added = new TreeMap<>();
+        Map<String, String> deleted = new TreeMap<>();
+        Map<String, String> modified = new TreeMap<>();
+        for (Map.Entry<String, String> file : side.entrySet()) {
+            String baseSha = base.get(file.getKey());
+            if (baseSha == null) {
+                added.put(file.getKey(), file.getValue());
+            } else if (!baseSha.equals(file.getValue())) {
+                modified.put(file.getKey(), baseSha);
+            }
+        }
+        for (Map.Entry<String, String> file : base.entrySet()) {
+            if (!side.containsKey(file.getKey())) {
+                deleted.put(file.getKey(), file.getValue());
+            }
+        }
+        Map<String, String> renames = new HashMap<>();
+        if (added.isEmpty() || deleted.isEmpty()) {
+            return renames;
+        }
+        for (RenameDetector.Rename rename : renameDetector.detect(added, deleted, modified, base)) {
+            if (!rename.copy()) {
+                renames.put(rename.oldPath(), rename.newPath());
+            }
+        }
+        return renames;
+    }
+
+    // Lists the paths whose index entry differs from the current commit, or that only one of them has
+    private List<String> findStagedChanges(Map<String, String> currentTree, PathTrie index) {
+        Set<String> changed = new TreeSet<>();
+        Set<String> indexed = new HashSet<>();
+        for (int file = 0; file < index.size(); file++) {
+            String path = index.getPath(file).substring(2);
+            indexed.add(path);
+            if (!index.getSha1(file).equals(currentTree.get(path))) {
+                changed.add(path);
+            }
+        }
+        for (String path : currentTree.keySet()) {
+            if (!indexed.contains(path)) {
+                changed.add(path);
+            }
+        }
+        return new ArrayList<>(changed);
+    }
 
+    // Lists the files the merge would rewrite whose working copy differs from the current commit
+    private List<String> findLocalChanges(Map<String, String> currentTree, Map<String, String> merged,
+                                          ObjectStore objectStore) throws IOException {
+        Set<String> paths = new TreeSet<>(currentTree.keySet());
+        paths.addAll(merged.keySet());
+        List<String> changed = new ArrayList<>();
+        for (String path : paths) {
+            String currentSha = currentTree.get(path);
+            if (Objects.equals(currentSha, merged.get(path))) {
+                continue;
+            }
+            File workingFile = new File("./" + path);
+            if (!workingFile.isFile()) {
+                if (currentSha != null && workingFile.exists()) {
+                    changed.add(path);
+                }
+                continue;
+            }
+            byte[] data = FileUtils.readFile(workingFile);
+            if (!ObjectStore.hashObject("blob", data, 0, data.length).equals(currentSha)) {
+                changed.add(path);
+            }
+        }
+        return changed;
+    }
+
+    // Writes and removes the files the merge changed and returns the index of the merged tree,
+    // keeping the stat data of entries that still match
+    private PathTrie updateWorkingTree(Map<String, String> currentTree, Map<String, String> merged,
+                                       PathTrie index, ObjectStore objectStore) throws IOException {
+        for (String path : currentTree.keySet()) {
+            if (!merged.containsKey(path)) {
+                File workingFile = new File("./" + path);
+                workingFile.delete();
+                deleteEmptyParents(workingFile.getParentFile());
+            }
+        }
+
+        List<IndexEntry> entries = new ArrayList<>();
+        for (Map.Entry<String, String> file : merged.entrySet()) {
+            String path = "./" + file.getKey();
+            if (Objects.equals(currentTree.get(file.getKey()), file.getValue())) {
+                // Untouched by the merge; size 0 makes status look at the content if the stat data is gone
+                int indexed = index.find(path);
+                boolean same = indexed >= 0 && index.getSha1(indexed).equals(file.getValue());
+                entries.add(same ? index.getEntry(indexed) : new IndexEntry(path, file.getValue(), 0, 0));
+                continue;
+            }
+            File workingFile = new File(path);
+            FileUtils.writeFile(workingFile.getPath(), objectStore.readContent(file.getValue()));
+            entries.add(new IndexEntry(path, file.getValue(), workingFile.lastModified(), workingFile.length()));
+        }
+        return PathTrie.of(entries);
+    }
+
+    private void deleteEmptyParents(File directory) {
+        File root = new File(".").getAbsoluteFile();
+        File current = directory == null ? null : directory.getAbsoluteFile();
+        while (current != null && !current.equals(root) && current.delete()) {
+            current = current.getParentFile();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.scm.core;
+
+import org.scm.models.Commit;
+import org.scm.utils.BloomFilter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.scm.utils.FileUtils.bytesToHex;
+
+/**
+ * Per-commit Bloom filters of the paths a commit changed relative to its first parent, kept in
+ * the side file {@code .gitty/info/changed-paths}.
+ *
+ * <p>A path-limited log asks the filter first: a "no" is certain, so the commit is skipped
+ * without reading its trees, and only a "maybe" is checked with a real tree comparison.
+ *
+ * <p>The file is a sequence of records, appended as commits are written: the raw commit SHA,
+ * the filter length in bytes and the filter. A length of -1 marks a commit that changed too
+ * many paths for a useful filter.
+ */
+public class ChangedPathFilter {
+    private static final int MAX_PATHS = 512;
+
+    private final File filterFile;
+    private final TreeManager treeManager;
+    private final CommitManager commitManager;
+
+    public ChangedPathFilter(ObjectStore objectStore) {
+        this.filterFile = new File(objectStore.getGitDir(), "info/changed-paths");
+        this.treeManager = new TreeManager(objectStore);
+        this.commitManager = new CommitManager(objectStore);
+    }
+
+    /**
+     * Computes and stores the filter of a commit, unless it already has one.
+     */
+    public void record(String commitSha) throws IOException {
+        if (!readFilters().containsKey(commitSha)) {
+            append(buildRecord(commitSha));
+        }
+    }
+
+    /**
+     * Stores filters for every commit reachable from the given ones that lacks one.
+     */
+    public void recordHistory(Collection<String> tips) throws IOException {
+        Map<String, byte[]> filters = readFilters();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        Deque<String> pending = new ArrayDeque<>(tips);
+        Set<String> visited = new HashSet<>();
+        while (!pending.isEmpty()) {
+            String sha = pending.pop();
+            if (visited.add(sha)) {
+                if (!filters.containsKey(sha)) {
+                    records.write(buildRecord(sha));
+                }
+                pending.addAll(commitManager.readCommit(sha).getParentShas());
+            }
+        }
+        if (records.size() > 0) {
+            append(records.toByteArray());
+        }
+    }
+
+    private byte[] buildRecord(String commitSha) throws IOException {
+        Set<String> paths = changedPaths(commitManager.readCommit(commitSha));
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.write(HashUtils.hexToBytes(commitSha));
+        if (paths.size() > MAX_PATHS) {
+            out.writeInt(-1);
+        } else {
+            BloomFilter filter = BloomFilter.create(paths.size());
+            for (String path : paths) {
+                filter.add(path);
+            }
+            out.writeInt(filter.toBytes().length);
+            out.write(filter.toBytes());
+        }
+        return record.toByteArray();
+    }
+
+    private void append(byte[] records) throws IOException {
+        // One write per call, so a concurrent reader never sees half a record
+        filterFile.getParentFile().mkdirs();
+        try (FileOutputStream file = new FileOutputStream(filterFile, true)) {
+            file.write(records);
+        }
+    }
+
+    /**
+     * Checks whether a commit changed a file or anything below a directory.
+     *
+     * @param path a path relative to the repository root, with or without a leading "./"
+     */
+    public boolean touches(String commitSha, String path) throws IOException {
+        String normalized = normalize(path);
+        byte[] filter = readFilters().get(commitSha);
+        if (filter != null && filter.length > 0 && !BloomFilter.fromBytes(filter).mightContain(normalized)) {
+            return false;
+        }
+        // Maybe, or no filter for this commit: compare the trees
+        return changedPaths(commitManager.readCommit(commitSha)).contains(normalized);
+    }
+
+    private Set<String> changedPaths(Commit commit) throws IOException {
+        List<String> parents = commit.getParentShas();
+        String parentTree = parents.isEmpty() ? null : commitManager.readCommit(parents.get(0)).getTreeSha();
+        return treeManager.changedPaths(commit.getTreeSha(), parentTree);
+    }
+
+    private Map<String, byte[]> readFilters() throws IOException {
+        if (!filterFile.exists()) {
+            return Map.of();
+        }
+        return RepoCache.readParsed(filterFile, ChangedPathFilter::parse);
+    }
+
+    private static Map<String, byte[]> parse(byte[] data) {
+        Map<String, byte[]> filters = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        byte[] sha = new byte[20];
+        while (buffer.remaining() >= 24) {
+            buffer.get(sha);
+            int length = buffer.getInt();
+            if (length > buffer.remaining()) {
+                break; // A record still being appended
+            }
+            byte[] filter = new byte[Math.max(length, 0)];
+            buffer.get(filter);
+            filters.put(bytesToHex(sha), filter);
+        }
+        return filters;
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.startsWith("./") ? path.substring(2) : path;
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+}
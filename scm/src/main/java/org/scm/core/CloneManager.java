@@ -65,6 +65,35 @@ public class CloneManager {
         }
 
         System.out.println("Files cloned successfully to: " + targetPath);
+        copyHistory(targetPath, commitSha);
+    }
+
+    // Give the clone its own repository holding the current branch and its history
+    private void copyHistory(String targetPath, String commitSha) throws IOException {
+        File targetGitDir = new File(targetPath, ".gitty");
+        if (targetGitDir.exists()) {
+            System.out.println("Target already has a .gitty repository, history not copied.");
+            return;
+        }
+
+        // The bitmap index answers reachability without walking every commit and tree
+        ObjectStore objectStore = new ObjectStore();
+        BitmapIndex bitmapIndex = BitmapIndex.open(new File(".gitty"));
+        List<String> objects = bitmapIndex != null
+                ? bitmapIndex.reachable(List.of(commitSha), objectStore).toList()
+                : new ObjectWalk(objectStore).findObjectsToSend(List.of(commitSha), List.of());
+
+        ObjectStore targetStore = new ObjectStore(targetGitDir);
+        // Copied still deflated, and synced with the target's refs as its durability mode asks
+        for (String sha : objects) {
+            targetStore.writeCompressed(sha, objectStore.readCompressed(sha));
+        }
+
+        String branchName = new Diffs().getCurrentBranch();
+        RefDatabase targetRefs = new RefDatabase(targetGitDir);
+        targetRefs.updateRef(RefDatabase.HEADS_PREFIX + branchName, null, commitSha);
+        targetRefs.setHead(branchName);
+        System.out.println("Copied " + objects.size() + " objects of branch '" + branchName + "'.");
     }
 
 
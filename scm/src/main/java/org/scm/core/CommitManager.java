@@ -5,44 +5,135 @@ import org.scm.models.IndexEntry;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.InflaterInputStream;
 
 public class CommitManager {
+    // A plain commit is redone on top of a concurrent one at most this often
+    private static final int MAX_COMMIT_ATTEMPTS = 10;
+
+    private final ObjectStore objectStore;
+
+    public CommitManager() {
+        this(new ObjectStore());
+    }
+
+    public CommitManager(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+    }
+
     public String writeCommit(String commitMessage, List<IndexEntry> entries, String authorName, String authorEmail, String parentSha)
             throws IOException, NoSuchAlgorithmException {
+        return writeCommit(commitMessage, PathTrie.of(entries), authorName, authorEmail, parentSha);
+    }
 
-        TreeManager treeManager = new TreeManager();
-        // Create the tree object
-        String treeSha = treeManager.createTreeObject(entries);
-
+    public String writeCommit(String commitMessage, PathTrie entries, String authorName, String authorEmail, String parentSha)
+            throws IOException, NoSuchAlgorithmException {
+        String commitSha = createCommit(commitMessage, entries, authorName, authorEmail, parentSha);
+        String branchName = new RefDatabase(objectStore.getGitDir()).getCurrentBranch();
+        TreeManager treeManager = new TreeManager(objectStore);
+        Commit newCommit = readCommit(commitSha);
 
+        System.out.println( "[" + branchName + (parentSha == null ? " (root-commit)" : "") + " " + commitSha.substring(0, 7) + "] " + commitMessage);
+        if (parentSha != null) {
+            // The branch may have moved while committing, so compare against the parent actually used
+            Commit commit = readCommit(newCommit.getParentShas().get(0));
+            Map<String, List<String>> changes = treeManager.compareTrees(newCommit.getTreeSha(), commit.getTreeSha());
+            if(changes.get("added").isEmpty() && changes.get("deleted").isEmpty() && changes.get("modified").isEmpty()
+                    && changes.get("renamed").isEmpty() && changes.get("copied").isEmpty()){
+                System.out.println("On branch:"+branchName);
+                System.out.println("nothing to commit, working tree clean");
+                return "";
+            }
+            System.out.println("Added files: " + changes.get("added"));
+            System.out.println("Deleted files: " + changes.get("deleted"));
+            System.out.println("Modifies files: " + changes.get("modified"));
+            if (!changes.get("renamed").isEmpty()) {
+                System.out.println("Renamed files: " + changes.get("renamed"));
+            }
+            if (!changes.get("copied").isEmpty()) {
+                System.out.println("Copied files: " + changes.get("copied"));
+            }
 
-        File headFile = new File(".gitty/HEAD");
-        if (!headFile.exists()) {
-            throw new IOException("No .gitty repository found. Are you inside a repository?");
         }
 
-        String headContent = Files.readString(headFile.toPath()).trim();
-        if (!headContent.startsWith("ref: ")) {
-            throw new IOException("HEAD does not point to a valid branch reference.");
+        return  commitSha;
+    }
+
+    /**
+     * Commits the index on top of HEAD, holding {@code index.lock} from reading the index until
+     * the branch has moved, so a concurrent {@code add} lands either fully before or after.
+     */
+    public String commitIndex(String commitMessage, String authorName, String authorEmail)
+            throws IOException, NoSuchAlgorithmException {
+        IndexManager indexManager = new IndexManager(objectStore.getGitDir());
+        // Only held, never committed: the index itself is not rewritten
+        LockFile lock = indexManager.lock();
+        try {
+            return writeCommit(commitMessage, indexManager.readIndexTrie(), authorName, authorEmail, getLatestCommitSha());
+        } finally {
+            lock.close();
         }
+    }
 
-        String branchPath = headContent.substring(5);
-        File branchFile = new File(".gitty/" + branchPath);
+    /**
+     * Writes a commit of the given index entries and moves the current branch to it, without
+     * printing anything. If another commit lands on the branch first, a single-parent commit is
+     * redone on top of it, as if the two had run one after the other.
+     *
+     * @param parentSha the parent commit, space separated parents for a merge, or null for a root commit
+     * @return the SHA of the new commit
+     * @throws IOException if the branch keeps moving, or moved under a merge
+     */
+    public String createCommit(String commitMessage, List<IndexEntry> entries, String authorName, String authorEmail, String parentSha)
+            throws IOException {
+        return createCommit(commitMessage, PathTrie.of(entries), authorName, authorEmail, parentSha);
+    }
+
+    /**
+     * Writes a commit of the index, as read with {@link IndexManager#readIndexTrie()}, and moves
+     * the current branch to it.
+     *
+     * @see #createCommit(String, List, String, String, String)
+     */
+    public String createCommit(String commitMessage, PathTrie entries, String authorName, String authorEmail, String parentSha)
+            throws IOException {
+        return createCommit(commitMessage, entries, authorName, authorEmail, parentSha, new RefDatabase(objectStore.getGitDir()));
+    }
 
-        // Step 6: Ensure the branch file exists (handle first commit)
-        if (!branchFile.exists()) {
-            branchFile.getParentFile().mkdirs();
-            branchFile.createNewFile();
+    String createCommit(String commitMessage, PathTrie entries, String authorName, String authorEmail, String parentSha,
+                        RefDatabase refDatabase) throws IOException {
+        String branchName = refDatabase.getCurrentBranch();
+        for (int attempt = 1; ; attempt++) {
+            String commitSha = buildCommit(commitMessage, entries, authorName, authorEmail, parentSha);
+
+            // Only move the branch if nobody else committed since the parent was read
+            String expectedSha = parentSha == null || parentSha.isBlank() ? "" : parentSha.trim().split("\\s+")[0];
+            if (refDatabase.updateRef(RefDatabase.HEADS_PREFIX + branchName, expectedSha, commitSha)) {
+                new ChangedPathFilter(objectStore).record(commitSha);
+                return commitSha;
+            }
+            boolean merge = parentSha != null && parentSha.trim().contains(" ");
+            if (merge || attempt == MAX_COMMIT_ATTEMPTS) {
+                throw new IOException("Branch " + branchName + " moved while committing, commit " + commitSha + " was not recorded.");
+            }
+            parentSha = refDatabase.resolveBranch(branchName);
         }
-        String branchName = branchPath.replace("refs/heads/", "");
+    }
 
+    private String buildCommit(String commitMessage, PathTrie entries, String authorName, String authorEmail, String parentSha)
+            throws IOException {
+        TreeManager treeManager = new TreeManager(objectStore);
+        // Unselected directories of a sparse checkout are taken over from the parent commit
+        String parentTreeSha = parentSha == null || parentSha.isBlank() ? null
+                : readCommit(parentSha.trim().split("\\s+")[0]).getTreeSha();
+        entries = new SparseCheckout(objectStore.getGitDir()).expandIndex(entries, parentTreeSha, treeManager);
 
+        // Create the tree object
+        String treeSha = treeManager.createTreeObject(entries);
 
         // Step 2: Gather commit metadata
         long timestamp = System.currentTimeMillis() / 1000L; // Unix timestamp
@@ -52,7 +143,10 @@ public class CommitManager {
         StringBuilder commitContent = new StringBuilder();
         commitContent.append("tree ").append(treeSha).append("\n");
         if (parentSha != null && !parentSha.isEmpty()) {
-            commitContent.append("parent ").append(parentSha).append("\n");
+            // Merge commits pass their parents space separated, each gets its own line
+            for (String parent : parentSha.trim().split("\\s+")) {
+                commitContent.append("parent ").append(parent).append("\n");
+            }
         }
         commitContent.append("author ").append(authorName).append(" <").append(authorEmail).append("> ")
                 .append(timestamp).append(" ").append(timezoneOffset).append("\n");
@@ -62,63 +156,24 @@ public class CommitManager {
 
         // Step 4: Write the commit object
         byte[] commitData = commitContent.toString().getBytes(StandardCharsets.UTF_8);
-        String commitSha = GitObject.createObject(commitData, "commit", true); // Save commit to .git/objects
-
-        Files.writeString(branchFile.toPath(), commitSha);
-
-
-
-        System.out.println( "[" + branchName + (parentSha == null ? " (root-commit)" : "") + " " + commitSha.substring(0, 7) + "] " + commitMessage);
-        if (parentSha != null) {
-            Commit commit = readCommit(parentSha);
-            Map<String, List<String>> changes = treeManager.compareTrees(treeSha, commit.getTreeSha());
-            if(changes.get("added").isEmpty() && changes.get("deleted").isEmpty() && changes.get("modified").isEmpty()){
-                System.out.println("On branch:"+branchName);
-                System.out.println("nothing to commit, working tree clean");
-                return "";
-            }
-            System.out.println("Added files: " + changes.get("added"));
-            System.out.println("Deleted files: " + changes.get("deleted"));
-            System.out.println("Modifies files: " + changes.get("modified"));
-
-        }
-
-        return  commitSha;
+        return objectStore.writeObject("commit", commitData); // Save commit to .git/objects
     }
 
-
     public Commit readCommit(String commitSha) throws IOException {
-        // Locate the commit object
-        String objectPath = ".gitty/objects/" + commitSha.substring(0, 2) + "/" + commitSha.substring(2);
-        File commitFile = new File(objectPath);
-
-        if (!commitFile.exists()) {
-            throw new FileNotFoundException("Commit object not found: " + commitSha);
-        }
-
-
-        byte[] compressedData = Files.readAllBytes(commitFile.toPath());
-        ByteArrayInputStream bais = new ByteArrayInputStream(compressedData);
-        InflaterInputStream inflater = new InflaterInputStream(bais);
-        ByteArrayOutputStream decompressedData = new ByteArrayOutputStream();
-
-        int bytesRead;
-        byte[] buffer = new byte[1024];
-        while ((bytesRead = inflater.read(buffer)) != -1) {
-            decompressedData.write(buffer, 0, bytesRead);
+        // Commits are immutable, so a parsed copy is as good as the object on disk
+        Commit cached = RepoCache.getCommit(commitSha);
+        if (cached != null) {
+            return cached;
         }
-        inflater.close();
-
 
-        byte[] rawContent = decompressedData.toByteArray();
-        String commitContent = new String(rawContent, StandardCharsets.UTF_8);
-
-        // Strip off the header
-        int headerEnd = commitContent.indexOf('\0');
-        if (headerEnd == -1) {
-            throw new IOException("Invalid commit object format.");
+        // The store strips the header while inflating, so nothing is copied twice
+        byte[] content;
+        try {
+            content = objectStore.readContent(commitSha);
+        } catch (FileNotFoundException e) {
+            throw new FileNotFoundException("Commit object not found: " + commitSha);
         }
-        String contentWithoutHeader = commitContent.substring(headerEnd + 1);
+        String contentWithoutHeader = new String(content, StandardCharsets.UTF_8);
 
         // Step 4: Parse the commit content
         String[] lines = contentWithoutHeader.split("\n");
@@ -133,7 +188,8 @@ public class CommitManager {
             if (line.startsWith("tree ")) {
                 treeSha = line.substring(5).trim();
             } else if (line.startsWith("parent ")) {
-                parentShas.add(line.substring(7).trim());
+                // Merge commits used to be written with both parents on one line
+                parentShas.addAll(Arrays.asList(line.substring(7).trim().split("\\s+")));
             } else if (line.startsWith("author ")) {
                 author = line.substring(7).trim();
             } else if (line.startsWith("committer ")) {
@@ -148,68 +204,54 @@ public class CommitManager {
         String message = messageBuilder.toString().trim();
 
         // Step 5: Return the Commit object
-        return new Commit(treeSha, parentShas, author, committer, message);
+        Commit commit = new Commit(commitSha, treeSha, parentShas, author, committer, message);
+        RepoCache.putCommit(commitSha, commit);
+        return commit;
     }
 
     public String getLatestCommitSha() throws IOException {
-        // Step 1: Read the HEAD file
-        File headFile = new File(".gitty/HEAD");
-        if (!headFile.exists()) {
-            throw new IOException("No .gitty repository found. Are you inside a repository?");
-        }
-
-        String headContent = Files.readString(headFile.toPath()).trim();
-        if (!headContent.startsWith("ref: ")) {
-            throw new IOException("HEAD does not point to a valid branch reference.");
-        }
-
-        // Step 2: Determine the branch reference
-        String branchPath = headContent.substring(5);
-        File branchFile = new File(".gitty/" + branchPath);
-
-        if (!branchFile.exists()) {
-            return null;
-        }
-
-        String latestCommitSha = Files.readString(branchFile.toPath()).trim();
-        return latestCommitSha.isEmpty() ? null : latestCommitSha;
+        return new RefDatabase(objectStore.getGitDir()).resolveHead();
     }
 
 
 
     public void viewCommitHistory() throws IOException {
-        // Step 1: Read the current HEAD
-        String headRef = Files.readString(new File(".gitty/HEAD").toPath()).trim();
-        String currentCommitSha;
-
-        if (headRef.startsWith("ref: ")) {
-
-            String branchRef = headRef.substring(5);
-            currentCommitSha = Files.readString(new File(".gitty/" + branchRef).toPath()).trim();
-        } else {
-
-            currentCommitSha = headRef;
-        }
-
-        ///
-
+        viewCommitHistory(null, RevWalk.Order.FIRST_PARENT, 0, Long.MAX_VALUE);
+    }
 
+    /**
+     * Prints history from HEAD, reading only as many commits as the output needs.
+     *
+     * @param path  a file or directory to limit the history to, or null for every commit
+     * @param order the order to walk the commits in
+     * @param skip  how many matching commits to leave out first
+     * @param limit the maximum number of commits to print
+     */
+    public void viewCommitHistory(String path, RevWalk.Order order, long skip, long limit) throws IOException {
+        ChangedPathFilter pathFilter = new ChangedPathFilter(objectStore);
         System.out.println("Commit history:");
-        while (currentCommitSha != null && !currentCommitSha.isEmpty()) {
-            Commit commit = readCommit(currentCommitSha);
-
-
-            System.out.println("Commit: " + currentCommitSha);
-            System.out.println("Author: " + commit.getAuthor());
-            System.out.println("Date: " + formatUnixTimestamp(commit.getCommitter()));
-            System.out.println("\n    " + commit.getMessage());
-            System.out.println();
-
+        try {
+            RevWalk.fromHead(objectStore, order).stream()
+                    .filter(commit -> path == null || touches(pathFilter, commit, path))
+                    .skip(skip)
+                    .limit(limit)
+                    .forEach(commit -> {
+                        System.out.println("Commit: " + commit.getSha());
+                        System.out.println("Author: " + commit.getAuthor());
+                        System.out.println("Date: " + formatUnixTimestamp(commit.getCommitter()));
+                        System.out.println("\n    " + commit.getMessage());
+                        System.out.println();
+                    });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-            if (commit.getParentShas().isEmpty()) {
-                break;
-            }
-            currentCommitSha = commit.getParentShas().get(0);
+    private static boolean touches(ChangedPathFilter pathFilter, Commit commit, String path) {
+        try {
+            return pathFilter.touches(commit.getSha(), path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
@@ -0,0 +1,63 @@
+package org.scm.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Splits content into chunks whose boundaries depend only on the bytes around them
+ * (a gear rolling hash), so an edit in the middle of a large file only changes the
+ * chunks that cover the edit and every other chunk keeps its hash.
+ */
+public class ContentChunker {
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    // Top 16 bits of the hash must be zero to cut, which gives ~64 KiB chunks on average
+    private static final long BOUNDARY_MASK = 0xFFFFL << 48;
+
+    // Fixed seed: changing the table changes every chunk boundary and defeats dedup
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6769747479L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Computes the chunk end offsets of the given data.
+     *
+     * @param data the content to split
+     * @return the exclusive end offset of every chunk, the last one being data.length
+     */
+    public static List<Integer> findBoundaries(byte[] data) {
+        List<Integer> boundaries = new ArrayList<>();
+        int start = 0;
+        while (start < data.length) {
+            int end = nextBoundary(data, start);
+            boundaries.add(end);
+            start = end;
+        }
+        return boundaries;
+    }
+
+    private static int nextBoundary(byte[] data, int start) {
+        int remaining = data.length - start;
+        if (remaining <= MIN_CHUNK_SIZE) {
+            return data.length;
+        }
+
+        int limit = start + Math.min(remaining, MAX_CHUNK_SIZE);
+        long hash = 0;
+        // Bytes before the minimum size are skipped, the hash only needs the last 64 bytes
+        for (int i = start + MIN_CHUNK_SIZE - 64; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if (i >= start + MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
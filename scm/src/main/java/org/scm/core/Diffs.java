@@ -4,10 +4,7 @@ import org.scm.models.Commit;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
 
 public class Diffs {
         public void diffBranches(String otherBranch) throws IOException {
@@ -25,7 +22,8 @@ public class Diffs {
             TreeManager treeManager = new TreeManager();
             Map<String, List<String>> changes = treeManager.compareTrees(currentBranchCommit.getTreeSha(), otherBranchCommit.getTreeSha());
 
-            if(changes.get("added").isEmpty() && changes.get("deleted").isEmpty() && changes.get("modified").isEmpty()){
+            if(changes.get("added").isEmpty() && changes.get("deleted").isEmpty() && changes.get("modified").isEmpty()
+                    && changes.get("renamed").isEmpty() && changes.get("copied").isEmpty()){
                 System.out.println("no difference between branches"+currentBranchName+"and"+otherBranch);
             }
 
@@ -36,7 +34,17 @@ public class Diffs {
                 }
             }
 
+            // Renamed files are diffed against their old content, unless they moved unchanged
+            List<String> renamedShas = changes.get("renamedShas");
+            for (int i = 0; i + 1 < renamedShas.size(); i += 2) {
+                if (!renamedShas.get(i).equals(renamedShas.get(i + 1))) {
+                    compareBlobs(renamedShas.get(i), renamedShas.get(i + 1));
+                }
+            }
+
             System.out.println("Added files: " + changes.get("added"));
+            System.out.println("Renamed files: " + changes.get("renamed"));
+            System.out.println("Copied files: " + changes.get("copied"));
             System.out.println("Deleted files: " + changes.get("deleted"));
             System.out.println("Modifies files: " + changes.get("modified"));
 
@@ -44,63 +52,21 @@ public class Diffs {
         }
 
         public String getCurrentBranch() throws IOException {
-            File headFile = new File(".gitty/HEAD");
-            if (!headFile.exists()) {
-                throw new IOException("No .gitty repository found. Are you inside a repository?");
-            }
-
-            String headContent = Files.readString(headFile.toPath()).trim();
-            if (!headContent.startsWith("ref: ")) {
-                throw new IOException("HEAD does not point to a valid branch reference.");
-            }
-
-            String branchPath = headContent.substring(5);
-
-            String branchName = branchPath.replace("refs/heads/", "");
-
-            return branchName;
+            return new RefDatabase().getCurrentBranch();
         }
 
 
     public String getBranchLatestCommitSha(String branchName) throws IOException {
-        String branchPath = "refs/heads/"+branchName;
-        File branchFile = new File(".gitty/" + branchPath);
-
-        if (!branchFile.exists()) {
-            return null;
-        }
-
-        String latestCommitSha = Files.readString(branchFile.toPath()).trim();
-        return latestCommitSha.isEmpty() ? null : latestCommitSha;
+        return new RefDatabase().resolveBranch(branchName);
     }
 
     private static byte[] decompressBlob(String blobSha) throws IOException {
-        // Locate the blob file in the object storage
-        File objectFile = getObjectFile(blobSha);
-        if (!objectFile.exists()) {
+        // Locate the blob in the object storage; chunked blobs are reassembled by the store
+        try {
+            return new ObjectStore().readObject(blobSha);
+        } catch (FileNotFoundException e) {
             throw new FileNotFoundException("Blob object not found: " + blobSha);
         }
-
-        // Decompress the object (e.g., using zlib)
-        return decompressObject(objectFile);
-    }
-
-    private static File getObjectFile(String sha) {
-        String objectPath = ".gitty/objects/" + sha.substring(0, 2) + "/" + sha.substring(2);
-        return new File(objectPath);
-    }
-
-    private static byte[] decompressObject(File objectFile) throws IOException {
-        try (FileInputStream fileInputStream = new FileInputStream(objectFile);
-             ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            InflaterInputStream inflater = new InflaterInputStream(fileInputStream);
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = inflater.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
-            return out.toByteArray();
-        }
     }
 
     public static void compareBlobs(String blobSha1, String blobSha2) throws IOException {
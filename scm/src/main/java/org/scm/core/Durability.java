@@ -0,0 +1,168 @@
+package org.scm.core;
+
+import org.scm.utils.Futures;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * How far object, index and ref writes are pushed to disk before a command moves on, set with
+ * {@code core.fsync} in {@code .gitty/config}.
+ *
+ * <ul>
+ *     <li>{@code none}: nothing is synced, so a power loss can leave the index or a ref pointing
+ *     at objects that never reached the disk.</li>
+ *     <li>{@code batch} (the default): objects are written under temporary names and left
+ *     unsynced until the command next replaces the index or a ref, or ends. They are then
+ *     synced together, renamed into place and their directories synced, and only after that
+ *     is the new index or ref synced and renamed. After a crash every object the index and refs
+ *     name is on disk whole, and objects that were not yet synced never appear under their
+ *     names, where a later {@code add} would take them as stored.</li>
+ *     <li>{@code strict}: every object is synced and renamed into place as it is written.</li>
+ * </ul>
+ *
+ * <p>Batch mode costs about what {@code none} does: the syncs of one command are issued at
+ * once from virtual threads, so the filesystem can commit them in one journal transaction
+ * instead of one per object. Syncing a directory is not supported everywhere (not on Windows),
+ * and is skipped where it fails.
+ */
+enum Durability {
+    NONE, BATCH, STRICT;
+
+    static final String FSYNC_KEY = "core.fsync";
+
+    // Objects written in batch mode, from their final path to the temporary file holding them
+    private static final Map<Path, Path> pendingObjects = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the mode configured for a repository.
+     *
+     * @throws IllegalArgumentException if {@code core.fsync} is not none, batch or strict
+     */
+    static Durability of(File gitDir) {
+        String value = new RepoConfig(gitDir).get(FSYNC_KEY, "batch").trim();
+        try {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for " + FSYNC_KEY + ": " + value + " (use none, batch or strict)");
+        }
+    }
+
+    /**
+     * Puts an object written to a temporary file in the same directory into place, now or, in
+     * batch mode, at the next {@link #syncPendingObjects()}.
+     */
+    void installObject(Path temp, Path target, boolean newDirectory) throws IOException {
+        switch (this) {
+            case NONE -> Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            case BATCH -> {
+                // Another thread may have written the same object meanwhile; one copy is enough
+                if (pendingObjects.putIfAbsent(target.toAbsolutePath(), temp.toAbsolutePath()) != null) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+            case STRICT -> {
+                sync(temp);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory(target.getParent());
+                if (newDirectory) {
+                    syncDirectory(target.getParent().getParent());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns where an object written in batch mode is until it is synced, or the given file.
+     */
+    static File pendingFile(File objectFile) {
+        if (pendingObjects.isEmpty()) {
+            return objectFile;
+        }
+        Path temp = pendingObjects.get(objectFile.toPath().toAbsolutePath());
+        return temp == null ? objectFile : temp.toFile();
+    }
+
+    /**
+     * Syncs every object written in batch mode, renames them into place and syncs their
+     * directories. Runs before any index or ref is replaced, and when a command ends.
+     */
+    static synchronized void syncPendingObjects() throws IOException {
+        if (pendingObjects.isEmpty()) {
+            return;
+        }
+        Map<Path, Path> objects = new HashMap<>(pendingObjects);
+
+        // Step 1: Sync the object files, all at once so the filesystem can group the writes
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> syncs = new ArrayList<>();
+            for (Path temp : objects.values()) {
+                syncs.add(executor.submit(() -> {
+                    sync(temp);
+                    return null;
+                }));
+            }
+            for (Future<?> sync : syncs) {
+                Futures.await(sync, "syncing objects");
+            }
+        }
+
+        // Step 2: Rename them into place, then sync the fan-out directories and objects/ above them
+        Set<Path> directories = new HashSet<>();
+        for (Map.Entry<Path, Path> object : objects.entrySet()) {
+            try {
+                Files.move(object.getValue(), object.getKey(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // Deleted again before it was synced
+            }
+            pendingObjects.remove(object.getKey());
+            directories.add(object.getKey().getParent());
+            directories.add(object.getKey().getParent().getParent());
+        }
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+    }
+
+    /**
+     * Writes out a lock file's new content and renames it over its target. Objects pending in
+     * batch mode are synced first, so the new file never names an object that is not on disk.
+     */
+    void commitFile(FileChannel channel, Path lockPath, Path target) throws IOException {
+        syncPendingObjects();
+        if (this != NONE) {
+            channel.force(false);
+        }
+        Files.move(lockPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (this != NONE) {
+            syncDirectory(target.toAbsolutePath().getParent());
+        }
+    }
+
+    /**
+     * Forgets an object that was deleted before it was synced.
+     */
+    static void discardPending(File objectFile) {
+        pendingObjects.remove(objectFile.toPath().toAbsolutePath());
+    }
+
+    private static void sync(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (NoSuchFileException e) {
+            // Deleted again before it was synced
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be synced on this platform
+        }
+    }
+}
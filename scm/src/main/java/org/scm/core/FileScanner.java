@@ -9,16 +9,29 @@ import java.util.List;
 import java.util.Set;
 
 public class FileScanner {
+    private final File workTree;
     private List<File> files = new ArrayList<>();
+    private List<String> paths = new ArrayList<>();
     private Set<String> ignorePatterns = new HashSet<>();
+    private final SparseCheckout sparseCheckout;
 
     public FileScanner() {
+        this(new File("."));
+    }
+
+    /**
+     * Scans a working tree other than the current directory. Paths passed to
+     * {@link #scanDirectory(String)} and returned by {@link #getPaths()} are relative to it.
+     */
+    public FileScanner(File workTree) {
+        this.workTree = workTree;
+        this.sparseCheckout = new SparseCheckout(new File(workTree, ".gitty"));
         loadGitIgnore();
     }
 
     // Load patterns from .gitignore
     private void loadGitIgnore() {
-        File gitIgnoreFile = new File(".gittyignore");
+        File gitIgnoreFile = new File(workTree, ".gittyignore");
         if (gitIgnoreFile.exists()) {
             try {
                 List<String> lines = Files.readAllLines(gitIgnoreFile.toPath());
@@ -46,17 +59,86 @@ public class FileScanner {
     }
 
     public void scanDirectory(String path) {
-        File root = new File(path);
-        for (File file : root.listFiles()) {
-            if (file.isFile() && !shouldIgnore(file)) {
+        String[] names = new File(workTree, path).list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            // Relative to the working tree, so paths look the same whatever it is
+            File file = new File(path, name);
+            File absolute = new File(workTree, file.getPath());
+            if (absolute.isFile() && !shouldIgnore(file)) {
                 files.add(file);
-            } else if (file.isDirectory() && !shouldIgnore(file)) {
+                paths.add(file.getPath());
+            } else if (absolute.isDirectory() && !shouldIgnore(file) && sparseCheckout.includesDirectory(file.getPath())) {
+                // Directories outside the sparse checkout are not entered at all
                 scanDirectory(file.getPath());
             }
         }
     }
 
+    /**
+     * Lists the files under a directory that are not in the index, listing only directories
+     * the untracked cache has no current entry for and recording those in it.
+     *
+     * @param index the index, whose paths look like {@code "./src/a.txt"}
+     * @return the untracked files as paths relative to the working tree
+     */
+    List<String> scanUntracked(String path, PathTrie index, UntrackedCache cache) {
+        List<String> untracked = new ArrayList<>();
+        scanUntracked(path, index, cache, untracked);
+        return untracked;
+    }
+
+    private void scanUntracked(String path, PathTrie index, UntrackedCache cache, List<String> untracked) {
+        if (path.equals("./.gitty")) {
+            return; // Changes with every index write, and holds nothing to scan
+        }
+        File directory = new File(workTree, path);
+        long modifiedNanos = UntrackedCache.modifiedNanos(directory);
+        UntrackedCache.Directory listing = cache.get(path, modifiedNanos);
+        if (listing == null) {
+            String[] names = directory.list();
+            if (names == null) {
+                return;
+            }
+            // Same selection as scanDirectory, keeping only files the index does not have
+            List<String> files = new ArrayList<>();
+            List<String> subdirectories = new ArrayList<>();
+            for (String name : names) {
+                File file = new File(path, name);
+                File absolute = new File(workTree, file.getPath());
+                if (absolute.isFile() && !shouldIgnore(file)) {
+                    if (!index.contains(file.getPath())) {
+                        files.add(name);
+                    }
+                } else if (absolute.isDirectory() && !shouldIgnore(file) && sparseCheckout.includesDirectory(file.getPath())) {
+                    subdirectories.add(name);
+                }
+            }
+            listing = cache.put(path, modifiedNanos, files, subdirectories);
+        }
+
+        for (String name : listing.files()) {
+            // Files added to the index since the listing was cached
+            String filePath = new File(path, name).getPath();
+            if (!index.contains(filePath)) {
+                untracked.add(filePath);
+            }
+        }
+        for (String name : listing.subdirectories()) {
+            scanUntracked(new File(path, name).getPath(), index, cache, untracked);
+        }
+    }
+
     public List<File> getFiles() {
         return files;
     }
+
+    /**
+     * Returns the scanned files as paths relative to the working tree, such as {@code "./src/a.txt"}.
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
 }
@@ -0,0 +1,318 @@
+package org.scm.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flattened tree listings, path to SHA, kept on disk under {@code .gitty/flat-trees} by tree
+ * SHA so that reading every file of a commit costs one mapped file instead of inflating and
+ * parsing each of its trees.
+ *
+ * <p>Trees never change, so a listing never goes stale; the directory is only kept under
+ * {@code core.flatTreeCache} bytes (default 64 MB, 0 turns the cache off) by dropping the
+ * listings used least recently. A listing is touched the first time a process uses it, not
+ * on every read, and the directory is only listed again once the running total of bytes this
+ * process knows of goes over the limit. A listing is one file:
+ *
+ * <pre>
+ *   "FLT2"  count  pathBytes                    3 big-endian ints after the magic
+ *   count raw 20-byte SHAs                      in path order
+ *   count + 1 path offsets                      ints into the path bytes
+ *   the UTF-8 paths, sorted by unsigned bytes
+ * </pre>
+ *
+ * <p>It is mapped and served as a read-only {@link Map} that decodes entries as they are
+ * asked for and finds a path by bisection. A file whose sizes do not add up, such as one cut
+ * short by a crash, is deleted and rebuilt. Listings that cannot be written, say in a
+ * read-only repository, are simply not cached.
+ */
+class FlatTreeCache {
+    static final String CACHE_SIZE_KEY = "core.flatTreeCache";
+    private static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+    private static final byte[] MAGIC = "FLT2".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 12;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Bytes in each cache directory, counted on the first put of the process and kept up to date after
+    private static final Map<Path, AtomicLong> cacheSizes = new ConcurrentHashMap<>();
+    // Listings already touched by this process, which is enough to order them for eviction
+    private static final Set<Path> touched = ConcurrentHashMap.newKeySet();
+
+    private final File directory;
+    private final long maxSize;
+
+    FlatTreeCache(File gitDir) {
+        this.directory = new File(gitDir, "flat-trees");
+        this.maxSize = new RepoConfig(gitDir).getLong(CACHE_SIZE_KEY, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Returns the stored listing of a tree, or null if there is none.
+     *
+     * @param kind which listing of the tree, as more than one can be derived from it
+     */
+    Map<String, String> get(String treeSha, String kind) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        File file = new File(directory, treeSha + "." + kind);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Listing listing = Listing.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (listing == null) {
+                file.delete();
+                return null;
+            }
+            if (touched.add(file.toPath().toAbsolutePath())) {
+                file.setLastModified(System.currentTimeMillis()); // Recently used, so evicted last
+            }
+            return listing;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return null; // Unreadable: rebuilt from the tree objects instead
+        }
+    }
+
+    /**
+     * Stores the listing of a tree and returns it in its read-only stored form.
+     */
+    Map<String, String> put(String treeSha, String kind, Map<String, String> entries) {
+        Listing listing = Listing.of(entries);
+        if (maxSize <= 0) {
+            return listing;
+        }
+        try {
+            Files.createDirectories(directory.toPath());
+            AtomicLong cacheSize = cacheSizes.computeIfAbsent(directory.toPath().toAbsolutePath(), path -> new AtomicLong(totalSize()));
+            File file = new File(directory, treeSha + "." + kind);
+            byte[] bytes = listing.toBytes();
+            long replaced = file.length();
+            Path temp = Files.createTempFile(directory.toPath(), treeSha, ".tmp");
+            try {
+                Files.write(temp, bytes);
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            touched.add(file.toPath().toAbsolutePath());
+            if (cacheSize.addAndGet(bytes.length - replaced) > maxSize) {
+                cacheSize.set(evict());
+            }
+        } catch (IOException e) {
+            // Not cached this time; the listing is still good
+        }
+        return listing;
+    }
+
+    private long totalSize() {
+        File[] files = directory.listFiles();
+        long total = 0;
+        for (File file : files == null ? new File[0] : files) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    // Drops the listings used longest ago until the cache is back to three quarters of its limit,
+    // and returns the bytes left, which also takes in what other processes wrote meanwhile
+    private long evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxSize) {
+            return total;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (total <= maxSize * 3 / 4) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * A listing in its stored form, mapped from its file or built in memory.
+     */
+    static final class Listing extends AbstractMap<String, String> {
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int offsetsStart;
+        private final int pathsStart;
+
+        private Listing(ByteBuffer buffer, int count) {
+            this.buffer = buffer;
+            this.count = count;
+            this.offsetsStart = HEADER_SIZE + count * 20;
+            this.pathsStart = offsetsStart + (count + 1) * 4;
+        }
+
+        /**
+         * Checks a stored listing, returning null if it is not complete.
+         */
+        static Listing read(ByteBuffer buffer) {
+            if (buffer.capacity() < HEADER_SIZE) {
+                return null;
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) {
+                    return null;
+                }
+            }
+            int count = buffer.getInt(4);
+            int pathBytes = buffer.getInt(8);
+            if (count < 0 || pathBytes < 0 || buffer.capacity() != HEADER_SIZE + count * 24L + 4 + pathBytes) {
+                return null;
+            }
+            return new Listing(buffer, count);
+        }
+
+        static Listing of(Map<String, String> entries) {
+            List<byte[]> paths = new ArrayList<>(entries.size());
+            Map<byte[], String> shas = new IdentityHashMap<>();
+            int pathBytes = 0;
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                byte[] path = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                paths.add(path);
+                shas.put(path, entry.getValue());
+                pathBytes += path.length;
+            }
+            paths.sort(Arrays::compareUnsigned);
+
+            int count = paths.size();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * 24 + 4 + pathBytes);
+            buffer.put(MAGIC).putInt(count).putInt(pathBytes);
+            for (byte[] path : paths) {
+                buffer.put(HashUtils.hexToBytes(shas.get(path)));
+            }
+            int offset = 0;
+            for (byte[] path : paths) {
+                buffer.putInt(offset);
+                offset += path.length;
+            }
+            buffer.putInt(offset);
+            for (byte[] path : paths) {
+                buffer.put(path);
+            }
+            return new Listing(buffer, count);
+        }
+
+        byte[] toBytes() {
+            byte[] bytes = new byte[buffer.capacity()];
+            buffer.get(0, bytes);
+            return bytes;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public String get(Object key) {
+            int index = key instanceof String path ? find(path.getBytes(StandardCharsets.UTF_8)) : -1;
+            return index < 0 ? null : sha(index);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String path && find(path.getBytes(StandardCharsets.UTF_8)) >= 0;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return count;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < count;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (next >= count) {
+                                throw new NoSuchElementException();
+                            }
+                            int index = next++;
+                            return new SimpleImmutableEntry<>(path(index), sha(index));
+                        }
+                    };
+                }
+            };
+        }
+
+        private int find(byte[] path) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = compare(middle, path);
+                if (comparison == 0) {
+                    return middle;
+                } else if (comparison < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return -1;
+        }
+
+        // Compares the stored path at an index with the given bytes, unsigned
+        private int compare(int index, byte[] path) {
+            int start = pathsStart + buffer.getInt(offsetsStart + index * 4);
+            int length = buffer.getInt(offsetsStart + (index + 1) * 4) - buffer.getInt(offsetsStart + index * 4);
+            int common = Math.min(length, path.length);
+            for (int i = 0; i < common; i++) {
+                int difference = (buffer.get(start + i) & 0xff) - (path[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - path.length;
+        }
+
+        private String path(int index) {
+            int start = buffer.getInt(offsetsStart + index * 4);
+            byte[] path = new byte[buffer.getInt(offsetsStart + (index + 1) * 4) - start];
+            buffer.get(pathsStart + start, path);
+            return new String(path, StandardCharsets.UTF_8);
+        }
+
+        private String sha(int index) {
+            char[] hex = new char[40];
+            int start = HEADER_SIZE + index * 20;
+            for (int i = 0; i < 20; i++) {
+                int b = buffer.get(start + i) & 0xff;
+                hex[i * 2] = HEX_DIGITS[b >>> 4];
+                hex[i * 2 + 1] = HEX_DIGITS[b & 0xf];
+            }
+            return new String(hex);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.scm.core;
+
+import org.scm.models.IndexEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class GcManager {
+    public static final String PRUNE_EXPIRE_KEY = "gc.pruneExpireDays";
+    private static final long DEFAULT_PRUNE_EXPIRE_DAYS = 14;
+
+    private final File gitDir = new File(".gitty");
+    private final ObjectStore objectStore = new ObjectStore(gitDir);
+
+    /**
+     * Packs the refs, refreshes the bitmap index and deletes loose objects that no ref and no
+     * staged file reaches. Objects younger than {@code gc.pruneExpireDays} are kept, since a
+     * concurrent add or commit may have written them without referencing them yet.
+     */
+    public void collectGarbage() throws IOException {
+        RefDatabase refDatabase = new RefDatabase(gitDir);
+        int packedRefs = refDatabase.packRefs();
+        Collection<String> tips = new LinkedHashSet<>(refDatabase.listRefs().values());
+        int indexed = BitmapIndex.write(gitDir, tips);
+        BitmapIndex bitmapIndex = BitmapIndex.open(gitDir);
+        BitmapIndex.ReachableObjects reachable = bitmapIndex.reachable(tips, objectStore);
+
+        // Staged blobs are not reachable from any commit yet
+        Set<String> staged = new HashSet<>();
+        for (IndexEntry entry : new IndexManager().readIndex()) {
+            if (objectStore.hasObject(entry.getSha1())) {
+                staged.add(entry.getSha1());
+                staged.addAll(objectStore.getChunkShas(entry.getSha1()));
+            }
+        }
+
+        long expireDays = new RepoConfig(gitDir).getLong(PRUNE_EXPIRE_KEY, DEFAULT_PRUNE_EXPIRE_DAYS);
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(expireDays);
+        int pruned = 0;
+        File[] fanOut = new File(gitDir, "objects").listFiles();
+        for (File dir : fanOut == null ? new File[0] : fanOut) {
+            File[] files = dir.listFiles();
+            if (dir.getName().length() != 2 || files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String sha = dir.getName() + file.getName();
+                if (sha.length() != 40 || file.lastModified() > cutoff || staged.contains(sha) || reachable.contains(sha)) {
+                    continue;
+                }
+                if (objectStore.deleteObject(sha)) {
+                    pruned++;
+                }
+            }
+        }
+
+        // Commits written before changed-path filters existed, or fetched, get theirs now
+        new ChangedPathFilter(objectStore).recordHistory(tips);
+
+        System.out.println("Packed " + packedRefs + " refs.");
+        System.out.println("Indexed " + indexed + " objects with " + bitmapIndex.getBitmapCount() + " bitmaps.");
+        System.out.println("Reachable objects: " + reachable.size() + ", pruned " + pruned + " unreachable objects.");
+    }
+
+    /**
+     * Prints how many objects are reachable from a commit, or from all refs.
+     *
+     * @param revision a branch, "HEAD", a ref or a commit SHA; null for all refs
+     * @throws IOException if the revision names no commit
+     */
+    public void countObjects(String revision) throws IOException {
+        RefDatabase refDatabase = new RefDatabase(gitDir);
+        Collection<String> starts = revision != null
+                ? List.of(refDatabase.resolveExistingRevision(revision, objectStore))
+                : new LinkedHashSet<>(refDatabase.listRefs().values());
+
+        BitmapIndex bitmapIndex = BitmapIndex.open(gitDir);
+        int count = bitmapIndex != null
+                ? bitmapIndex.reachable(starts, objectStore).size()
+                : new ObjectWalk(objectStore).findObjectsToSend(starts, List.of()).size();
+        System.out.println(count + " objects reachable from " + (revision != null ? revision : "all refs")
+                + (bitmapIndex == null ? " (no bitmap index, run 'gitty gc' to create one)" : ""));
+    }
+}
@@ -1,22 +1,18 @@
 package org.scm.core;
 
-import org.scm.models.IndexEntry;
-import org.scm.utils.FileUtils;
-
 import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class GitStatus {
     public void checkStatus() throws IOException, NoSuchAlgorithmException {
         // Read the staged files (index entries)
-        List<IndexEntry> stagedEntries = new IndexManager().readIndex();
+        IndexManager indexManager = new IndexManager();
+        PathTrie stagedEntries = indexManager.readIndexTrie();
         System.out.println("======================================================");
-         for(IndexEntry indexEntry: stagedEntries){
+         stagedEntries.forEach(indexEntry -> {
              System.out.println("IndexEntry{" +
                      "path='" + indexEntry.getPath() + '\'' +
                      ", sha1='" + indexEntry.getSha1() + '\'' +
@@ -24,42 +20,33 @@ public class GitStatus {
                      ", size=" + indexEntry.getSize() +
                      '}');
 
-         }
+         });
         System.out.println("======================================================");
-        Map<String, IndexEntry> stagedEntriesMap = new HashMap<>();
-        for (IndexEntry entry : stagedEntries) {
-            stagedEntriesMap.put(entry.getPath(), entry);
-        }
-
-        // Get the files in the working directory
-        List<File> workingFiles = getWorkingFiles();
 
         // Track changes
         boolean isClean = true;
         List<String> changedFiles = new ArrayList<>();
 
-        // Check for changes (modified or new files)
-        for (File file : workingFiles) {
-            String filePath = file.getPath();
-            String sha1 = HashUtils.computeSHA1(FileUtils.readFile(file));
-
-            IndexEntry stagedEntry = stagedEntriesMap.get(filePath);
-            if (stagedEntry == null) {
-                changedFiles.add(filePath + " (new file)");
+        // Check tracked files for changes and deletions, statting and hashing them in parallel first
+        StatPreload.State[] states = StatPreload.preload(new File("."), stagedEntries, indexManager.indexModifiedMillis(), true);
+        for (int i = 0; i < stagedEntries.size(); i++) {
+            if (states[i] == StatPreload.State.DELETED) {
+                changedFiles.add(stagedEntries.getPath(i) + " (deleted)");
                 isClean = false;
-            } else if (!stagedEntry.getSha1().equals(sha1)) {
-                changedFiles.add(filePath + " (modified)");
+            } else if (states[i] == StatPreload.State.DIRTY) {
+                changedFiles.add(stagedEntries.getPath(i) + " (modified)");
                 isClean = false;
             }
         }
 
-        // Check for deleted files
-        for (IndexEntry stagedEntry : stagedEntries) {
-            File file = new File(stagedEntry.getPath());
-            if (!file.exists()) {
-                changedFiles.add(stagedEntry.getPath() + " (deleted)");
-                isClean = false;
-            }
+        // Check for new files, listing only directories changed since the last status
+        UntrackedCache untrackedCache = indexManager.readUntrackedCache();
+        for (String path : new FileScanner().scanUntracked(".", stagedEntries, untrackedCache)) {
+            changedFiles.add(path + " (new file)");
+            isClean = false;
+        }
+        if (untrackedCache.isChanged()) {
+            indexManager.writeUntrackedCache(untrackedCache, stagedEntries);
         }
 
         // Output status
@@ -73,11 +60,4 @@ public class GitStatus {
             }
         }
     }
-
-    // Helper method to retrieve working files in the current directory
-    private List<File> getWorkingFiles() {
-        FileScanner scanner = new FileScanner();
-        scanner.scanDirectory(".");
-        return scanner.getFiles();
-    }
 }
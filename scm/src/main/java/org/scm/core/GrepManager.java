@@ -0,0 +1,205 @@
+package org.scm.core;
+
+import org.scm.models.IndexEntry;
+import org.scm.utils.FileUtils;
+import org.scm.utils.Futures;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Searches file contents for a regular expression in the working tree, the index or the tree of
+ * any commit.
+ *
+ * <p>Files are searched in parallel on one worker per core, and each file's matches are printed
+ * as a block in path order, so the output is the same however the work was scheduled. Results
+ * are printed as soon as every file before them is done, with at most a few files per core in
+ * flight, so output starts early and memory stays flat on large trees. A file with a NUL byte
+ * in its first 8000 bytes is taken as binary and skipped having read, or inflated, only those
+ * bytes, and most files are ruled out by a single search over their whole content before lines
+ * are split.
+ */
+public class GrepManager {
+    // The same window git uses to tell binary content from text
+    private static final int BINARY_CHECK_LENGTH = 8000;
+    private static final int FILES_IN_FLIGHT_PER_THREAD = 4;
+
+    private final ObjectStore objectStore;
+    private final int threads;
+
+    public GrepManager() {
+        this(new ObjectStore());
+    }
+
+    public GrepManager(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * What to search and how to print it.
+     *
+     * @param ignoreCase      match regardless of case
+     * @param lineNumbers     print the line number of each match
+     * @param filesWithMatches print only the names of files that match
+     */
+    public record Options(boolean ignoreCase, boolean lineNumbers, boolean filesWithMatches) {
+    }
+
+    private interface ContentSource {
+        byte[] read() throws IOException;
+    }
+
+    /**
+     * A file to search: how to read its first {@code length} bytes, for the binary check, and how
+     * to read all of it.
+     */
+    private record SearchFile(String path, StartSource start, ContentSource source) {
+    }
+
+    private interface StartSource {
+        byte[] read(int length) throws IOException;
+    }
+
+    /**
+     * Searches the working tree.
+     *
+     * @return the number of files with matches
+     */
+    public int grepWorkingTree(String pattern, Options options) throws IOException {
+        FileScanner scanner = new FileScanner();
+        scanner.scanDirectory(".");
+        List<SearchFile> files = new ArrayList<>();
+        for (File file : scanner.getFiles()) {
+            files.add(new SearchFile(stripDot(file.getPath()), length -> readStart(file, length), () -> FileUtils.readFile(file)));
+        }
+        return grep(pattern, options, "", files);
+    }
+
+    /**
+     * Searches the staged version of every file.
+     */
+    public int grepIndex(String pattern, Options options) throws IOException {
+        List<SearchFile> files = new ArrayList<>();
+        for (IndexEntry entry : new IndexManager(objectStore.getGitDir()).readIndex()) {
+            if (!SparseCheckout.isSparseDirectory(entry)) {
+                files.add(blob(stripDot(entry.getPath()), entry.getSha1()));
+            }
+        }
+        return grep(pattern, options, "", files);
+    }
+
+    /**
+     * Searches the tree of a commit.
+     *
+     * @param revision a branch name, {@code HEAD} or a commit SHA
+     */
+    public int grepRevision(String pattern, Options options, String revision) throws IOException {
+        String commitSha = new RefDatabase(objectStore.getGitDir()).resolveExistingRevision(revision, objectStore);
+        String treeSha = new CommitManager(objectStore).readCommit(commitSha).getTreeSha();
+        List<SearchFile> files = new ArrayList<>();
+        for (Map.Entry<String, String> file : new TreeManager(objectStore).flattenTree(treeSha).entrySet()) {
+            files.add(blob(file.getKey(), file.getValue()));
+        }
+        return grep(pattern, options, revision + ":", files);
+    }
+
+    private int grep(String pattern, Options options, String prefix, List<SearchFile> files) throws IOException {
+        Pattern regex = Pattern.compile(pattern, Pattern.MULTILINE | (options.ignoreCase() ? Pattern.CASE_INSENSITIVE : 0));
+        files.sort(Comparator.comparing(SearchFile::path));
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // Submit in path order, print in path order, keep a bounded number of files in flight
+            Deque<Future<String>> pending = new ArrayDeque<>();
+            Iterator<SearchFile> remaining = files.iterator();
+            int window = threads * FILES_IN_FLIGHT_PER_THREAD;
+            int matchingFiles = 0;
+            while (remaining.hasNext() || !pending.isEmpty()) {
+                while (remaining.hasNext() && pending.size() < window) {
+                    SearchFile file = remaining.next();
+                    pending.add(pool.submit(() -> search(regex, options, prefix, file)));
+                }
+                String output = Futures.await(pending.poll(), "searching");
+                if (output != null) {
+                    System.out.print(output);
+                    matchingFiles++;
+                }
+            }
+            System.out.flush();
+            return matchingFiles;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static String search(Pattern regex, Options options, String prefix, SearchFile file) throws IOException {
+        // Look at the start first, so binary files are skipped without reading or inflating them whole
+        byte[] head = file.start().read(BINARY_CHECK_LENGTH);
+        if (isBinary(head)) {
+            return null;
+        }
+        byte[] data = head.length < BINARY_CHECK_LENGTH ? head : file.source().read();
+        String content = new String(data, StandardCharsets.UTF_8);
+        Matcher matcher = regex.matcher(content);
+        if (!matcher.find()) {
+            return null;
+        }
+        if (options.filesWithMatches()) {
+            return prefix + file.path() + "\n";
+        }
+
+        StringBuilder output = new StringBuilder();
+        int lineNumber = 0;
+        int start = 0;
+        while (start < content.length()) {
+            int end = content.indexOf('\n', start);
+            if (end < 0) {
+                end = content.length();
+            }
+            lineNumber++;
+            matcher.region(start, end);
+            if (matcher.find()) {
+                output.append(prefix).append(file.path()).append(':');
+                if (options.lineNumbers()) {
+                    output.append(lineNumber).append(':');
+                }
+                output.append(content, start, end).append('\n');
+            }
+            start = end + 1;
+        }
+        // A match spanning lines leaves no single line to show
+        return output.isEmpty() ? null : output.toString();
+    }
+
+    private static boolean isBinary(byte[] data) {
+        int length = Math.min(data.length, BINARY_CHECK_LENGTH);
+        for (int i = 0; i < length; i++) {
+            if (data[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SearchFile blob(String path, String sha) {
+        return new SearchFile(path, length -> objectStore.readContentStart(sha, length), () -> objectStore.readContent(sha));
+    }
+
+    private static byte[] readStart(File file, int length) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.readNBytes(length);
+        }
+    }
+
+    private static String stripDot(String path) {
+        return path.startsWith("./") ? path.substring(2) : path;
+    }
+}
@@ -1,7 +1,6 @@
 package org.scm.core;
 
 import org.scm.models.IndexEntry;
-import org.scm.utils.FileUtils;
 
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -11,164 +10,337 @@ import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.zip.InflaterInputStream;
 
-import static org.scm.core.GitObject.createObject;
 import static org.scm.utils.FileUtils.*;
 
 public class IndexManager {
-    public void addFilesToIndex(List<File> files) throws IOException, NoSuchAlgorithmException {
-        List<IndexEntry> entries = readIndex();
+    private final File gitDir;
+    private final File workTree;
+    private final File indexFile;
 
-        // Map existing entries for quick lookup by path
-        Map<String, IndexEntry> entriesByPath = new HashMap<>();
-        for (IndexEntry entry : entries) {
-            entriesByPath.put(entry.getPath(), entry);
-        }
+    public IndexManager() {
+        this(new File(".gitty"));
+    }
+
+    public IndexManager(File gitDir) {
+        this.gitDir = gitDir;
+        this.workTree = gitDir.getAbsoluteFile().getParentFile();
+        this.indexFile = new File(gitDir, "index");
+    }
 
+    /**
+     * The entries of the index and the raw data of its untracked-cache extension, if any.
+     */
+    private record ParsedIndex(PathTrie entries, byte[] untrackedCache) {
+    }
+
+    public StagingPipeline.Stats addFilesToIndex(List<File> files) throws IOException, NoSuchAlgorithmException {
+        List<String> paths = new ArrayList<>();
         for (File file : files) {
-            byte[] data = FileUtils.readFile(file);
-            long currentTime = System.currentTimeMillis();
-
-            String sha1 = createObject(data, "blob", true);
-            // Check if the file is already in the index
-            IndexEntry existingEntry = entriesByPath.get(file.getPath());
-            if (existingEntry != null) {
-                existingEntry.setSha1(sha1);
-                existingEntry.setModifiedTime(currentTime);
-                existingEntry.setSize(file.length());
-            } else {
-                IndexEntry newEntry = new IndexEntry(
-                        file.getPath(),
-                        sha1,
-                        currentTime,
-                        file.length()
-                );
-                entries.add(newEntry);
-                entriesByPath.put(file.getPath(), newEntry);
+            paths.add(file.getPath());
+        }
+        return addFilesToIndex(new File("."), paths);
+    }
+
+    /**
+     * Stores the given files as blobs through a {@link StagingPipeline} and records them in the
+     * index. Files whose stat data still matches their index entry are skipped without being read.
+     *
+     * @param workTree the directory the paths are relative to
+     * @param paths    index paths such as {@code "./src/a.txt"}
+     * @return the figures of each staging stage
+     */
+    public StagingPipeline.Stats addFilesToIndex(File workTree, List<String> paths) throws IOException {
+        // Stat the files already staged in parallel, to skip the ones that did not change
+        PathTrie staged = readIndexTrie();
+        int[] pathFiles = new int[paths.size()];
+        int candidateCount = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            pathFiles[i] = staged.find(paths.get(i));
+            if (pathFiles[i] >= 0) {
+                candidateCount++;
+            }
+        }
+        int[] candidates = new int[candidateCount];
+        int candidate = 0;
+        for (int file : pathFiles) {
+            if (file >= 0) {
+                candidates[candidate++] = file;
+            }
+        }
+        StatPreload.State[] states = StatPreload.preload(workTree, staged, candidates, indexModifiedMillis(), false);
+
+        // Blobs are stored before taking the lock, so concurrent adds only queue for the index update
+        List<String> changed = new ArrayList<>();
+        candidate = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            if (pathFiles[i] < 0 || states[candidate++] != StatPreload.State.CLEAN) {
+                changed.add(paths.get(i));
             }
         }
+        StagingPipeline pipeline = new StagingPipeline(workTree, new ObjectStore(gitDir));
+        List<IndexEntry> added = pipeline.stage(changed);
+        if (added.isEmpty()) {
+            return pipeline.getStats();
+        }
 
-        writeIndex(entries);
+        // Files already in the index get the new SHA and stat data, new files are appended
+        try (LockFile lock = lock()) {
+            writeIndex(lock, readIndexTrie().with(added));
+        }
+        return pipeline.getStats();
     }
 
+    /**
+     * Takes {@code index.lock}, waiting for a concurrent writer. Whoever holds it may read the
+     * index and replace it with {@link #writeIndex(LockFile, PathTrie)}.
+     */
+    LockFile lock() throws IOException {
+        return LockFile.acquire(indexFile, "index", LockFile.timeout(gitDir), Durability.of(gitDir));
+    }
 
     public List<IndexEntry> readIndex() throws IOException {
-        File indexFile = new File(".gitty/index");
         if (!indexFile.exists()) {
             return new ArrayList<>(); // Return an empty list if the index file doesn't exist
         }
 
-        try (FileInputStream fis = new FileInputStream(indexFile)) {
-            byte[] data = fis.readAllBytes();
+        // The parsed index is shared with the cache, so hand out entries that callers may modify
+        return RepoCache.readParsed(indexFile, this::parseIndex).entries().toEntries();
+    }
 
-            // Validate checksum (last 20 bytes are SHA-1 hash of the rest)
-            byte[] content = Arrays.copyOf(data, data.length - 20);
-            byte[] expectedChecksum = Arrays.copyOfRange(data, data.length - 20, data.length);
-            byte[] actualChecksum = HashUtils.computeSHA1Bytes(content);
+    /**
+     * Returns the index as a path trie, without making an entry per file. The trie is shared
+     * and must not be changed; {@link PathTrie#with} makes a changed copy.
+     */
+    public PathTrie readIndexTrie() throws IOException {
+        if (!indexFile.exists()) {
+            return new PathTrie();
+        }
+        return RepoCache.readParsed(indexFile, this::parseIndex).entries();
+    }
 
-            if (!Arrays.equals(expectedChecksum, actualChecksum)) {
-                throw new IOException("Invalid index checksum");
-            }
+    /**
+     * Returns when the index file was last written, in milliseconds, or 0 if there is none.
+     * Entries not older than this may have changed without their stat data showing it.
+     */
+    long indexModifiedMillis() {
+        return indexFile.lastModified();
+    }
 
-            // Parse header
-            ByteBuffer buffer = ByteBuffer.wrap(content);
-            buffer.order(ByteOrder.BIG_ENDIAN);
+    /**
+     * Returns the untracked cache recorded in the index, or an empty one.
+     */
+    UntrackedCache readUntrackedCache() throws IOException {
+        byte[] data = indexFile.exists() ? RepoCache.readParsed(indexFile, this::parseIndex).untrackedCache() : null;
+        return UntrackedCache.parse(workTree, data);
+    }
 
-            byte[] signature = new byte[4];
-            buffer.get(signature);
-            if (!Arrays.equals(signature, "DIRC".getBytes(StandardCharsets.UTF_8))) {
-                throw new IOException("Invalid index signature");
+    /**
+     * Stores an updated untracked cache if the index is not locked and still has the entries
+     * the cache was built against; otherwise the update is left to a later {@code status}.
+     *
+     * @param scanned the index the working tree was compared with
+     */
+    void writeUntrackedCache(UntrackedCache cache, PathTrie scanned) throws IOException {
+        try (LockFile lock = LockFile.tryAcquire(indexFile, Durability.of(gitDir))) {
+            if (lock == null) {
+                return;
             }
-
-            int version = buffer.getInt();
-            if (version != 2) {
-                throw new IOException("Unsupported index version: " + version);
+            PathTrie entries = readIndexTrie();
+            if (entries == scanned || samePaths(entries, scanned)) {
+                writeIndex(lock, entries, cache);
             }
+        }
+    }
 
-            int numEntries = buffer.getInt();
-            List<IndexEntry> entries = new ArrayList<>();
-
-            // Parse entries
-            for (int i = 0; i < numEntries; i++) {
-                long mtimeSec = buffer.getInt() & 0xFFFFFFFFL;
-                long mtimeNano = buffer.getInt() & 0xFFFFFFFFL; // Unused, but aligned with written structure
-                buffer.getInt(); // Skip dev (placeholder)
-                buffer.getInt(); // Skip ino (placeholder)
-                buffer.getInt(); // Skip mode (placeholder)
-                buffer.getInt(); // Skip uid (placeholder)
-                buffer.getInt(); // Skip gid (placeholder)
-                long size = buffer.getInt() & 0xFFFFFFFFL;
-                byte[] sha1 = new byte[20];
-                buffer.get(sha1);
-                buffer.getShort(); // Skip flags (placeholder)
-
-                // Read variable-length path
-                StringBuilder pathBuilder = new StringBuilder();
-                while (true) {
-                    byte b = buffer.get();
-                    if (b == 0) break; // Null-terminator
-                    pathBuilder.append((char) b);
-                }
-                String path = pathBuilder.toString();
-
-                // Skip padding
-                int entryLength = ((62 + path.length() + 8) / 8) * 8;
-                int paddingLength = entryLength - (62 + path.length());
-                buffer.position(buffer.position() + paddingLength);
-
-                entries.add(new IndexEntry(path, bytesToHex(sha1), mtimeSec, size));
+    private static boolean samePaths(PathTrie entries, PathTrie other) {
+        if (entries.size() != other.size()) {
+            return false;
+        }
+        for (int file = 0; file < other.size(); file++) {
+            if (!entries.contains(other.getPath(file))) {
+                return false;
             }
-
-            return entries;
         }
+        return true;
     }
 
+    private ParsedIndex parseIndex(byte[] data) throws IOException {
+        // Validate checksum (last 20 bytes are SHA-1 hash of the rest)
+        byte[] content = Arrays.copyOf(data, data.length - 20);
+        byte[] expectedChecksum = Arrays.copyOfRange(data, data.length - 20, data.length);
+        byte[] actualChecksum = HashUtils.computeSHA1Bytes(content);
 
+        if (!Arrays.equals(expectedChecksum, actualChecksum)) {
+            throw new IOException("Invalid index checksum");
+        }
 
-    private void writeIndex(List<IndexEntry> entries) throws IOException {
-        File indexFile = new File(".gitty/index");
+        // Parse header
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        buffer.order(ByteOrder.BIG_ENDIAN);
 
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             FileOutputStream fos = new FileOutputStream(indexFile)) {
+        byte[] signature = new byte[4];
+        buffer.get(signature);
+        if (!Arrays.equals(signature, "DIRC".getBytes(StandardCharsets.UTF_8))) {
+            throw new IOException("Invalid index signature");
+        }
 
-            // Write header
-            baos.write("DIRC".getBytes(StandardCharsets.UTF_8)); // Signature
-            baos.write(intToBytes(2));
-            baos.write(intToBytes(entries.size()));
+        int version = buffer.getInt();
+        if (version != 2) {
+            throw new IOException("Unsupported index version: " + version);
+        }
+
+        int numEntries = buffer.getInt();
+        PathTrie entries = new PathTrie();
+
+        // Parse entries straight into the trie, taking path and SHA bytes from the buffer
+        for (int i = 0; i < numEntries; i++) {
+            long mtimeSec = buffer.getInt() & 0xFFFFFFFFL;
+            long mtimeNano = buffer.getInt() & 0xFFFFFFFFL;
+            buffer.getInt(); // Skip dev (placeholder)
+            buffer.getInt(); // Skip ino (placeholder)
+            buffer.getInt(); // Skip mode (placeholder)
+            buffer.getInt(); // Skip uid (placeholder)
+            buffer.getInt(); // Skip gid (placeholder)
+            long size = buffer.getInt() & 0xFFFFFFFFL;
+            int shaOffset = buffer.position();
+            buffer.position(shaOffset + 20);
+            buffer.getShort(); // Skip flags (placeholder)
+
+            // Read variable-length path
+            int pathOffset = buffer.position();
+            int pathLength = 0;
+            while (content[pathOffset + pathLength] != 0) {
+                pathLength++; // Null-terminated
+            }
+            buffer.position(pathOffset + pathLength + 1);
 
-            // Write entries
-            for (IndexEntry entry : entries) {
-                baos.write(intToBytes((int) (entry.getModifiedTime() / 1000)));
-                baos.write(intToBytes((int) (entry.getModifiedTime() % 1000)));
-                baos.write(intToBytes(0)); // dev
-                baos.write(intToBytes(0)); // ino
-                baos.write(intToBytes(0)); // mode
-                baos.write(intToBytes(0)); // uid
-                baos.write(intToBytes(0)); // gid
-                baos.write(intToBytes((int) entry.getSize()));
-                baos.write(hexToBytes(entry.getSha1()));
-                baos.write(shortToBytes(0));
+            // Skip padding
+            int entryLength = ((62 + pathLength + 8) / 8) * 8;
+            int paddingLength = entryLength - (62 + pathLength);
+            buffer.position(buffer.position() + paddingLength);
 
-                // Write path
-                baos.write(entry.getPath().getBytes(StandardCharsets.UTF_8));
-                baos.write(0); // Null-terminator for path
+            entries.add(content, pathOffset, pathLength, content, shaOffset, mtimeSec * 1000 + mtimeNano / 1_000_000, size);
+        }
 
-                // Add padding
-                int entryLength = ((62 + entry.getPath().length() + 8) / 8) * 8;
-                int paddingLength = entryLength - (62 + entry.getPath().length());
-                baos.write(new byte[paddingLength]); // Write padding as zeros
+        // Extensions follow the entries as a 4-byte signature, a 4-byte length and the data
+        byte[] untrackedCache = null;
+        while (buffer.remaining() >= 8) {
+            byte[] extension = new byte[4];
+            buffer.get(extension);
+            int extensionLength = buffer.getInt();
+            if (extensionLength < 0 || extensionLength > buffer.remaining()) {
+                throw new IOException("Corrupt index: extension "
+                        + new String(extension, StandardCharsets.US_ASCII) + " runs past the end of the index");
+            }
+            byte[] extensionData = new byte[extensionLength];
+            buffer.get(extensionData);
+            if (new String(extension, StandardCharsets.US_ASCII).equals(UntrackedCache.SIGNATURE)) {
+                untrackedCache = extensionData;
             }
+        }
+
+        return new ParsedIndex(entries, untrackedCache);
+    }
 
-            // Compute checksum
-            byte[] content = baos.toByteArray();
-            byte[] checksum = HashUtils.computeSHA1Bytes(content);
-            baos.write(checksum);
 
-            // Write all data to the file
-            fos.write(baos.toByteArray());
+
+    /**
+     * Replaces the index through its lock, so readers see the old or the new index, never a
+     * partial one. The untracked cache is kept, less the directories of files that left the index.
+     */
+    void writeIndex(LockFile lock, PathTrie entries) throws IOException {
+        UntrackedCache cache = null;
+        if (indexFile.exists()) {
+            ParsedIndex current = RepoCache.readParsed(indexFile, this::parseIndex);
+            if (current.untrackedCache() != null) {
+                cache = UntrackedCache.parse(workTree, current.untrackedCache());
+                PathTrie oldEntries = current.entries();
+                for (int file = 0; file < oldEntries.size(); file++) {
+                    String path = oldEntries.getPath(file);
+                    if (!entries.contains(path)) {
+                        cache.invalidateParent(path);
+                    }
+                }
+            }
         }
+        writeIndex(lock, entries, cache);
     }
 
+    private void writeIndex(LockFile lock, PathTrie entries, UntrackedCache untrackedCache) throws IOException {
+        PathTrie oldEntries = indexFile.exists() ? RepoCache.readParsed(indexFile, this::parseIndex).entries() : null;
+        long oldIndexMillis = indexModifiedMillis();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        // Write header
+        baos.write("DIRC".getBytes(StandardCharsets.UTF_8)); // Signature
+        baos.write(intToBytes(2));
+        baos.write(intToBytes(entries.size()));
+
+        // Write entries, copying path and SHA bytes from the trie
+        for (int file = 0; file < entries.size(); file++) {
+            long modifiedTime = entries.getModifiedTime(file);
+            baos.write(intToBytes((int) (modifiedTime / 1000)));
+            baos.write(intToBytes((int) (modifiedTime % 1000 * 1_000_000)));
+            baos.write(intToBytes(0)); // dev
+            baos.write(intToBytes(0)); // ino
+            baos.write(intToBytes(0)); // mode
+            baos.write(intToBytes(0)); // uid
+            baos.write(intToBytes(0)); // gid
+            baos.write(intToBytes(isRacilyChanged(entries, file, oldEntries, oldIndexMillis) ? 0 : (int) entries.getSize(file)));
+            entries.writeSha1(file, baos);
+            baos.write(shortToBytes(0));
+
+            // Write path
+            int pathLength = entries.getPathLength(file);
+            entries.writePath(file, baos);
+            baos.write(0); // Null-terminator for path
+
+            // Add padding, counted in encoded bytes as the reader does
+            int entryLength = ((62 + pathLength + 8) / 8) * 8;
+            int paddingLength = entryLength - (62 + pathLength);
+            baos.write(new byte[paddingLength]); // Write padding as zeros
+        }
 
+        if (untrackedCache != null) {
+            byte[] extension = untrackedCache.toBytes();
+            baos.write(UntrackedCache.SIGNATURE.getBytes(StandardCharsets.US_ASCII));
+            baos.write(intToBytes(extension.length));
+            baos.write(extension);
+        }
 
+        // Compute checksum
+        byte[] content = baos.toByteArray();
+        byte[] checksum = HashUtils.computeSHA1Bytes(content);
+        baos.write(checksum);
 
+        // Rename the finished index into place
+        lock.commit(baos.toByteArray());
+    }
+
+    /**
+     * Returns whether an entry carried over from the old index is racy and its file changed
+     * since. Such an entry is written with size 0 (smudged): once the new index is newer than
+     * the file, matching stat data would otherwise pass it as clean for good.
+     */
+    private boolean isRacilyChanged(PathTrie entries, int file, PathTrie oldEntries, long oldIndexMillis) throws IOException {
+        long modifiedTime = entries.getModifiedTime(file);
+        long size = entries.getSize(file);
+        if (oldEntries == null || modifiedTime < oldIndexMillis || size == 0 || entries.isDirectoryEntry(file)) {
+            return false;
+        }
+        // Entries restaged by this write are checked against the new index instead
+        IndexEntry entry = entries.getEntry(file);
+        int old = oldEntries.find(entry.getPath());
+        if (old < 0 || oldEntries.getModifiedTime(old) != modifiedTime
+                || oldEntries.getSize(old) != size || !oldEntries.getSha1(old).equals(entry.getSha1())) {
+            return false;
+        }
+        // A file whose stat data no longer matches is seen as changed anyway
+        File workingFile = new File(workTree, entry.getPath());
+        if (!workingFile.isFile() || workingFile.length() != size || workingFile.lastModified() != modifiedTime) {
+            return false;
+        }
+        byte[] data = readFile(workingFile);
+        return !ObjectStore.hashObject("blob", data, 0, data.length).equals(entry.getSha1());
+    }
 }
@@ -2,7 +2,6 @@ package org.scm.core;
 
 import java.io.*;
 import java.nio.file.Files;
-import java.util.zip.InflaterInputStream;
 
 public class Initialize {
     public static final String YELLOW_COLOR = "\033[33;1m";
@@ -49,14 +48,11 @@ public class Initialize {
     }
 
     public static void readBlob(String hash){
-        String directoryHash = hash.substring(0, 2);
-        String fileHash = hash.substring(2);
-
-        File blobFile = new File("./.gitty/objects/" + directoryHash + "/" + fileHash);
         try {
-            String blob = new BufferedReader(new InputStreamReader(new InflaterInputStream(new FileInputStream(blobFile)))).readLine();
-            String content = blob.substring(blob.indexOf("\0")+1);
-            System.out.print(content);
+            // Goes through the object store so chunked blobs come back whole
+            byte[] content = new ObjectStore().readContent(hash);
+            System.out.write(content);
+            System.out.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -83,14 +79,26 @@ public class Initialize {
         System.out.println("\n\tAll the command list\n");
         System.out.println("\t" + "\u001B[31m" + "init" + "\u001B[0m" + " - Initialize a new Gitty repository.");
         System.out.println("\t" + "\u001B[31m" + "cat-file <hash>" + "\u001B[0m" + " - View the contents of a blob by its hash.");
-        System.out.println("\t" + "\u001B[31m" + "add" + "\u001B[0m" + " - Add files to the staging area.");
+        System.out.println("\t" + "\u001B[31m" + "cat-file --batch" + "\u001B[0m" + " - Read object hashes from stdin and print a header and the contents of each.");
+        System.out.println("\t" + "\u001B[31m" + "add [--stats]" + "\u001B[0m" + " - Add files to the staging area; --stats shows the throughput of each staging stage.");
         System.out.println("\t" + "\u001B[31m" + "commit <message> [authorName] [authorEmail]" + "\u001B[0m" + " - Commit staged changes with a message and optional author info.");
-        System.out.println("\t" + "\u001B[31m" + "log" + "\u001B[0m" + " - View the commit history.");
+        System.out.println("\t" + "\u001B[31m" + "log [-n count] [--skip count] [--date-order | --topo-order] [path]" + "\u001B[0m" + " - View the commit history, optionally only commits that changed a path.");
+        System.out.println("\t" + "\u001B[31m" + "grep [-i] [-n] [-l] <pattern> [--cached | revision]" + "\u001B[0m" + " - Search the working tree, the index or a commit's files for a regular expression.");
+        System.out.println("\t" + "\u001B[31m" + "archive [--format=tar|zip] [--prefix=<dir>/] [-o <file>] <commit>" + "\u001B[0m" + " - Write the files of a commit as a tar or zip archive to stdout or a file.");
+        System.out.println("\t" + "\u001B[31m" + "bench [--files=N] [--depth=N] [--blob-size=BYTES] [--blob-sigma=S] [--commits=N] [--branches=N] [--iterations=N] [--seed=N] [--dir=<dir>] [--keep] [-o <file>]" + "\u001B[0m" + " - Time the commands on a generated repository and report the results as JSON.");
+        System.out.println("\t" + "\u001B[31m" + "blame <path> [commit]" + "\u001B[0m" + " - Show which commit last changed each line of a file.");
         System.out.println("\t" + "\u001B[31m" + "branch <branchName>" + "\u001B[0m" + " - Create a new branch.");
         System.out.println("\t" + "\u001B[31m" + "checkout <branchName>" + "\u001B[0m" + " - Switch to a specified branch.");
         System.out.println("\t" + "\u001B[31m" + "merge <branchName>" + "\u001B[0m" + " - Merge the specified branch into the current branch.");
         System.out.println("\t" + "\u001B[31m" + "status" + "\u001B[0m" + " - Display the status of the working directory.");
         System.out.println("\t" + "\u001B[31m" + "diffs" + "\u001B[0m" + " - View differences between the working directory and the index.");
+        System.out.println("\t" + "\u001B[31m" + "config <key> [value]" + "\u001B[0m" + " - Read or set a repository option, e.g. core.chunkedBlobs.");
+        System.out.println("\t" + "\u001B[31m" + "sparse-checkout set <dir>... | list | disable" + "\u001B[0m" + " - Check out only the given directories.");
+        System.out.println("\t" + "\u001B[31m" + "gc" + "\u001B[0m" + " - Refresh the reachability bitmaps and prune unreachable objects.");
+        System.out.println("\t" + "\u001B[31m" + "count-objects [commit]" + "\u001B[0m" + " - Count the objects reachable from a commit or from all refs.");
+        System.out.println("\t" + "\u001B[31m" + "fetch <path> [branchName]" + "\u001B[0m" + " - Download missing commits from another repository into origin/<branch>.");
+        System.out.println("\t" + "\u001B[31m" + "push <path> [branchName]" + "\u001B[0m" + " - Send a branch to another repository (fast-forward only).");
+        System.out.println("\t" + "\u001B[31m" + "daemon" + "\u001B[0m" + " - Serve commands for this repository from a warm background process.");
         System.out.println("\n\tUse 'gitty --help' to view this list again.");
     }
 }
@@ -0,0 +1,152 @@
+package org.scm.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+
+/**
+ * An exclusive {@code <file>.lock} guarding a read-modify-write of a repository file such as
+ * the index or a ref.
+ *
+ * <p>The lock file is created with {@link StandardOpenOption#CREATE_NEW}, which fails if it
+ * exists, so only one writer gets it. The writer also holds an OS lock on it
+ * ({@link FileChannel#tryLock()}) until it is done; that lock goes away when the process dies,
+ * so a lock file nobody holds is known to be left behind by a crash rather than in use. The new
+ * content is written into the lock file and renamed over the target, so readers see either
+ * the old or the new file, never a partial one. How far the content is synced first follows
+ * {@code core.fsync} ({@link Durability}); objects still pending in batch mode are synced before
+ * any lock file is renamed.
+ *
+ * <p>A writer that finds the lock taken retries until {@code core.lockTimeout} milliseconds
+ * (default 5000) have passed, so concurrent commands wait for each other instead of failing.
+ */
+class LockFile implements Closeable {
+    static final String LOCK_TIMEOUT_KEY = "core.lockTimeout";
+    private static final long DEFAULT_LOCK_TIMEOUT = 5000;
+    private static final long MAX_BACKOFF_MILLIS = 100;
+
+    private final File target;
+    private final Path lockPath;
+    private final FileChannel channel;
+    private final FileLock osLock;
+    private final Durability durability;
+    private boolean committed;
+
+    private LockFile(File target, Path lockPath, FileChannel channel, FileLock osLock, Durability durability) {
+        this.target = target;
+        this.lockPath = lockPath;
+        this.channel = channel;
+        this.osLock = osLock;
+        this.durability = durability;
+    }
+
+    /**
+     * Returns how long the repository's commands wait for a lock, in milliseconds.
+     */
+    static long timeout(File gitDir) {
+        return new RepoConfig(gitDir).getLong(LOCK_TIMEOUT_KEY, DEFAULT_LOCK_TIMEOUT);
+    }
+
+    /**
+     * Takes the lock of a file, waiting up to the timeout while another writer holds it.
+     *
+     * @param name the name of the file for error messages, such as {@code index} or a ref name
+     * @throws IOException if the lock is still taken after the timeout
+     */
+    static LockFile acquire(File target, String name, long timeoutMillis, Durability durability) throws IOException {
+        Path lockPath = Path.of(target.getPath() + ".lock");
+        Files.createDirectories(lockPath.toAbsolutePath().getParent());
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        long backoff = 1;
+        while (true) {
+            try {
+                return create(target, lockPath, durability);
+            } catch (FileAlreadyExistsException e) {
+                if (System.nanoTime() - deadline >= 0) {
+                    throw new IOException("Unable to lock " + name + ": " + lockPath + " exists and "
+                            + (isHeld(lockPath) ? "another process is using it."
+                            : "no process holds it; remove it if no gitty command is running."));
+                }
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the lock of " + name, e);
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Takes the lock of a file only if it is free, for writes that may as well be skipped.
+     *
+     * @return the lock, or null if another writer holds it
+     */
+    static LockFile tryAcquire(File target, Durability durability) throws IOException {
+        Path lockPath = Path.of(target.getPath() + ".lock");
+        try {
+            return create(target, lockPath, durability);
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        }
+    }
+
+    private static LockFile create(File target, Path lockPath, Durability durability) throws IOException {
+        FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        // Nobody else can have opened a file this process just created, so this succeeds
+        FileLock osLock = channel.tryLock();
+        return new LockFile(target, lockPath, channel, osLock, durability);
+    }
+
+    /**
+     * Writes the new content and renames the lock file over the target, syncing both as the
+     * repository's durability mode asks.
+     */
+    void commit(byte[] content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        durability.commitFile(channel, lockPath, target.toPath());
+        committed = true;
+    }
+
+    /**
+     * Releases the lock. Without a commit the lock file is removed and the target stays as it was.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // After a commit the lock name may already belong to the next writer
+            if (!committed) {
+                Files.deleteIfExists(lockPath);
+            }
+        } finally {
+            if (osLock != null) {
+                osLock.release();
+            }
+            channel.close();
+        }
+    }
+
+    private static boolean isHeld(Path lockPath) {
+        try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true; // Held by this JVM
+        } catch (IOException e) {
+            return true; // Gone or unreadable: assume a writer is still at work
+        }
+    }
+}
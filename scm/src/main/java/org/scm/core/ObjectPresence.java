@@ -0,0 +1,186 @@
+package org.scm.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The loose objects of a repository, known from one scan of the fan-out directories under
+ * {@code objects/} so that asking for an object costs no filesystem call.
+ *
+ * <p>Each object is kept as the first 64 bits of its SHA in a sorted array, 8 bytes per object,
+ * searched by bisection. Objects this process writes or deletes afterwards are tracked on top.
+ * Two different objects sharing 64 bits is improbable enough (below 10^-9 for a billion objects)
+ * that a hit is taken as present. A miss only means the object did not exist when the scan ran,
+ * since another process may have written it since.
+ *
+ * <p>The scan is shared by every {@link ObjectStore} on the same directory in this JVM, and is
+ * redone if the {@code objects} directory itself is replaced, such as by a new {@code init}.
+ * A process that outlives one command, such as the daemon, marks the scans stale between
+ * commands with {@link #markStale()}: another process may have pruned objects meanwhile, so a
+ * hit from before the mark is only trusted once the object's file is seen on disk again.
+ */
+class ObjectPresence {
+    private static final Map<Path, ObjectPresence> scans = new ConcurrentHashMap<>();
+
+    private final File objectsDir;
+    private final Object directoryKey;
+    private final long[] prefixes;
+    private final Set<Long> added = ConcurrentHashMap.newKeySet();
+    private final Set<Long> removed = ConcurrentHashMap.newKeySet();
+    // Objects seen or written since the scan was last marked stale
+    private final Set<Long> confirmed = ConcurrentHashMap.newKeySet();
+    private final boolean[] fanOutExists = new boolean[256];
+    private volatile boolean stale;
+
+    private ObjectPresence(File objectsDir, Object directoryKey) {
+        this.objectsDir = objectsDir;
+        this.directoryKey = directoryKey;
+        this.prefixes = scan(objectsDir);
+    }
+
+    /**
+     * Returns the scan of an objects directory, scanning it on first use.
+     */
+    static ObjectPresence of(File objectsDir) {
+        Path path = objectsDir.toPath().toAbsolutePath().normalize();
+        Object key = directoryKey(path);
+        return scans.compute(path, (p, scan) ->
+                scan != null && Objects.equals(scan.directoryKey, key) ? scan : new ObjectPresence(objectsDir, key));
+    }
+
+    /**
+     * Marks every scan of this JVM stale, so that objects known so far are checked on disk
+     * before they are trusted again.
+     */
+    static void markStale() {
+        for (ObjectPresence scan : scans.values()) {
+            scan.confirmed.clear();
+            scan.stale = true;
+        }
+    }
+
+    boolean contains(String sha) {
+        if (sha.length() != 40 || !isHex(sha)) {
+            return false;
+        }
+        long prefix = prefix(sha);
+        boolean known = added.contains(prefix) || !removed.contains(prefix) && Arrays.binarySearch(prefixes, prefix) >= 0;
+        if (!known || !stale || confirmed.contains(prefix)) {
+            return known;
+        }
+        // Known from before the scan went stale, so it may have been pruned since
+        File file = new File(objectsDir, sha.substring(0, 2) + "/" + sha.substring(2));
+        if (!Durability.pendingFile(file).exists()) {
+            remove(sha);
+            return false;
+        }
+        confirmed.add(prefix);
+        return true;
+    }
+
+    void add(String sha) {
+        long prefix = prefix(sha);
+        removed.remove(prefix);
+        added.add(prefix);
+        confirmed.add(prefix);
+        fanOutExists[fanOut(sha)] = true;
+    }
+
+    void remove(String sha) {
+        long prefix = prefix(sha);
+        added.remove(prefix);
+        removed.add(prefix);
+    }
+
+    /**
+     * Whether the fan-out directory of an object is known to exist, so writing it needs no mkdir.
+     */
+    boolean hasFanOut(String sha) {
+        return !stale && fanOutExists[fanOut(sha)]; // Once stale, the directory may have been removed
+    }
+
+    private long[] scan(File objectsDir) {
+        long[] found = new long[1024];
+        int count = 0;
+        String[] directories = objectsDir.list();
+        for (String directory : directories == null ? new String[0] : directories) {
+            if (directory.length() != 2 || hexValue(directory.charAt(0)) < 0 || hexValue(directory.charAt(1)) < 0) {
+                continue;
+            }
+            String[] names = new File(objectsDir, directory).list();
+            if (names == null) {
+                continue;
+            }
+            fanOutExists[fanOut(directory)] = true;
+            for (String name : names) {
+                // Skips temporary files and anything else that is not an object
+                if (name.length() != 38 || !isHex(name)) {
+                    continue;
+                }
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = prefix(directory, name);
+            }
+        }
+        long[] sorted = Arrays.copyOf(found, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static Object directoryKey(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return Objects.requireNonNullElse(attributes.fileKey(), attributes.creationTime());
+        } catch (IOException e) {
+            return null; // No objects directory yet
+        }
+    }
+
+    private static long prefix(String sha) {
+        long prefix = 0;
+        for (int i = 0; i < 16; i++) {
+            prefix = (prefix << 4) | hexValue(sha.charAt(i));
+        }
+        return prefix;
+    }
+
+    private static long prefix(String directory, String name) {
+        long prefix = ((long) hexValue(directory.charAt(0)) << 4) | hexValue(directory.charAt(1));
+        for (int i = 0; i < 14; i++) {
+            prefix = (prefix << 4) | hexValue(name.charAt(i));
+        }
+        return prefix;
+    }
+
+    private static int fanOut(String sha) {
+        return (hexValue(sha.charAt(0)) << 4) | hexValue(sha.charAt(1));
+    }
+
+    private static boolean isHex(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (hexValue(name.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
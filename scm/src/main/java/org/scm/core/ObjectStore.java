@@ -1,14 +1,579 @@
 package org.scm.core;
 
-import org.scm.utils.FileUtils;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
-import java.io.IOException;
+import static org.scm.utils.FileUtils.bytesToHex;
 
+/**
+ * Reads and writes loose objects under {@code .gitty/objects}.
+ *
+ * <p>Large blobs can be stored chunked: the object file named by the blob SHA then holds a
+ * {@code chunks} object listing the SHAs and lengths of {@code chunk} objects, and
+ * {@link #readObject(String)} reassembles them into a regular {@code blob} so callers never
+ * see the difference. Chunking is enabled with {@code core.chunkedBlobs=true} in
+ * {@code .gitty/config}; {@code core.chunkThreshold} sets the minimum blob size in bytes.
+ *
+ * <p>When objects reach the disk follows {@code core.fsync}, see {@link Durability}. Unless it
+ * is {@code none}, objects are written under a temporary name and renamed into place, so an
+ * object file is never seen half written.
+ */
 public class ObjectStore {
+    public static final String CHUNKED_BLOBS_KEY = "core.chunkedBlobs";
+    public static final String CHUNK_THRESHOLD_KEY = "core.chunkThreshold";
+    private static final long DEFAULT_CHUNK_THRESHOLD = 4L * 1024 * 1024;
+
+    // Each chunk-list entry is a raw SHA-1 followed by the chunk length
+    private static final int CHUNK_ENTRY_SIZE = 20 + 4;
+
+    // Deflated files up to this size are read into a reused buffer, larger ones are mapped
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+    // Enough for any "<type> <size>\0" header
+    private static final int HEADER_LIMIT = 64;
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+    private static final ThreadLocal<ByteBuffer> READ_BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
+
+    private final File objectsDir;
+    private final File gitDir;
+    private ObjectPresence presence;
+    private Durability durability;
+    private RepoConfig config;
+
+    /**
+     * An inflated object: its type, the size its header declares and the bytes, where the
+     * content starts at {@code contentStart}.
+     */
+    private record RawObject(String type, int size, byte[] data, int contentStart) {
+    }
+
+    public ObjectStore() {
+        this(new File(".gitty"));
+    }
+
+    public ObjectStore(File gitDir) {
+        this.gitDir = gitDir;
+        this.objectsDir = new File(gitDir, "objects");
+    }
+
+    public File getGitDir() {
+        return gitDir;
+    }
+
+    /**
+     * Returns the file holding an object, which for an object written in batch durability mode
+     * is its temporary file until it is synced.
+     */
+    public File getObjectFile(String sha) {
+        return Durability.pendingFile(objectPath(sha));
+    }
+
+    /**
+     * Syncs the objects this process wrote in batch durability mode and renames them into place.
+     * Replacing the index or a ref does this first; commands call it when they end.
+     */
+    public static void syncPendingObjects() throws IOException {
+        Durability.syncPendingObjects();
+    }
+
+    /**
+     * Makes objects known from earlier commands be checked on disk again before they are
+     * trusted, for a process that runs more than one command, since another process may have
+     * pruned them in between.
+     */
+    public static void revalidateKnownObjects() {
+        ObjectPresence.markStale();
+    }
+
+    private File objectPath(String sha) {
+        return new File(objectsDir, sha.substring(0, 2) + "/" + sha.substring(2));
+    }
+
+    private Durability durability() {
+        if (durability == null) {
+            durability = Durability.of(gitDir);
+        }
+        return durability;
+    }
+
+    /**
+     * Checks whether an object is stored. Objects known from a presence scan this process already
+     * ran are answered from memory; anything else costs one stat. A single lookup never starts
+     * the scan, which reads every fan-out directory. Reads need no check first, they fail with
+     * a {@link FileNotFoundException} on a missing object.
+     */
+    public boolean hasObject(String sha) {
+        if (presence != null && presence.contains(sha)) {
+            return true;
+        }
+        if (sha.length() == 40 && getObjectFile(sha).isFile()) {
+            if (presence != null) {
+                presence.add(sha);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an object is stored, from memory only. A "no" may be out of date if another
+     * process wrote the object since this one scanned the store, so this is for decisions where
+     * a wrong "no" only costs work, such as whether to write an object or ask a remote for it.
+     */
+    public boolean knowsObject(String sha) {
+        return presence().contains(sha);
+    }
+
+    /**
+     * Deletes a loose object, for pruning.
+     *
+     * @return false if it could not be deleted
+     */
+    public boolean deleteObject(String sha) {
+        if (!getObjectFile(sha).delete()) {
+            return false;
+        }
+        Durability.discardPending(objectPath(sha));
+        presence().remove(sha);
+        return true;
+    }
+
+    private ObjectPresence presence() {
+        if (presence == null) {
+            presence = ObjectPresence.of(objectsDir);
+        }
+        return presence;
+    }
+
+    /**
+     * Stores file content as a blob, chunked when the repository is configured for it.
+     *
+     * @param data the file content
+     * @return the SHA-1 of the blob, identical whether or not it was chunked
+     */
     public String storeBlob(byte[] data) throws IOException {
-        String sha1 = HashUtils.computeSHA1(data);
-        String path = ".gitty/objects/" + sha1.substring(0, 2) + "/" + sha1.substring(2);
-        FileUtils.writeCompressedFile(path, data);
+        if (!storesChunked(data.length)) {
+            return writeObject("blob", data);
+        }
+
+        String blobSha = hashObject("blob", data, 0, data.length);
+        if (knowsObject(blobSha)) {
+            return blobSha; // Same content already stored, nothing to write
+        }
+
+        // Only chunks that are not stored yet get written, so an edit costs the chunks it touched
+        ByteArrayOutputStream chunkList = new ByteArrayOutputStream();
+        int start = 0;
+        for (int end : ContentChunker.findBoundaries(data)) {
+            String chunkSha = hashObject("chunk", data, start, end - start);
+            if (!knowsObject(chunkSha)) {
+                writeRaw(chunkSha, header("chunk", end - start), data, start, end - start);
+            }
+            chunkList.write(HashUtils.hexToBytes(chunkSha));
+            chunkList.write(ByteBuffer.allocate(4).putInt(end - start).array());
+            start = end;
+        }
+
+        // The chunk list header carries the size of the whole blob, not of the list
+        byte[] listData = chunkList.toByteArray();
+        writeRaw(blobSha, header("chunks", data.length), listData, 0, listData.length);
+        return blobSha;
+    }
+
+    /**
+     * Whether a blob of this size is stored chunked, following {@code core.chunkedBlobs} and
+     * {@code core.chunkThreshold}.
+     */
+    boolean storesChunked(long size) {
+        if (config == null) {
+            config = new RepoConfig(gitDir);
+        }
+        return config.getBoolean(CHUNKED_BLOBS_KEY, false) && size >= config.getLong(CHUNK_THRESHOLD_KEY, DEFAULT_CHUNK_THRESHOLD);
+    }
+
+    /**
+     * Deflates an object with its header into the form stored on disk, for
+     * {@link #writeCompressed(String, byte[])}. Uses a deflater kept by the calling thread.
+     */
+    static byte[] compressObject(String objType, byte[] data) throws IOException {
+        Deflater deflater = DEFLATERS.get();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater)) {
+            dos.write(header(objType, data.length));
+            dos.write(data);
+        } finally {
+            deflater.reset();
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Writes an object of the given type and returns its SHA-1. Objects already stored are not
+     * written again.
+     */
+    public String writeObject(String objType, byte[] data) throws IOException {
+        String sha1 = hashObject(objType, data, 0, data.length);
+        if (!knowsObject(sha1)) {
+            writeRaw(sha1, header(objType, data.length), data, 0, data.length);
+        }
         return sha1;
     }
+
+    /**
+     * Reads an object and returns its decompressed bytes, header included.
+     * Chunked blobs are returned as a plain {@code blob} object.
+     *
+     * @param sha the SHA-1 of the object
+     * @return the object bytes in the form {@code "<type> <size>\0<content>"}
+     * @throws FileNotFoundException if the object does not exist
+     */
+    public byte[] readObject(String sha) throws IOException {
+        RawObject raw = inflate(sha, true);
+        if (!raw.type().equals("chunks")) {
+            return raw.data();
+        }
+        byte[] header = header("blob", raw.size());
+        byte[] result = new byte[header.length + raw.size()];
+        System.arraycopy(header, 0, result, 0, header.length);
+        assembleChunks(sha, raw, result, header.length);
+        return result;
+    }
+
+    /**
+     * Reads an object and returns its content without the header, inflated straight into an
+     * array of the size the header declares.
+     */
+    public byte[] readContent(String sha) throws IOException {
+        RawObject raw = inflate(sha, false);
+        if (!raw.type().equals("chunks")) {
+            return raw.data();
+        }
+        byte[] result = new byte[raw.size()];
+        assembleChunks(sha, raw, result, 0);
+        return result;
+    }
+
+    /**
+     * Returns the first bytes of an object's content, up to {@code length}, inflating no more
+     * than that, for looking at the start of a blob without reading all of it.
+     */
+    public byte[] readContentStart(String sha, int length) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        byte[] header = new byte[HEADER_LIMIT];
+        byte[] data;
+        try {
+            int inflated = inflateHeader(sha, inflater, readCompressedBuffer(sha), header);
+            int headerEnd = indexOf(header, inflated, (byte) 0);
+            int space = indexOf(header, headerEnd, (byte) ' ');
+            boolean chunked = space > 0 && new String(header, 0, space, StandardCharsets.UTF_8).equals("chunks");
+            if (chunked) {
+                data = null;
+            } else {
+                data = new byte[Math.min(length, declaredSize(sha, header, inflated))];
+                int filled = Math.min(inflated - headerEnd - 1, data.length);
+                System.arraycopy(header, headerEnd + 1, data, 0, filled);
+                while (filled < data.length) {
+                    int n = inflater.inflate(data, filled, data.length - filled);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Object " + sha + " is truncated");
+                    }
+                    filled += n;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Object " + sha + " is corrupt", e);
+        } finally {
+            inflater.reset(); // Let go of the input, which may be a mapped file
+        }
+        if (data != null) {
+            return data;
+        }
+
+        // A chunked blob starts with its first chunks
+        RawObject chunkList = inflate(sha, false);
+        ByteArrayOutputStream start = new ByteArrayOutputStream();
+        for (String chunkSha : listChunks(chunkList.data(), chunkList.contentStart())) {
+            if (start.size() >= length) {
+                break;
+            }
+            start.write(readContentStart(chunkSha, length - start.size()));
+        }
+        return start.toByteArray();
+    }
+
+    private void assembleChunks(String sha, RawObject chunkList, byte[] result, int offset) throws IOException {
+        int start = offset;
+        for (String chunkSha : listChunks(chunkList.data(), chunkList.contentStart())) {
+            byte[] chunk = inflate(chunkSha, false).data();
+            if (offset + chunk.length > result.length) {
+                break;
+            }
+            System.arraycopy(chunk, 0, result, offset, chunk.length);
+            offset += chunk.length;
+        }
+        if (offset - start != chunkList.size()) {
+            throw new IOException("Chunked blob " + sha + " is corrupt: expected " + chunkList.size() + " bytes");
+        }
+    }
+
+    /**
+     * Returns the chunk objects a blob is made of, or an empty list if it is stored whole.
+     */
+    public List<String> getChunkShas(String sha) throws IOException {
+        if (!readType(sha).equals("chunks")) {
+            return new ArrayList<>();
+        }
+        RawObject chunkList = inflate(sha, false);
+        return listChunks(chunkList.data(), chunkList.contentStart());
+    }
+
+    /**
+     * Returns the stored type of an object ({@code chunks} for a chunked blob), inflating
+     * only as much as the header needs.
+     */
+    public String readType(String sha) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        byte[] header = new byte[HEADER_LIMIT];
+        inflateHeader(sha, inflater, readCompressedBuffer(sha), header);
+        inflater.reset();
+        return new String(header, 0, indexOf(header, HEADER_LIMIT, (byte) ' '), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the content size an object's header declares, the size of the whole blob for a
+     * chunked one, inflating only as much as the header needs.
+     */
+    public int readSize(String sha) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        byte[] header = new byte[HEADER_LIMIT];
+        int inflated = inflateHeader(sha, inflater, readCompressedBuffer(sha), header);
+        inflater.reset();
+        return declaredSize(sha, header, inflated);
+    }
+
+    // Reads the size out of an inflated "<type> <size>\0" header
+    private static int declaredSize(String sha, byte[] header, int length) throws IOException {
+        int headerEnd = indexOf(header, length, (byte) 0);
+        int space = indexOf(header, headerEnd, (byte) ' ');
+        try {
+            return Integer.parseInt(new String(header, space + 1, headerEnd - space - 1, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IOException("Object " + sha + " has no valid header");
+        }
+    }
+
+    /**
+     * Returns the object file as stored on disk, still deflated, for copying between repositories.
+     */
+    public byte[] readCompressed(String sha) throws IOException {
+        return Files.readAllBytes(getObjectFile(sha).toPath());
+    }
+
+    /**
+     * Stores an already deflated object received from another repository. The file is written
+     * under a temporary name and renamed so a reader never sees a partial object.
+     */
+    public void writeCompressed(String sha, byte[] compressed) throws IOException {
+        if (knowsObject(sha)) {
+            return;
+        }
+        File file = objectPath(sha);
+        boolean newDirectory = file.getParentFile().mkdirs();
+        File tempFile = File.createTempFile("obj", ".tmp", file.getParentFile());
+        boolean installed = false;
+        try {
+            Files.write(tempFile.toPath(), compressed);
+            durability().installObject(tempFile.toPath(), file.toPath(), newDirectory);
+            installed = true;
+            presence().add(sha);
+        } finally {
+            if (!installed) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private List<String> listChunks(byte[] chunkListObject, int start) {
+        List<String> chunkShas = new ArrayList<>();
+        for (int i = start; i + CHUNK_ENTRY_SIZE <= chunkListObject.length; i += CHUNK_ENTRY_SIZE) {
+            byte[] sha = new byte[20];
+            System.arraycopy(chunkListObject, i, sha, 0, 20);
+            chunkShas.add(bytesToHex(sha));
+        }
+        return chunkShas;
+    }
+
+    /**
+     * Inflates an object into one array, sized from the header before the content is read.
+     *
+     * @param withHeader whether the array starts with the {@code "<type> <size>\0"} header
+     */
+    private RawObject inflate(String sha, boolean withHeader) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        byte[] header = new byte[HEADER_LIMIT];
+        int inflated = inflateHeader(sha, inflater, readCompressedBuffer(sha), header);
+        int headerEnd = indexOf(header, inflated, (byte) 0);
+        int space = indexOf(header, headerEnd, (byte) ' ');
+        String type = new String(header, 0, space, StandardCharsets.UTF_8);
+        int size = declaredSize(sha, header, inflated);
+
+        // A chunk list is not as long as the blob size its header announces
+        int start = withHeader ? 0 : headerEnd + 1;
+        int expected = type.equals("chunks") ? -1 : headerEnd + 1 + size;
+        byte[] data = new byte[expected >= 0 ? expected - start : Math.max(inflated - start, 256)];
+        if (expected >= 0 && inflated > expected) {
+            throw new IOException("Object " + sha + " is larger than its header declares");
+        }
+        int length = inflated - start;
+        System.arraycopy(header, start, data, 0, length);
+        try {
+            while (!inflater.finished()) {
+                if (length == data.length) {
+                    if (expected >= 0) {
+                        throw new IOException("Object " + sha + " is larger than its header declares");
+                    }
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                int n = inflater.inflate(data, length, data.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Object " + sha + " is truncated");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Object " + sha + " is corrupt", e);
+        } finally {
+            inflater.reset(); // Let go of the input, which may be a mapped file
+        }
+        if (expected < 0) {
+            data = Arrays.copyOf(data, length);
+        } else if (length != data.length) {
+            throw new IOException("Object " + sha + " is truncated");
+        }
+        return new RawObject(type, size, data, withHeader ? headerEnd + 1 : 0);
+    }
+
+    /**
+     * Starts inflating an object and inflates at least its header into the given array.
+     *
+     * @return the number of bytes inflated, which may include the start of the content
+     */
+    private static int inflateHeader(String sha, Inflater inflater, ByteBuffer compressed, byte[] header) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        int length = 0;
+        try {
+            while (length < header.length && indexOf(header, length, (byte) 0) < 0 && !inflater.finished()) {
+                int n = inflater.inflate(header, length, header.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Object " + sha + " is corrupt", e);
+        }
+        if (indexOf(header, length, (byte) 0) < 0) {
+            throw new IOException("Object " + sha + " has no valid header");
+        }
+        return length;
+    }
+
+    /**
+     * Returns the deflated object file in a direct buffer, which the inflater reads without
+     * copying it onto the heap. Small files go through a buffer reused by the thread, large
+     * ones are mapped.
+     */
+    private ByteBuffer readCompressedBuffer(String sha) throws IOException {
+        try (FileChannel channel = FileChannel.open(getObjectFile(sha).toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = READ_BUFFERS.get();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocateDirect((int) Math.min(MAP_THRESHOLD, Math.max(size, buffer.capacity() * 2L)));
+                READ_BUFFERS.set(buffer);
+            }
+            buffer.clear().limit((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the whole file is in
+            }
+            return buffer.flip();
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Object not found: " + sha);
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte value) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeRaw(String sha1, byte[] header, byte[] data, int offset, int length) throws IOException {
+        File file = objectPath(sha1);
+        boolean newDirectory = !presence().hasFanOut(sha1) && file.getParentFile().mkdirs();
+        if (durability() == Durability.NONE) {
+            deflate(file, header, data, offset, length);
+            presence().add(sha1);
+            return;
+        }
+
+        File tempFile = File.createTempFile("obj", ".tmp", file.getParentFile());
+        boolean installed = false;
+        try {
+            deflate(tempFile, header, data, offset, length);
+            durability().installObject(tempFile.toPath(), file.toPath(), newDirectory);
+            installed = true;
+            presence().add(sha1);
+        } finally {
+            if (!installed) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    // Uses the thread's deflater; closing the stream closes the file but leaves a deflater it was given open
+    private static void deflate(File file, byte[] header, byte[] data, int offset, int length) throws IOException {
+        Deflater deflater = DEFLATERS.get();
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(new FileOutputStream(file), deflater)) {
+            dos.write(header);
+            dos.write(data, offset, length);
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    static String hashObject(String objType, byte[] data, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(header(objType, length));
+            digest.update(data, offset, length);
+            return bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 algorithm not found", e);
+        }
+    }
+
+    private static byte[] header(String objType, int size) {
+        return (objType + " " + size + "\0").getBytes(StandardCharsets.UTF_8);
+    }
 }
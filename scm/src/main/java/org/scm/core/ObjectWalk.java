@@ -0,0 +1,270 @@
+package org.scm.core;
+
+import org.scm.models.Commit;
+import org.scm.models.TreeEntry;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Walks commit history and trees to find what one repository has that another lacks.
+ *
+ * <p>Commits are visited newest first. Commits reachable from the "have" side are marked
+ * uninteresting and the walk stops once only uninteresting commits are left, so the cost
+ * depends on how far the two sides diverged, not on the length of the history.
+ */
+public class ObjectWalk {
+    private final ObjectStore objectStore;
+    private final CommitManager commitManager;
+    private final TreeManager treeManager;
+
+    public ObjectWalk(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+        this.commitManager = new CommitManager(objectStore);
+        this.treeManager = new TreeManager(objectStore);
+    }
+
+    /**
+     * Lists every object reachable from the wanted commits that is not reachable from the
+     * commits the other side already has, including blob chunks. Uses the bitmap index when
+     * the repository has one.
+     *
+     * @param wants commits the receiver asked for, all present in this store
+     * @param haves commits the receiver has; ones unknown to this store are ignored
+     */
+    public List<String> findObjectsToSend(Collection<String> wants, Collection<String> haves) throws IOException {
+        // With bitmaps the answer is reachable(wants) minus reachable(haves), no tree walking
+        BitmapIndex bitmapIndex = BitmapIndex.open(objectStore.getGitDir());
+        if (bitmapIndex != null) {
+            List<String> knownHaves = new ArrayList<>();
+            for (String have : haves) {
+                if (objectStore.knowsObject(have)) {
+                    knownHaves.add(have);
+                }
+            }
+            BitmapIndex.ReachableObjects objects = bitmapIndex.reachable(wants, objectStore);
+            objects.removeAll(bitmapIndex.reachable(knownHaves, objectStore));
+            return objects.toList();
+        }
+        return walkObjects(wants, haves);
+    }
+
+    /**
+     * Checks that every object reachable from a commit is stored, such as a pushed branch tip
+     * before a ref is moved to it. History reachable from the given complete commits, say the
+     * tips of existing refs, is taken as stored and not read.
+     */
+    public boolean isComplete(String tipSha, Collection<String> completeShas) throws IOException {
+        List<String> objects;
+        try {
+            objects = walkObjects(List.of(tipSha), completeShas);
+        } catch (FileNotFoundException e) {
+            return false; // A commit, tree or blob the walk had to read is not there
+        }
+        // Chunks are listed, not read, by the walk
+        for (String sha : objects) {
+            if (!objectStore.hasObject(sha)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Lists the objects reachable from wants and not from haves by walking commits and trees
+    private List<String> walkObjects(Collection<String> wants, Collection<String> haves) throws IOException {
+        Set<String> boundary = new HashSet<>();
+        List<String> newCommits = findNewCommits(wants, haves, boundary);
+
+        // Everything in the trees of the boundary commits is already on the other side
+        Set<String> seen = new HashSet<>();
+        for (String commitSha : boundary) {
+            markTree(commitManager.readCommit(commitSha).getTreeSha(), seen);
+        }
+
+        List<String> objects = new ArrayList<>(newCommits);
+        for (String commitSha : newCommits) {
+            addTree(commitManager.readCommit(commitSha).getTreeSha(), seen, objects);
+        }
+        return objects;
+    }
+
+    /**
+     * Lists the commits reachable from wants but not from haves, newest first.
+     *
+     * @param boundary receives the uninteresting commits the walk touched
+     */
+    public List<String> findNewCommits(Collection<String> wants, Collection<String> haves, Set<String> boundary) throws IOException {
+        Map<String, Boolean> uninteresting = new HashMap<>();
+        Map<String, Long> commitTimes = new HashMap<>();
+        PriorityQueue<String> queue = new PriorityQueue<>(
+                Comparator.comparing((String sha) -> commitTimes.get(sha)).reversed());
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        Set<String> processed = new HashSet<>();
+        int interestingQueued = 0; // Queued commits not reachable from the haves so far
+
+        for (String have : haves) {
+            if (objectStore.knowsObject(have)) {
+                interestingQueued += enqueue(have, true, uninteresting, commitTimes, queue, result);
+            }
+        }
+        for (String want : wants) {
+            interestingQueued += enqueue(want, false, uninteresting, commitTimes, queue, result);
+        }
+
+        while (interestingQueued > 0) {
+            String sha = queue.poll();
+            boolean flag = uninteresting.get(sha);
+            if (!flag) {
+                interestingQueued--;
+            }
+            if (!processed.add(sha + flag)) {
+                continue; // Already expanded with this flag
+            }
+
+            if (!flag) {
+                result.add(sha);
+            }
+            for (String parent : commitManager.readCommit(sha).getParentShas()) {
+                interestingQueued += enqueue(parent, flag, uninteresting, commitTimes, queue, result);
+            }
+        }
+
+        for (Map.Entry<String, Boolean> entry : uninteresting.entrySet()) {
+            if (entry.getValue()) {
+                boundary.add(entry.getKey());
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Checks whether a commit is reachable from another one.
+     */
+    public boolean isAncestor(String ancestorSha, String descendantSha) throws IOException {
+        if (ancestorSha.equals(descendantSha)) {
+            return true;
+        }
+        long ancestorTime = commitManager.readCommit(ancestorSha).getCommitTime();
+
+        Deque<String> pending = new ArrayDeque<>(List.of(descendantSha));
+        Set<String> visited = new HashSet<>();
+        while (!pending.isEmpty()) {
+            String sha = pending.pop();
+            if (sha.equals(ancestorSha)) {
+                return true;
+            }
+            if (!visited.add(sha)) {
+                continue;
+            }
+            Commit commit = commitManager.readCommit(sha);
+            // History older than the ancestor cannot lead back to it
+            if (commit.getCommitTime() >= ancestorTime) {
+                pending.addAll(commit.getParentShas());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the newest commit reachable from both commits, or null if their histories never meet.
+     */
+    public String findMergeBase(String oursSha, String theirsSha) throws IOException {
+        // Each commit collects a bit per side it is reachable from; the first with both is the base
+        Map<String, Integer> reachedFrom = new HashMap<>();
+        Map<String, Long> commitTimes = new HashMap<>();
+        PriorityQueue<String> queue = new PriorityQueue<>(
+                Comparator.comparing((String sha) -> commitTimes.get(sha)).reversed());
+        Set<String> expanded = new HashSet<>();
+        reachedFrom.put(oursSha, 1);
+        reachedFrom.merge(theirsSha, 2, (a, b) -> a | b);
+        for (String sha : reachedFrom.keySet()) {
+            commitTimes.put(sha, readCommitTime(sha));
+            queue.add(sha);
+        }
+
+        while (!queue.isEmpty()) {
+            String sha = queue.poll();
+            int flags = reachedFrom.get(sha);
+            if (flags == 3) {
+                return sha;
+            }
+            expanded.add(sha);
+            for (String parent : commitManager.readCommit(sha).getParentShas()) {
+                int old = reachedFrom.getOrDefault(parent, 0);
+                if ((old | flags) == old) {
+                    continue;
+                }
+                reachedFrom.put(parent, old | flags);
+                commitTimes.computeIfAbsent(parent, key -> readCommitTime(key));
+                // A commit already walked has to pass its new flag on to its ancestors too
+                if (old == 0 || expanded.remove(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Queues a commit with its flag and returns how the number of queued interesting commits changed
+    private int enqueue(String sha, boolean flag, Map<String, Boolean> uninteresting, Map<String, Long> commitTimes,
+                        PriorityQueue<String> queue, Set<String> result) throws IOException {
+        Boolean current = uninteresting.get(sha);
+        if (current != null && (current || !flag)) {
+            return 0; // Already known with the same or a stronger flag
+        }
+        int change = 0;
+        if (current != null) {
+            // Reached from the have side after all, so it and its ancestors are not new
+            if (queue.remove(sha)) {
+                change--;
+            }
+            result.remove(sha);
+        }
+        commitTimes.computeIfAbsent(sha, key -> readCommitTime(key));
+        uninteresting.put(sha, flag);
+        queue.add(sha);
+        return flag ? change : change + 1;
+    }
+
+    private long readCommitTime(String sha) {
+        try {
+            return commitManager.readCommit(sha).getCommitTime();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void markTree(String treeSha, Set<String> seen) throws IOException {
+        if (!seen.add(treeSha)) {
+            return;
+        }
+        for (TreeEntry entry : treeManager.readTreeEntries(treeSha)) {
+            if (entry.isDirectory()) {
+                markTree(entry.getSha1(), seen);
+            } else {
+                seen.add(entry.getSha1());
+            }
+        }
+    }
+
+    private void addTree(String treeSha, Set<String> seen, List<String> objects) throws IOException {
+        // An unchanged subtree has the same SHA, so it is skipped without being read
+        if (!seen.add(treeSha)) {
+            return;
+        }
+        objects.add(treeSha);
+        for (TreeEntry entry : treeManager.readTreeEntries(treeSha)) {
+            if (entry.isDirectory()) {
+                addTree(entry.getSha1(), seen, objects);
+            } else if (seen.add(entry.getSha1())) {
+                objects.add(entry.getSha1());
+                for (String chunkSha : objectStore.getChunkShas(entry.getSha1())) {
+                    if (seen.add(chunkSha)) {
+                        objects.add(chunkSha);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package org.scm.core;
+
+import org.scm.models.IndexEntry;
+import org.scm.utils.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Index entries stored by directory, for indexes too large to keep as one {@link IndexEntry}
+ * with its own path and SHA strings per file.
+ *
+ * <p>Each directory is a node holding its name and full path once, so the prefix shared by the
+ * files below it is not repeated. A file is a number: its name bytes sit in one shared byte
+ * array, its raw 20-byte SHA in another, and its stat data and directory in parallel arrays,
+ * about a third of the memory of the objects it replaces. {@link IndexEntry} objects are only
+ * made when asked for.
+ *
+ * <p>Paths follow the index, relative to the working tree with a leading "./", so the root node
+ * is the directory {@code "."}. A path ending in "/" (a sparse checkout directory entry) is a
+ * file of its parent whose name ends in "/". Files are listed in the order they were added by
+ * {@link #forEach}, and in name order when walking a directory, which is the order trees are
+ * written in. A trie shared through {@link RepoCache} must not be added to.
+ */
+public class PathTrie {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Directory root = new Directory(".", ".", null);
+    private int fileCount;
+    private Directory[] fileDirectories = new Directory[16];
+    private int[] nameStarts = new int[17];
+    private byte[] names = new byte[256];
+    private byte[] shas = new byte[16 * 20];
+    private long[] modifiedTimes = new long[16];
+    private long[] sizes = new long[16];
+
+    /**
+     * A directory: its subdirectories by name and the numbers of the files directly inside it.
+     */
+    public class Directory {
+        private final String name;
+        private final String path;
+        private final byte[] pathBytes;
+        private final Directory parent;
+        private TreeMap<String, Directory> subdirectories;
+        private int[] files = new int[4];
+        private int count;
+        private boolean sorted = true;
+
+        private Directory(String name, String path, Directory parent) {
+            this.name = name;
+            this.path = path;
+            this.pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            this.parent = parent;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the path from the working tree, such as {@code "./src/main"}.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public Directory getParent() {
+            return parent;
+        }
+
+        /**
+         * Returns the subdirectories in name order.
+         */
+        public Collection<Directory> getSubdirectories() {
+            return subdirectories == null ? List.of() : subdirectories.values();
+        }
+
+        public Directory getSubdirectory(String name) {
+            return subdirectories == null ? null : subdirectories.get(name);
+        }
+
+        /**
+         * Returns the numbers of the files directly inside this directory, in name order.
+         */
+        public synchronized int[] getFiles() {
+            if (!sorted) {
+                Integer[] boxed = new Integer[count];
+                for (int i = 0; i < count; i++) {
+                    boxed[i] = files[i];
+                }
+                Arrays.sort(boxed, PathTrie.this::compareNames);
+                for (int i = 0; i < count; i++) {
+                    files[i] = boxed[i];
+                }
+                sorted = true;
+            }
+            return Arrays.copyOf(files, count);
+        }
+
+        private Directory subdirectory(String name) {
+            if (subdirectories == null) {
+                subdirectories = new TreeMap<>();
+            }
+            return subdirectories.computeIfAbsent(name, n -> new Directory(n, path + "/" + n, this));
+        }
+
+        private synchronized void addFile(int file) {
+            if (count == files.length) {
+                files = Arrays.copyOf(files, count * 2);
+            }
+            files[count++] = file;
+            sorted = false;
+        }
+    }
+
+    public static PathTrie of(List<IndexEntry> entries) {
+        PathTrie trie = new PathTrie();
+        for (IndexEntry entry : entries) {
+            trie.add(entry);
+        }
+        return trie;
+    }
+
+    /**
+     * Adds a file. Paths must be unique; adding a path twice stores it twice.
+     */
+    public void add(IndexEntry entry) {
+        byte[] path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+        add(path, 0, path.length, FileUtils.hexToBytes(entry.getSha1()), 0, entry.getModifiedTime(), entry.getSize());
+    }
+
+    /**
+     * Adds a file from raw index data, without making strings of its path or SHA.
+     *
+     * @param path the UTF-8 path bytes, such as {@code "./src/a.txt"}
+     * @param sha  the raw 20-byte SHA at {@code shaOffset}
+     */
+    public void add(byte[] path, int pathOffset, int pathLength, byte[] sha, int shaOffset, long modifiedTime, long size) {
+        int end = pathOffset + pathLength;
+        int start = pathOffset;
+        // The leading "." is the root; a path without it is taken as relative to the root as well
+        if (end - start >= 2 && path[start] == '.' && path[start + 1] == '/') {
+            start += 2;
+        }
+
+        // A trailing "/" belongs to the name of a sparse directory entry, not to the path
+        int nameEnd = end > start && path[end - 1] == '/' ? end - 1 : end;
+        Directory directory = root;
+        int segmentStart = start;
+        for (int i = start; i < nameEnd; i++) {
+            if (path[i] == '/') {
+                directory = directory.subdirectory(new String(path, segmentStart, i - segmentStart, StandardCharsets.UTF_8));
+                segmentStart = i + 1;
+            }
+        }
+
+        int file = fileCount++;
+        ensureCapacity(fileCount, end - segmentStart);
+        fileDirectories[file] = directory;
+        int nameStart = nameStarts[file];
+        System.arraycopy(path, segmentStart, names, nameStart, end - segmentStart);
+        nameStarts[file + 1] = nameStart + end - segmentStart;
+        System.arraycopy(sha, shaOffset, shas, file * 20, 20);
+        modifiedTimes[file] = modifiedTime;
+        sizes[file] = size;
+        directory.addFile(file);
+    }
+
+    /**
+     * Returns a copy of this trie with the given entries in it: an entry whose path is stored
+     * replaces that file's SHA and stat data, the others are added after the stored files.
+     * The arrays are copied as they are, so no entry is made for the files left alone.
+     */
+    public PathTrie with(Collection<IndexEntry> entries) {
+        PathTrie copy = new PathTrie();
+        Map<Directory, Directory> directories = new IdentityHashMap<>();
+        copyDirectory(root, copy.root, directories);
+        copy.fileCount = fileCount;
+        copy.fileDirectories = new Directory[fileDirectories.length];
+        for (int file = 0; file < fileCount; file++) {
+            copy.fileDirectories[file] = directories.get(fileDirectories[file]);
+        }
+        copy.nameStarts = nameStarts.clone();
+        copy.names = names.clone();
+        copy.shas = shas.clone();
+        copy.modifiedTimes = modifiedTimes.clone();
+        copy.sizes = sizes.clone();
+
+        for (IndexEntry entry : entries) {
+            int file = copy.find(entry.getPath());
+            if (file < 0) {
+                copy.add(entry);
+            } else {
+                System.arraycopy(FileUtils.hexToBytes(entry.getSha1()), 0, copy.shas, file * 20, 20);
+                copy.modifiedTimes[file] = entry.getModifiedTime();
+                copy.sizes[file] = entry.getSize();
+            }
+        }
+        return copy;
+    }
+
+    private static void copyDirectory(Directory source, Directory target, Map<Directory, Directory> directories) {
+        directories.put(source, target);
+        int[] files = source.getFiles();
+        target.files = files.length == 0 ? new int[4] : files;
+        target.count = files.length;
+        for (Directory subdirectory : source.getSubdirectories()) {
+            copyDirectory(subdirectory, target.subdirectory(subdirectory.name), directories);
+        }
+    }
+
+    public int size() {
+        return fileCount;
+    }
+
+    /**
+     * Returns the root directory, {@code "."}.
+     */
+    public Directory getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns a directory by its path, such as {@code "./src"} or {@code "src"}, or null if no
+     * file is stored below it.
+     */
+    public Directory findDirectory(String path) {
+        Directory directory = root;
+        for (String segment : segments(path)) {
+            directory = directory.getSubdirectory(segment);
+            if (directory == null) {
+                return null;
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Returns the number of a file by its path, or -1 if there is no such file.
+     */
+    public int find(String path) {
+        String normalized = path.startsWith("./") ? path.substring(2) : path;
+        int slash = normalized.endsWith("/") ? normalized.lastIndexOf('/', normalized.length() - 2) : normalized.lastIndexOf('/');
+        Directory directory = slash < 0 ? root : findDirectory(normalized.substring(0, slash));
+        if (directory == null) {
+            return -1;
+        }
+        byte[] name = normalized.substring(slash + 1).getBytes(StandardCharsets.UTF_8);
+        int[] files = directory.getFiles();
+        int low = 0;
+        int high = files.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int file = files[middle];
+            int comparison = Arrays.compareUnsigned(names, nameStarts[file], nameStarts[file + 1], name, 0, name.length);
+            if (comparison == 0) {
+                return file;
+            } else if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(String path) {
+        return find(path) >= 0;
+    }
+
+    /**
+     * Visits every file in the order the files were added.
+     */
+    public void forEach(Consumer<IndexEntry> action) {
+        for (int file = 0; file < fileCount; file++) {
+            action.accept(getEntry(file));
+        }
+    }
+
+    /**
+     * Visits the files below a directory depth first, each directory's files in name order
+     * before its subdirectories.
+     *
+     * @param directory a path such as {@code "./src"}; "." for every file
+     */
+    public void forEachUnder(String directory, Consumer<IndexEntry> action) {
+        Directory start = findDirectory(directory);
+        if (start != null) {
+            walk(start, action);
+        }
+    }
+
+    private void walk(Directory directory, Consumer<IndexEntry> action) {
+        for (int file : directory.getFiles()) {
+            action.accept(getEntry(file));
+        }
+        for (Directory subdirectory : directory.getSubdirectories()) {
+            walk(subdirectory, action);
+        }
+    }
+
+    /**
+     * Returns every file as a new entry, in the order the files were added.
+     */
+    public List<IndexEntry> toEntries() {
+        List<IndexEntry> entries = new ArrayList<>(fileCount);
+        forEach(entries::add);
+        return entries;
+    }
+
+    public IndexEntry getEntry(int file) {
+        return new IndexEntry(getPath(file), getSha1(file), modifiedTimes[file], sizes[file]);
+    }
+
+    public String getPath(int file) {
+        return fileDirectories[file].path + "/" + getName(file);
+    }
+
+    /**
+     * Returns the name of a file within its directory.
+     */
+    public String getName(int file) {
+        return new String(names, nameStarts[file], nameStarts[file + 1] - nameStarts[file], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns whether a file is the entry of an unselected sparse checkout directory.
+     */
+    public boolean isDirectoryEntry(int file) {
+        int end = nameStarts[file + 1];
+        return end > nameStarts[file] && names[end - 1] == '/';
+    }
+
+    /**
+     * Returns the length of a file's path, such as {@code "./src/a.txt"}, in UTF-8 bytes.
+     */
+    public int getPathLength(int file) {
+        return fileDirectories[file].pathBytes.length + 1 + nameStarts[file + 1] - nameStarts[file];
+    }
+
+    /**
+     * Writes the UTF-8 path of a file, as {@link #getPath} returns it, without decoding its name.
+     */
+    public void writePath(int file, ByteArrayOutputStream out) {
+        out.writeBytes(fileDirectories[file].pathBytes);
+        out.write('/');
+        writeName(file, out);
+    }
+
+    /**
+     * Writes the UTF-8 name of a file, as stored, without decoding it.
+     */
+    public void writeName(int file, ByteArrayOutputStream out) {
+        out.write(names, nameStarts[file], nameStarts[file + 1] - nameStarts[file]);
+    }
+
+    public String getSha1(int file) {
+        char[] hex = new char[40];
+        for (int i = 0; i < 20; i++) {
+            int b = shas[file * 20 + i] & 0xff;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Writes the raw 20-byte SHA of a file, as stored in tree objects.
+     */
+    public void writeSha1(int file, ByteArrayOutputStream out) {
+        out.write(shas, file * 20, 20);
+    }
+
+    public long getModifiedTime(int file) {
+        return modifiedTimes[file];
+    }
+
+    public long getSize(int file) {
+        return sizes[file];
+    }
+
+    private int compareNames(int a, int b) {
+        return Arrays.compareUnsigned(names, nameStarts[a], nameStarts[a + 1], names, nameStarts[b], nameStarts[b + 1]);
+    }
+
+    private void ensureCapacity(int files, int nameLength) {
+        if (files > fileDirectories.length) {
+            int capacity = fileDirectories.length * 2;
+            fileDirectories = Arrays.copyOf(fileDirectories, capacity);
+            nameStarts = Arrays.copyOf(nameStarts, capacity + 1);
+            shas = Arrays.copyOf(shas, capacity * 20);
+            modifiedTimes = Arrays.copyOf(modifiedTimes, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        int needed = nameStarts[files - 1] + nameLength;
+        if (needed > names.length) {
+            names = Arrays.copyOf(names, Math.max(needed, names.length * 2));
+        }
+    }
+
+    private static List<String> segments(String path) {
+        String normalized = path.startsWith("./") ? path.substring(2) : path.equals(".") ? "" : path;
+        if (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized.isEmpty() ? List.of() : Arrays.asList(normalized.split("/"));
+    }
+}
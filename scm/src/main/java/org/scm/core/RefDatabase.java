@@ -0,0 +1,319 @@
+package org.scm.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * HEAD, branches and remote-tracking refs of one repository.
+ *
+ * <p>A ref lives either in its own loose file under {@code refs/} or as a line
+ * {@code "<sha> <refname>"} in {@code packed-refs}, which is sorted by name so a lookup is a
+ * binary search over the line offsets. A loose ref overrides a packed one of the same name.
+ * {@code gitty gc} moves loose refs into {@code packed-refs}, so a repository with many
+ * branches keeps a single file instead of a directory of thousands.
+ *
+ * <p>Files are read through {@link RepoCache}, and the resolved HEAD is remembered by this
+ * instance until it changes a ref. Every update goes through a {@link LockFile}, so an update
+ * waits for a concurrent one to finish and readers never see a partial value.
+ */
+public class RefDatabase {
+    public static final String HEADS_PREFIX = "refs/heads/";
+    private static final String SYMBOLIC_PREFIX = "ref: ";
+    private static final String PACKED_REFS_HEADER = "# pack-refs with: sorted\n";
+
+    private final File gitDir;
+    private final File packedRefsFile;
+    private String resolvedHead;
+    private long lockTimeout = -1;
+    private Durability durability;
+
+    public RefDatabase() {
+        this(new File(".gitty"));
+    }
+
+    public RefDatabase(File gitDir) {
+        this.gitDir = gitDir;
+        this.packedRefsFile = new File(gitDir, "packed-refs");
+    }
+
+    /**
+     * Returns the ref HEAD points to, such as {@code refs/heads/main}, or null if HEAD is detached.
+     */
+    public String getHeadRef() throws IOException {
+        String head = readHead();
+        return head.startsWith(SYMBOLIC_PREFIX) ? head.substring(SYMBOLIC_PREFIX.length()).trim() : null;
+    }
+
+    /**
+     * Returns the name of the checked out branch.
+     *
+     * @throws IOException if HEAD does not point to a branch
+     */
+    public String getCurrentBranch() throws IOException {
+        String headRef = getHeadRef();
+        if (headRef == null || !headRef.startsWith(HEADS_PREFIX)) {
+            throw new IOException("HEAD does not point to a valid branch reference.");
+        }
+        return headRef.substring(HEADS_PREFIX.length());
+    }
+
+    /**
+     * Returns the commit HEAD resolves to, or null if the current branch has no commits yet.
+     */
+    public String resolveHead() throws IOException {
+        if (resolvedHead == null) {
+            String headRef = getHeadRef();
+            resolvedHead = headRef == null ? readHead() : Objects.requireNonNullElse(resolve(headRef), "");
+        }
+        return resolvedHead.isEmpty() ? null : resolvedHead;
+    }
+
+    /**
+     * Forgets the resolved HEAD, so the next {@link #resolveHead()} reads it again.
+     */
+    void refresh() {
+        resolvedHead = null;
+    }
+
+    /**
+     * Returns the commit of a ref, the loose file taking precedence over {@code packed-refs}.
+     *
+     * @param refName the full name, such as {@code refs/heads/main}
+     * @return the commit SHA, or null if the ref does not exist
+     */
+    public String resolve(String refName) throws IOException {
+        File looseFile = new File(gitDir, refName);
+        if (looseFile.isFile()) {
+            String sha = RepoCache.readString(looseFile).trim();
+            if (!sha.isEmpty()) {
+                return sha;
+            }
+        }
+        return readPackedRefs().find(refName);
+    }
+
+    public String resolveBranch(String branchName) throws IOException {
+        return resolve(HEADS_PREFIX + branchName);
+    }
+
+    /**
+     * Resolves {@code HEAD}, a branch name, a full ref name or a commit SHA to a commit SHA.
+     *
+     * @param objectStore where a revision given as a SHA must exist
+     * @return the commit SHA, or null if nothing by that name exists
+     */
+    public String resolveRevision(String revision, ObjectStore objectStore) throws IOException {
+        if (revision.equals("HEAD")) {
+            return resolveHead();
+        }
+        if (revision.startsWith("refs/")) {
+            return resolve(revision);
+        }
+        String branchSha = resolveBranch(revision);
+        if (branchSha != null) {
+            return branchSha;
+        }
+        return revision.length() == 40 && objectStore.hasObject(revision) ? revision : null;
+    }
+
+    /**
+     * Resolves a revision like {@link #resolveRevision}, failing if it names nothing.
+     *
+     * @throws IOException if nothing by that name exists
+     */
+    public String resolveExistingRevision(String revision, ObjectStore objectStore) throws IOException {
+        String sha = resolveRevision(revision, objectStore);
+        if (sha == null) {
+            throw new IOException("Unknown revision: " + revision);
+        }
+        return sha;
+    }
+
+    /**
+     * Lists every branch and remote-tracking ref with the commit it points to, sorted by name.
+     */
+    public Map<String, String> listRefs() throws IOException {
+        Map<String, String> refs = new TreeMap<>();
+        readPackedRefs().forEach(refs::put);
+        collectLooseRefs(new File(gitDir, "refs"), "refs", refs);
+        return refs;
+    }
+
+    /**
+     * Points a ref at a new commit if it still has the expected value.
+     *
+     * @param expectedSha the value the ref must have, empty if it must not exist yet, or null to
+     *                    update it whatever it points to
+     * @return false if the ref had moved
+     * @throws IOException if another writer still holds the lock after {@code core.lockTimeout}
+     */
+    public boolean updateRef(String refName, String expectedSha, String newSha) throws IOException {
+        try (LockFile lock = lock(new File(gitDir, refName), refName)) {
+            String currentSha = Objects.requireNonNullElse(resolve(refName), "");
+            if (expectedSha != null && !currentSha.equals(expectedSha)) {
+                return false;
+            }
+            lock.commit((newSha + "\n").getBytes(StandardCharsets.UTF_8));
+            resolvedHead = null;
+            return true;
+        }
+    }
+
+    /**
+     * Makes HEAD point to a branch.
+     */
+    public void setHead(String branchName) throws IOException {
+        try (LockFile lock = lock(new File(gitDir, "HEAD"), "HEAD")) {
+            lock.commit((SYMBOLIC_PREFIX + HEADS_PREFIX + branchName + "\n").getBytes(StandardCharsets.UTF_8));
+            resolvedHead = null;
+        }
+    }
+
+    /**
+     * Moves every loose ref into {@code packed-refs}. A loose ref that changes while it is being
+     * packed is left in place, and still overrides its packed value.
+     *
+     * @return the number of refs in {@code packed-refs}
+     */
+    public int packRefs() throws IOException {
+        Map<String, String> refs;
+        try (LockFile lock = lock(packedRefsFile, "packed-refs")) {
+            refs = listRefs();
+            StringBuilder content = new StringBuilder(PACKED_REFS_HEADER);
+            for (Map.Entry<String, String> ref : refs.entrySet()) {
+                content.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+            }
+            lock.commit(content.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Loose refs are dropped only while they still hold the value that was packed
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            File looseFile = new File(gitDir, ref.getKey());
+            if (!looseFile.isFile()) {
+                continue;
+            }
+            // Held so the ref cannot change between the check and the delete, never committed
+            LockFile lock = lock(looseFile, ref.getKey());
+            try {
+                if (Files.readString(looseFile.toPath()).trim().equals(ref.getValue())) {
+                    looseFile.delete();
+                }
+            } finally {
+                lock.close();
+            }
+        }
+        return refs.size();
+    }
+
+    private String readHead() throws IOException {
+        File headFile = new File(gitDir, "HEAD");
+        if (!headFile.exists()) {
+            throw new IOException("No .gitty repository found. Are you inside a repository?");
+        }
+        return RepoCache.readString(headFile).trim();
+    }
+
+    private PackedRefs readPackedRefs() throws IOException {
+        if (!packedRefsFile.exists()) {
+            return PackedRefs.EMPTY;
+        }
+        return RepoCache.readParsed(packedRefsFile, PackedRefs::new);
+    }
+
+    private LockFile lock(File target, String name) throws IOException {
+        if (lockTimeout < 0) {
+            lockTimeout = LockFile.timeout(gitDir);
+            durability = Durability.of(gitDir);
+        }
+        return LockFile.acquire(target, name, lockTimeout, durability);
+    }
+
+    private static void collectLooseRefs(File dir, String prefix, Map<String, String> refs) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = prefix + "/" + child.getName();
+            if (child.isDirectory()) {
+                collectLooseRefs(child, name, refs);
+            } else if (!child.getName().endsWith(".lock")) {
+                String sha = Files.readString(child.toPath()).trim();
+                if (!sha.isEmpty()) {
+                    refs.put(name, sha);
+                }
+            }
+        }
+    }
+
+    /**
+     * The parsed {@code packed-refs} file: its bytes plus the offset of every ref line.
+     */
+    private static class PackedRefs {
+        static final PackedRefs EMPTY = new PackedRefs(new byte[0]);
+
+        private final byte[] data;
+        private final int[] lineStarts;
+        private final int lineCount;
+
+        PackedRefs(byte[] data) {
+            this.data = data;
+            int[] starts = new int[64];
+            int count = 0;
+            int start = 0;
+            while (start < data.length) {
+                int end = lineEnd(data, start);
+                // Lines are "<40 hex sha> <refname>"; comments and anything shorter are skipped
+                if (data[start] != '#' && end - start > 41) {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                    }
+                    starts[count++] = start;
+                }
+                start = end + 1;
+            }
+            this.lineStarts = starts;
+            this.lineCount = count;
+        }
+
+        String find(String refName) {
+            byte[] target = refName.getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = lineCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int nameStart = lineStarts[middle] + 41;
+                int comparison = Arrays.compareUnsigned(data, nameStart, lineEnd(data, nameStart), target, 0, target.length);
+                if (comparison == 0) {
+                    return new String(data, lineStarts[middle], 40, StandardCharsets.US_ASCII);
+                } else if (comparison < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return null;
+        }
+
+        void forEach(BiConsumer<String, String> action) {
+            for (int i = 0; i < lineCount; i++) {
+                int start = lineStarts[i];
+                int end = lineEnd(data, start);
+                action.accept(new String(data, start + 41, end - start - 41, StandardCharsets.UTF_8),
+                        new String(data, start, 40, StandardCharsets.US_ASCII));
+            }
+        }
+
+        private static int lineEnd(byte[] data, int from) {
+            int end = from;
+            while (end < data.length && data[end] != '\n') {
+                end++;
+            }
+            return end;
+        }
+    }
+}
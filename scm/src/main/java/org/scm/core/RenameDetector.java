@@ -0,0 +1,223 @@
+package org.scm.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Pairs added files with deleted (renames) or surviving (copies) files of the old tree.
+ *
+ * <p>Identical content is paired by SHA without reading anything. For the rest every file gets
+ * a signature: its content is cut into spans that end at a newline or after 64 bytes, and the
+ * signature counts the bytes per span hash. Two files are as similar as the share of bytes
+ * their signatures have in common, relative to the larger file. Files over 64 KiB keep only a
+ * sample of the span hashes, halving the sample for each doubling in size, so a signature stays
+ * small however large the file is.
+ *
+ * <p>Copies are only looked for among files modified in the same change, as an unchanged file
+ * is rarely what a new file was copied from; {@code diff.findCopiesHarder=true} makes every file
+ * of the old tree a copy source. Empty files are never paired, they all look alike.
+ *
+ * <p>Signatures and scores are computed in parallel. When the number of added files times the
+ * number of candidate sources exceeds {@code diff.renameLimit} squared, only exact renames are
+ * detected.
+ */
+public class RenameDetector {
+    public static final String RENAME_LIMIT_KEY = "diff.renameLimit";
+    public static final String RENAME_THRESHOLD_KEY = "diff.renameThreshold";
+    public static final String FIND_COPIES_HARDER_KEY = "diff.findCopiesHarder";
+    private static final long DEFAULT_RENAME_LIMIT = 1000;
+    private static final long DEFAULT_RENAME_THRESHOLD = 50;
+
+    private static final int MAX_SPAN = 64;
+    private static final long UNSAMPLED_SIZE = 64 * 1024;
+    private static final String EMPTY_BLOB_SHA = "e69de29bb2d1d6434b8b29ae775ad8c2e48c5391";
+
+    private final ObjectStore objectStore;
+    private final long renameLimit;
+    private final int threshold;
+    private final boolean findCopiesHarder;
+
+    public RenameDetector(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+        RepoConfig config = new RepoConfig(objectStore.getGitDir());
+        this.renameLimit = config.getLong(RENAME_LIMIT_KEY, DEFAULT_RENAME_LIMIT);
+        this.threshold = (int) config.getLong(RENAME_THRESHOLD_KEY, DEFAULT_RENAME_THRESHOLD);
+        this.findCopiesHarder = config.getBoolean(FIND_COPIES_HARDER_KEY, false);
+    }
+
+    /**
+     * A detected rename or copy with its similarity in percent.
+     */
+    public record Rename(String oldPath, String newPath, String oldSha, String newSha, int score, boolean copy) {
+        @Override
+        public String toString() {
+            return oldPath + " -> " + newPath + " (" + score + "%)";
+        }
+    }
+
+    private record Signature(long size, int sampleShift, Map<Integer, Integer> spans) {
+    }
+
+    private record Candidate(int score, String newPath, String oldPath) {
+    }
+
+    /**
+     * Finds renames and copies among the added files. Paired paths are removed from
+     * {@code added} and {@code deleted}.
+     *
+     * @param added    added paths mapped to their blob SHAs
+     * @param deleted  deleted paths mapped to their blob SHAs; these are rename sources
+     * @param modified paths changed in place mapped to their old blob SHAs; these are copy sources
+     * @param oldTree  every path of the old tree mapped to its blob SHA; copy sources with
+     *                 {@code diff.findCopiesHarder}
+     */
+    public List<Rename> detect(Map<String, String> added, Map<String, String> deleted,
+                               Map<String, String> modified, Map<String, String> oldTree) throws IOException {
+        List<Rename> renames = new ArrayList<>();
+
+        // Exact renames first: same SHA, nothing to read
+        Map<String, Deque<String>> deletedBySha = new HashMap<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(deleted).entrySet()) {
+            deletedBySha.computeIfAbsent(entry.getValue(), sha -> new ArrayDeque<>()).add(entry.getKey());
+        }
+        Map<String, String> copySources = findCopiesHarder ? oldTree : modified;
+        Map<String, String> oldPathsBySha = new HashMap<>();
+        for (Map.Entry<String, String> entry : new TreeMap<>(copySources).entrySet()) {
+            oldPathsBySha.putIfAbsent(entry.getValue(), entry.getKey());
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<>(added).entrySet()) {
+            if (entry.getValue().equals(EMPTY_BLOB_SHA)) {
+                continue;
+            }
+            Deque<String> sources = deletedBySha.get(entry.getValue());
+            if (sources != null && !sources.isEmpty()) {
+                String oldPath = sources.poll();
+                renames.add(new Rename(oldPath, entry.getKey(), entry.getValue(), entry.getValue(), 100, false));
+                deleted.remove(oldPath);
+                added.remove(entry.getKey());
+            } else if (oldPathsBySha.containsKey(entry.getValue())) {
+                renames.add(new Rename(oldPathsBySha.get(entry.getValue()), entry.getKey(), entry.getValue(), entry.getValue(), 100, true));
+                added.remove(entry.getKey());
+            }
+        }
+
+        // Inexact pairing compares every added file with every source
+        Map<String, String> sources = new TreeMap<>(copySources);
+        sources.putAll(deleted);
+        if (added.isEmpty() || sources.isEmpty()) {
+            return renames;
+        }
+        if ((long) added.size() * sources.size() > renameLimit * renameLimit) {
+            System.err.println("warning: inexact rename detection was skipped due to too many files.");
+            return renames;
+        }
+
+        Map<String, Signature> signatures;
+        try {
+            signatures = signatures(added, sources);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        List<String> newPaths = new ArrayList<>(new TreeSet<>(added.keySet()));
+        List<String> oldPaths = new ArrayList<>(sources.keySet());
+        List<Candidate> candidates = IntStream.range(0, newPaths.size()).parallel()
+                .mapToObj(i -> score(newPaths.get(i), oldPaths, signatures))
+                .flatMap(List::stream)
+                .sorted(Comparator.comparingInt(Candidate::score).reversed()
+                        .thenComparing(Candidate::newPath)
+                        .thenComparing(Candidate::oldPath))
+                .toList();
+
+        // Best pairs first; a deleted file is renamed once, later matches of it are copies
+        Set<String> pairedNew = new HashSet<>();
+        Set<String> renamedOld = new HashSet<>();
+        for (Candidate candidate : candidates) {
+            if (!pairedNew.add(candidate.newPath())) {
+                continue;
+            }
+            boolean copy = !deleted.containsKey(candidate.oldPath()) || !renamedOld.add(candidate.oldPath());
+            renames.add(new Rename(candidate.oldPath(), candidate.newPath(), sources.get(candidate.oldPath()),
+                    added.get(candidate.newPath()), candidate.score(), copy));
+        }
+        for (Rename rename : renames) {
+            added.remove(rename.newPath());
+            if (!rename.copy()) {
+                deleted.remove(rename.oldPath());
+            }
+        }
+        return renames;
+    }
+
+    private List<Candidate> score(String newPath, List<String> oldPaths, Map<String, Signature> signatures) {
+        Signature newSignature = signatures.get(newPath);
+        List<Candidate> candidates = new ArrayList<>();
+        for (String oldPath : oldPaths) {
+            Signature oldSignature = signatures.get(oldPath);
+            long larger = Math.max(newSignature.size(), oldSignature.size());
+            long smaller = Math.min(newSignature.size(), oldSignature.size());
+            // The size ratio bounds the score, so most pairs are ruled out here
+            if (larger == 0 || smaller * 100 < larger * threshold) {
+                continue;
+            }
+            int score = (int) Math.min(100, sharedBytes(newSignature, oldSignature) * 100 / larger);
+            if (score >= threshold) {
+                candidates.add(new Candidate(score, newPath, oldPath));
+            }
+        }
+        return candidates;
+    }
+
+    private static long sharedBytes(Signature a, Signature b) {
+        // Compare at the coarser sampling of the two and scale back up
+        int shift = Math.max(a.sampleShift(), b.sampleShift());
+        int mask = (1 << shift) - 1;
+        long shared = 0;
+        for (Map.Entry<Integer, Integer> span : a.spans().entrySet()) {
+            if ((span.getKey() & mask) == 0) {
+                shared += Math.min(span.getValue(), b.spans().getOrDefault(span.getKey(), 0));
+            }
+        }
+        return shared << shift;
+    }
+
+    private Map<String, Signature> signatures(Map<String, String> added, Map<String, String> sources) {
+        Map<String, String> paths = new HashMap<>(added);
+        paths.putAll(sources);
+        Map<String, Signature> signatures = new ConcurrentHashMap<>();
+        paths.entrySet().parallelStream().forEach(entry -> {
+            try {
+                signatures.put(entry.getKey(), signature(objectStore.readContent(entry.getValue())));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return signatures;
+    }
+
+    private static Signature signature(byte[] content) {
+        int sampleShift = 0;
+        while ((UNSAMPLED_SIZE << sampleShift) < content.length) {
+            sampleShift++;
+        }
+        int mask = (1 << sampleShift) - 1;
+
+        Map<Integer, Integer> spans = new HashMap<>();
+        int start = 0;
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < content.length; i++) {
+            hash = (hash ^ (content[i] & 0xff)) * 0x01000193;
+            if (content[i] == '\n' || i - start + 1 == MAX_SPAN || i == content.length - 1) {
+                hash ^= hash >>> 16;
+                if ((hash & mask) == 0) {
+                    spans.merge(hash, i - start + 1, Integer::sum);
+                }
+                start = i + 1;
+                hash = 0x811c9dc5;
+            }
+        }
+        return new Signature(content.length, sampleShift, spans);
+    }
+}
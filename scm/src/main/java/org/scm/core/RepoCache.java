@@ -0,0 +1,115 @@
+package org.scm.core;
+
+import org.scm.models.Commit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide caches for repository data. Objects are immutable so parsed commits and trees
+ * are kept by SHA until evicted; small mutable files such as HEAD, refs and the index are
+ * re-read only when their size, modification time or inode changes.
+ *
+ * <p>For a one-shot command this saves repeated reads of HEAD and commits within the command;
+ * in the daemon the caches stay warm between commands.
+ */
+public class RepoCache {
+    private static final int MAX_COMMITS = 50_000;
+    private static final int MAX_TREES = 5_000;
+
+    private static final Map<String, Commit> commits = Collections.synchronizedMap(lru(MAX_COMMITS));
+    private static final Map<String, Map<String, String>> trees = Collections.synchronizedMap(lru(MAX_TREES));
+    private static final Map<Path, CachedFile> files = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private record FileStamp(long size, long modifiedNanos, Object fileKey) {
+    }
+
+    private record CachedFile(FileStamp stamp, Object value) {
+    }
+
+    public interface FileParser<T> {
+        T parse(byte[] data) throws IOException;
+    }
+
+    public static Commit getCommit(String sha) {
+        return commits.get(sha);
+    }
+
+    public static void putCommit(String sha, Commit commit) {
+        commits.put(sha, commit);
+    }
+
+    public static Map<String, String> getTree(String sha) {
+        return trees.get(sha);
+    }
+
+    public static Map<String, String> putTree(String sha, Map<String, String> entries) {
+        Map<String, String> shared = Collections.unmodifiableMap(entries);
+        trees.put(sha, shared);
+        return shared;
+    }
+
+    /**
+     * Reads a small file as text, serving it from memory while the file is unchanged.
+     */
+    public static String readString(File file) throws IOException {
+        return readParsed(file, data -> new String(data, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads and parses a file, serving the previous result while the file is unchanged.
+     * The returned value is shared, so callers must not modify it.
+     *
+     * @throws NoSuchFileException if the file does not exist
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T readParsed(File file, FileParser<T> parser) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        FileStamp stamp = stamp(path);
+        CachedFile cached = files.get(path);
+        if (cached != null && cached.stamp().equals(stamp)) {
+            return (T) cached.value();
+        }
+
+        T value = parser.parse(Files.readAllBytes(path));
+        // Only trust the content if the file did not change while it was read
+        if (stamp.equals(stamp(path))) {
+            files.put(path, new CachedFile(stamp, value));
+        }
+        return value;
+    }
+
+    /**
+     * Drops every cached file so the next read goes to disk. Called after commands that
+     * write HEAD, refs or the index, since coarse file timestamps may hide a rewrite.
+     */
+    public static void invalidateFiles() {
+        files.clear();
+    }
+
+    private static FileStamp stamp(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileStamp(attributes.size(),
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                Objects.requireNonNullElse(attributes.fileKey(), ""));
+    }
+
+    private static <K, V> Map<K, V> lru(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+}
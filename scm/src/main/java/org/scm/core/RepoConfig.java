@@ -0,0 +1,56 @@
+package org.scm.core;
+
+import java.io.*;
+import java.util.Properties;
+
+public class RepoConfig {
+    private final File configFile;
+    private final Properties properties = new Properties();
+
+    public RepoConfig() {
+        this(new File(".gitty"));
+    }
+
+    public RepoConfig(File gitDir) {
+        this.configFile = new File(gitDir, "config");
+        if (configFile.exists()) {
+            try (Reader reader = new FileReader(configFile)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read " + configFile.getPath(), e);
+            }
+        }
+    }
+
+    public String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + value);
+        }
+    }
+
+    public void set(String key, String value) throws IOException {
+        properties.setProperty(key, value);
+        try (Writer writer = new FileWriter(configFile)) {
+            properties.store(writer, null);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.scm.core;
+
+import org.scm.models.Commit;
+import org.scm.models.IndexEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * A repository opened on an explicit working tree, for programs that embed gitty instead of
+ * running the command line.
+ *
+ * <p>Unlike the command classes, which work on {@code .gitty} in the current directory and
+ * print their results, a {@code Repository} resolves every path against its own root and
+ * returns values. One session keeps its object store, ref database and index reader, so HEAD
+ * is resolved once and reused until the session moves a ref itself or {@link #refresh()} is
+ * called; the index, refs and parsed objects come from {@link RepoCache}, which only rereads a
+ * file after it changed. Several repositories can be open in one JVM and used from different
+ * threads, and writes to the index and refs go through lock files, so sessions and command
+ * line processes can share one repository.
+ */
+public class Repository {
+    private final File workTree;
+    private final File gitDir;
+    private final ObjectStore objectStore;
+    private final RefDatabase refDatabase;
+    private final IndexManager indexManager;
+    private final TreeManager treeManager;
+    private final CommitManager commitManager;
+
+    private Repository(File workTree) {
+        this.workTree = workTree;
+        this.gitDir = new File(workTree, ".gitty");
+        this.objectStore = new ObjectStore(gitDir);
+        this.refDatabase = new RefDatabase(gitDir);
+        this.indexManager = new IndexManager(gitDir);
+        this.treeManager = new TreeManager(objectStore);
+        this.commitManager = new CommitManager(objectStore);
+    }
+
+    /**
+     * Opens the repository whose working tree is the given directory.
+     *
+     * @throws IOException if the directory has no {@code .gitty} repository
+     */
+    public static Repository open(File workTree) throws IOException {
+        File root = workTree.toPath().toAbsolutePath().normalize().toFile();
+        if (!new File(root, ".gitty/HEAD").isFile()) {
+            throw new IOException("No .gitty repository found in " + root.getPath());
+        }
+        return new Repository(root);
+    }
+
+    public File getWorkTree() {
+        return workTree;
+    }
+
+    public File getGitDir() {
+        return gitDir;
+    }
+
+    public ObjectStore getObjectStore() {
+        return objectStore;
+    }
+
+    /**
+     * Forgets the HEAD resolved by this session, so changes made by other processes are seen.
+     */
+    public void refresh() {
+        refDatabase.refresh();
+    }
+
+    /**
+     * Returns the checked out branch, or null if HEAD is detached.
+     */
+    public String getCurrentBranch() throws IOException {
+        String headRef = refDatabase.getHeadRef();
+        return headRef != null && headRef.startsWith(RefDatabase.HEADS_PREFIX)
+                ? headRef.substring(RefDatabase.HEADS_PREFIX.length()) : null;
+    }
+
+    /**
+     * Returns the commit HEAD points to, or null if there are no commits yet.
+     */
+    public String resolveHead() throws IOException {
+        return refDatabase.resolveHead();
+    }
+
+    /**
+     * Resolves {@code HEAD}, a branch name, a full ref name or a commit SHA to a commit SHA.
+     *
+     * @return the commit SHA, or null if nothing by that name exists
+     */
+    public String resolve(String revision) throws IOException {
+        return refDatabase.resolveRevision(revision, objectStore);
+    }
+
+    /**
+     * Lists the branches by name with the commit each points to, sorted by name.
+     */
+    public Map<String, String> listBranches() throws IOException {
+        Map<String, String> branches = new TreeMap<>();
+        for (Map.Entry<String, String> ref : refDatabase.listRefs().entrySet()) {
+            if (ref.getKey().startsWith(RefDatabase.HEADS_PREFIX)) {
+                branches.put(ref.getKey().substring(RefDatabase.HEADS_PREFIX.length()), ref.getValue());
+            }
+        }
+        return branches;
+    }
+
+    public Commit readCommit(String commitSha) throws IOException {
+        return commitManager.readCommit(commitSha);
+    }
+
+    /**
+     * Returns the history of HEAD as a lazy stream; I/O errors while it is consumed surface as
+     * {@link UncheckedIOException}.
+     *
+     * @param path a file or directory to limit the history to, or null for every commit
+     */
+    public Stream<Commit> log(RevWalk.Order order, String path) throws IOException {
+        String head = resolveHead();
+        Stream<Commit> commits = new RevWalk(objectStore, order, head == null ? List.of() : List.of(head)).stream();
+        if (path == null) {
+            return commits;
+        }
+        ChangedPathFilter pathFilter = new ChangedPathFilter(objectStore);
+        return commits.filter(commit -> {
+            try {
+                return pathFilter.touches(commit.getSha(), path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Lists every file of a revision by its path from the root, without a leading "./",
+     * mapped to its blob SHA.
+     */
+    public Map<String, String> listFiles(String revision) throws IOException {
+        return treeManager.flattenTree(readCommit(resolveExisting(revision)).getTreeSha());
+    }
+
+    /**
+     * Returns the content of a file as of a revision, or null if the revision has no such file.
+     */
+    public byte[] readFile(String revision, String path) throws IOException {
+        String blobSha = treeManager.findBlob(readCommit(resolveExisting(revision)).getTreeSha(), path);
+        return blobSha == null ? null : objectStore.readContent(blobSha);
+    }
+
+    /**
+     * Compares the trees of two revisions.
+     *
+     * @return the changes as described for {@link TreeManager#compareTrees(String, String)}
+     */
+    public Map<String, List<String>> diff(String oldRevision, String newRevision) throws IOException {
+        String oldTree = readCommit(resolveExisting(oldRevision)).getTreeSha();
+        String newTree = readCommit(resolveExisting(newRevision)).getTreeSha();
+        return treeManager.compareTrees(newTree, oldTree);
+    }
+
+    public List<IndexEntry> readIndex() throws IOException {
+        return indexManager.readIndex();
+    }
+
+    /**
+     * Stages files of the working tree.
+     *
+     * @param paths paths relative to the working tree, with or without a leading "./"
+     */
+    public void add(List<String> paths) throws IOException {
+        List<String> indexPaths = new ArrayList<>();
+        for (String path : paths) {
+            indexPaths.add(path.startsWith("./") ? path : "./" + path);
+        }
+        indexManager.addFilesToIndex(workTree, indexPaths);
+    }
+
+    /**
+     * Stages every file of the working tree that is not ignored, like {@code gitty add}.
+     */
+    public void addAll() throws IOException {
+        FileScanner scanner = new FileScanner(workTree);
+        scanner.scanDirectory(".");
+        indexManager.addFilesToIndex(workTree, scanner.getPaths());
+    }
+
+    /**
+     * Commits the index on top of HEAD and moves the current branch to the new commit. As on
+     * the command line, a commit is recorded even if nothing changed.
+     *
+     * @return the SHA of the new commit
+     * @throws IOException if HEAD is detached or the branch keeps moving under the commit
+     */
+    public String commit(String message, String authorName, String authorEmail) throws IOException {
+        LockFile lock = indexManager.lock();
+        try {
+            return commitManager.createCommit(message, indexManager.readIndexTrie(), authorName, authorEmail, resolveHead(), refDatabase);
+        } finally {
+            lock.close();
+        }
+    }
+
+    private String resolveExisting(String revision) throws IOException {
+        return refDatabase.resolveExistingRevision(revision, objectStore);
+    }
+}
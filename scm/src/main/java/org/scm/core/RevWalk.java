@@ -0,0 +1,161 @@
+package org.scm.core;
+
+import org.scm.models.Commit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over history lazily, reading each commit only when it is asked for.
+ *
+ * <p>{@link #stream()} composes with {@code skip}, {@code limit} and {@code filter}, so showing
+ * the newest commits reads only those. The order is one of:
+ * <ul>
+ *   <li>{@link Order#FIRST_PARENT}: the first-parent chain of the first start commit;</li>
+ *   <li>{@link Order#DATE}: every reachable commit, newest committer time first;</li>
+ *   <li>{@link Order#TOPOLOGICAL}: every reachable commit, never a parent before one of its
+ *       children, keeping each line of history together. Without generation numbers this has
+ *       to see the whole reachable graph before the first commit comes out.</li>
+ * </ul>
+ */
+public class RevWalk implements Iterator<Commit> {
+    public enum Order {
+        FIRST_PARENT, DATE, TOPOLOGICAL
+    }
+
+    private final CommitManager commitManager;
+    private final Order order;
+    private final List<String> starts;
+
+    // First-parent: the next commit to return
+    private String nextSha;
+
+    // Date order: commits seen but not returned yet, newest first
+    private final PriorityQueue<Commit> queue = new PriorityQueue<>(
+            Comparator.comparingLong(Commit::getCommitTime).reversed().thenComparing(Commit::getSha));
+    private final Set<String> seen = new HashSet<>();
+
+    // Topological order: commits whose children have all been returned
+    private Deque<String> ready;
+    private Map<String, Integer> childCounts;
+
+    public RevWalk(ObjectStore objectStore, Order order, Collection<String> starts) throws IOException {
+        this.commitManager = new CommitManager(objectStore);
+        this.order = order;
+        this.starts = new ArrayList<>(starts);
+        if (order == Order.FIRST_PARENT) {
+            nextSha = this.starts.isEmpty() ? null : this.starts.get(0);
+        } else if (order == Order.DATE) {
+            for (String start : this.starts) {
+                enqueue(start);
+            }
+        }
+    }
+
+    /**
+     * Walks from the commit HEAD points to; empty if there are no commits yet.
+     */
+    public static RevWalk fromHead(ObjectStore objectStore, Order order) throws IOException {
+        String head = new RefDatabase(objectStore.getGitDir()).resolveHead();
+        return new RevWalk(objectStore, order, head == null ? List.of() : List.of(head));
+    }
+
+    @Override
+    public boolean hasNext() {
+        return switch (order) {
+            case FIRST_PARENT -> nextSha != null;
+            case DATE -> !queue.isEmpty();
+            case TOPOLOGICAL -> !topologicalQueue().isEmpty();
+        };
+    }
+
+    @Override
+    public Commit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            switch (order) {
+                case FIRST_PARENT -> {
+                    Commit commit = commitManager.readCommit(nextSha);
+                    nextSha = commit.getParentShas().isEmpty() ? null : commit.getParentShas().get(0);
+                    return commit;
+                }
+                case DATE -> {
+                    Commit commit = queue.poll();
+                    for (String parent : commit.getParentShas()) {
+                        enqueue(parent);
+                    }
+                    return commit;
+                }
+                default -> {
+                    Commit commit = commitManager.readCommit(ready.pop());
+                    // Push in reverse so the first parent comes out next and its line stays together
+                    List<String> parents = commit.getParentShas();
+                    for (int i = parents.size() - 1; i >= 0; i--) {
+                        if (childCounts.merge(parents.get(i), -1, Integer::sum) == 0) {
+                            ready.push(parents.get(i));
+                        }
+                    }
+                    return commit;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the remaining commits as a sequential, lazy stream.
+     */
+    public Stream<Commit> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private void enqueue(String sha) throws IOException {
+        if (seen.add(sha)) {
+            queue.add(commitManager.readCommit(sha));
+        }
+    }
+
+    private Deque<String> topologicalQueue() {
+        if (ready != null) {
+            return ready;
+        }
+        try {
+            // Count for every reachable commit how many reachable commits name it as a parent
+            childCounts = new HashMap<>();
+            Deque<String> pending = new ArrayDeque<>(starts);
+            Set<String> visited = new HashSet<>();
+            while (!pending.isEmpty()) {
+                String sha = pending.pop();
+                if (!visited.add(sha)) {
+                    continue;
+                }
+                childCounts.putIfAbsent(sha, 0);
+                for (String parent : commitManager.readCommit(sha).getParentShas()) {
+                    childCounts.merge(parent, 1, Integer::sum);
+                    pending.push(parent);
+                }
+            }
+
+            List<Commit> tips = new ArrayList<>();
+            for (String start : new LinkedHashSet<>(starts)) {
+                if (childCounts.get(start) == 0) {
+                    tips.add(commitManager.readCommit(start));
+                }
+            }
+            tips.sort(Comparator.comparingLong(Commit::getCommitTime));
+            ready = new ArrayDeque<>();
+            for (Commit tip : tips) {
+                ready.push(tip.getSha()); // Newest tip ends up on top
+            }
+            return ready;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.scm.core;
+
+import org.scm.models.IndexEntry;
+import org.scm.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Sparse checkout in cone mode: only the listed directories, everything below them and the
+ * files directly inside their parent directories are checked out.
+ *
+ * <p>The cones are listed one per line in {@code .gitty/info/sparse-checkout}. Scanning for
+ * {@code add} and {@code status} does not enter other directories, and the index records each
+ * top-most unselected directory as a single entry {@code "./dir/"} holding its tree SHA, so
+ * the index grows with the checked-out subset rather than with the whole tree. A commit
+ * expands those entries back into the files of the HEAD tree.
+ */
+public class SparseCheckout {
+    private final File gitDir;
+    private final File patternFile;
+    private final List<String> cones;
+
+    public SparseCheckout() {
+        this(new File(".gitty"));
+    }
+
+    public SparseCheckout(File gitDir) {
+        this.gitDir = gitDir;
+        this.patternFile = new File(gitDir, "info/sparse-checkout");
+        this.cones = readCones(patternFile);
+    }
+
+    public boolean isEnabled() {
+        return !cones.isEmpty();
+    }
+
+    public List<String> getCones() {
+        return cones;
+    }
+
+    /**
+     * Checks whether a directory is inside a cone or on the way to one, so its files are
+     * checked out and it has to be scanned.
+     *
+     * @param directory a path relative to the repository root, with or without a leading "./"
+     */
+    public boolean includesDirectory(String directory) {
+        return includes(cones, directory);
+    }
+
+    private static boolean includes(List<String> cones, String directory) {
+        if (cones.isEmpty()) {
+            return true;
+        }
+        String path = normalize(directory);
+        if (path.isEmpty()) {
+            return true;
+        }
+        for (String cone : cones) {
+            if (path.equals(cone) || path.startsWith(cone + "/") || cone.startsWith(path + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an index entry stands for a whole unselected directory.
+     */
+    public static boolean isSparseDirectory(IndexEntry entry) {
+        return entry.getPath().endsWith("/");
+    }
+
+    /**
+     * Replaces the cones and brings the index and working tree in line with them: files of
+     * newly selected directories are written from HEAD, files of unselected directories are
+     * removed unless they have local changes, and unselected directories collapse into single
+     * index entries. Staged changes in a directory that would collapse stop it before anything
+     * is changed. The cones are written last, under the index lock, so a failure leaves the
+     * old cones with the old index.
+     *
+     * @param newCones directories to check out; empty to check out everything
+     */
+    public void setCones(List<String> newCones) throws IOException {
+        List<String> normalized = new ArrayList<>();
+        for (String cone : newCones) {
+            String path = normalize(cone);
+            if (!path.isEmpty() && !normalized.contains(path)) {
+                normalized.add(path);
+            }
+        }
+
+        ObjectStore objectStore = new ObjectStore(gitDir);
+        IndexManager indexManager = new IndexManager(gitDir);
+        List<IndexEntry> entries = new ArrayList<>();
+        int written = 0;
+        int removed = 0;
+        try (LockFile lock = indexManager.lock()) {
+            String headSha = new RefDatabase(gitDir).resolveHead();
+            if (headSha != null) {
+                TreeManager treeManager = new TreeManager(objectStore);
+                String headTree = new CommitManager(objectStore).readCommit(headSha).getTreeSha();
+                Map<String, String> headFiles = treeManager.flattenTree(headTree);
+
+                // Staged files the HEAD tree does not know about are kept as they are
+                Map<String, IndexEntry> oldEntries = new LinkedHashMap<>();
+                List<String> oldSparseDirectories = new ArrayList<>();
+                for (IndexEntry entry : indexManager.readIndex()) {
+                    if (isSparseDirectory(entry)) {
+                        oldSparseDirectories.add(normalize(entry.getPath()));
+                    } else {
+                        oldEntries.put(normalize(entry.getPath()), entry);
+                    }
+                }
+
+                // Step 1: A collapsed directory holds HEAD's version, so staged changes in it would be lost
+                List<String> staged = new ArrayList<>();
+                for (Map.Entry<String, String> file : new TreeMap<>(headFiles).entrySet()) {
+                    String path = file.getKey();
+                    if (includes(normalized, parent(path))) {
+                        continue;
+                    }
+                    IndexEntry oldEntry = oldEntries.get(path);
+                    boolean stagedDeletion = oldEntry == null && !isBelowAny(path, oldSparseDirectories);
+                    if (stagedDeletion || oldEntry != null && !oldEntry.getSha1().equals(file.getValue())) {
+                        staged.add(path);
+                    }
+                }
+                if (!staged.isEmpty()) {
+                    System.out.println("Error: Staged changes in directories leaving the sparse checkout, commit them first:");
+                    for (String path : staged) {
+                        System.out.println(" - " + path);
+                    }
+                    return;
+                }
+
+                // Step 2: Check out the selected files and remove the others
+                for (Map.Entry<String, String> file : new TreeMap<>(headFiles).entrySet()) {
+                    String path = file.getKey();
+                    File workingFile = new File("./" + path);
+                    IndexEntry oldEntry = oldEntries.remove(path);
+                    if (includes(normalized, parent(path))) {
+                        if (oldEntry != null) {
+                            entries.add(oldEntry);
+                            continue;
+                        }
+                        long modifiedTime;
+                        long size;
+                        if (!workingFile.exists()) {
+                            FileUtils.writeFile(workingFile.getPath(), objectStore.readContent(file.getValue()));
+                            written++;
+                            modifiedTime = workingFile.lastModified();
+                            size = workingFile.length();
+                        } else {
+                            // A file left in place or made meanwhile only gets its stat data if it matches HEAD,
+                            // otherwise size 0 makes status and add look at its content
+                            long statTime = workingFile.lastModified(); // Before reading, so a later write shows
+                            byte[] data = FileUtils.readFile(workingFile);
+                            boolean matches = ObjectStore.hashObject("blob", data, 0, data.length).equals(file.getValue());
+                            modifiedTime = matches ? statTime : 0;
+                            size = matches ? data.length : 0;
+                        }
+                        entries.add(new IndexEntry(workingFile.getPath(), file.getValue(), modifiedTime, size));
+                    } else if (workingFile.isFile()) {
+                        // Local changes are never thrown away
+                        byte[] data = FileUtils.readFile(workingFile);
+                        if (ObjectStore.hashObject("blob", data, 0, data.length).equals(file.getValue())) {
+                            workingFile.delete();
+                            deleteEmptyParents(workingFile.getParentFile());
+                            removed++;
+                        } else {
+                            System.out.println("warning: " + path + " has local changes and was left in place");
+                        }
+                    }
+                }
+                entries.addAll(oldEntries.values());
+
+                // Step 3: Collapse the top-most unselected directories
+                for (Map.Entry<String, String> directory : new TreeMap<>(treeManager.listDirectories(headTree)).entrySet()) {
+                    String path = directory.getKey();
+                    if (!includes(normalized, path) && includes(normalized, parent(path))) {
+                        entries.add(new IndexEntry("./" + path + "/", directory.getValue(), 0, 0));
+                    }
+                }
+                indexManager.writeIndex(lock, PathTrie.of(entries));
+            }
+
+            // Step 4: Only now that the index matches them are the new cones recorded
+            if (normalized.isEmpty()) {
+                patternFile.delete();
+            } else {
+                patternFile.getParentFile().mkdirs();
+                Files.writeString(patternFile.toPath(), String.join("\n", normalized) + "\n");
+            }
+            cones.clear();
+            cones.addAll(normalized);
+            if (headSha == null) {
+                return; // Nothing committed yet, so nothing to check out or collapse
+            }
+        }
+        System.out.println("Sparse checkout " + (cones.isEmpty() ? "disabled" : "set to " + cones)
+                + ": wrote " + written + " files, removed " + removed + ", " + entries.size() + " index entries.");
+    }
+
+    /**
+     * Replaces unselected-directory entries with the files of the HEAD tree below them, for
+     * building a full tree at commit time. Other entries win over files from HEAD.
+     */
+    public PathTrie expandIndex(PathTrie entries, String headTreeSha, TreeManager treeManager) throws IOException {
+        // Without unselected directories the index is the tree as it is
+        boolean sparse = false;
+        for (int file = 0; file < entries.size() && !sparse; file++) {
+            sparse = entries.isDirectoryEntry(file);
+        }
+        return sparse ? PathTrie.of(expandIndex(entries.toEntries(), headTreeSha, treeManager)) : entries;
+    }
+
+    /**
+     * Replaces unselected-directory entries with the files of the HEAD tree below them.
+     *
+     * @see #expandIndex(PathTrie, String, TreeManager)
+     */
+    public List<IndexEntry> expandIndex(List<IndexEntry> entries, String headTreeSha, TreeManager treeManager) throws IOException {
+        List<String> sparseDirectories = new ArrayList<>();
+        List<IndexEntry> expanded = new ArrayList<>();
+        Set<String> paths = new HashSet<>();
+        for (IndexEntry entry : entries) {
+            if (isSparseDirectory(entry)) {
+                sparseDirectories.add(normalize(entry.getPath()));
+            } else {
+                expanded.add(entry);
+                paths.add(normalize(entry.getPath()));
+            }
+        }
+        if (sparseDirectories.isEmpty() || headTreeSha == null) {
+            return expanded;
+        }
+
+        for (Map.Entry<String, String> file : treeManager.flattenTree(headTreeSha).entrySet()) {
+            String path = file.getKey();
+            for (String directory : sparseDirectories) {
+                if (path.startsWith(directory + "/") && !paths.contains(path)) {
+                    expanded.add(new IndexEntry("./" + path, file.getValue(), 0, 0));
+                    break;
+                }
+            }
+        }
+        return expanded;
+    }
+
+    private void deleteEmptyParents(File directory) {
+        File root = new File(".").getAbsoluteFile();
+        File current = directory.getAbsoluteFile();
+        while (current != null && !current.equals(root) && current.delete()) {
+            current = current.getParentFile();
+        }
+    }
+
+    private static List<String> readCones(File patternFile) {
+        List<String> cones = new ArrayList<>();
+        if (patternFile.exists()) {
+            try {
+                for (String line : Files.readAllLines(patternFile.toPath())) {
+                    String path = normalize(line.trim());
+                    if (!path.isEmpty() && !path.startsWith("#")) {
+                        cones.add(path);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read " + patternFile.getPath(), e);
+            }
+        }
+        return cones;
+    }
+
+    private static boolean isBelowAny(String path, List<String> directories) {
+        for (String directory : directories) {
+            if (path.startsWith(directory + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash == -1 ? "" : path.substring(0, slash);
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.startsWith("./") ? path.substring(2) : path;
+        if (normalized.equals(".")) {
+            return "";
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+}
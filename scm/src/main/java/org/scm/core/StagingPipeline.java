@@ -0,0 +1,332 @@
+package org.scm.core;
+
+import org.scm.models.IndexEntry;
+import org.scm.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stores files as blobs for {@code add} in four stages, each with its own threads: reading the
+ * files, hashing them, deflating the new ones and writing them to the object store. Stages
+ * hand files on through bounded queues, so a stage that falls behind makes the ones before it
+ * wait instead of piling up files in memory, and the whole runs at the pace of its slowest
+ * resource rather than the sum of the disk and CPU time per file.
+ *
+ * <p>Read and write threads mostly wait on the disk and hash and deflate threads on the CPU,
+ * so the pools are sized separately: {@code add.readThreads} and {@code add.writeThreads}
+ * (default 4) and {@code add.hashThreads} and {@code add.compressThreads} (default one per
+ * processor). File content is read only while less than {@link #IN_FLIGHT_BYTES} is held by
+ * the stages, which bounds memory whatever the file sizes. Content that is already stored, or
+ * that another file of the same run is storing, stops after hashing. Blobs stored chunked skip
+ * the deflate stage and are chunked by the write stage.
+ */
+public class StagingPipeline {
+    public static final String READ_THREADS_KEY = "add.readThreads";
+    public static final String HASH_THREADS_KEY = "add.hashThreads";
+    public static final String COMPRESS_THREADS_KEY = "add.compressThreads";
+    public static final String WRITE_THREADS_KEY = "add.writeThreads";
+    private static final int DEFAULT_IO_THREADS = 4;
+    private static final int IN_FLIGHT_BYTES = 64 * 1024 * 1024;
+    // Room in each queue per thread of the stage taking from it
+    private static final int QUEUE_SLOTS_PER_THREAD = 2;
+
+    private static final Item END = new Item(-1, null);
+
+    /**
+     * What one stage did: the files and bytes it handled, the time its threads spent working
+     * and the time they spent waiting for files to take or for room to pass them on.
+     */
+    public record StageStats(String name, int threads, long files, long bytes, long busyNanos, long waitNanos) {
+        /**
+         * Returns the bytes per second the stage handles with all its threads working, so the
+         * stage with the lowest figure is the one holding the others back.
+         */
+        public double capacityBytesPerSecond() {
+            return busyNanos == 0 ? 0 : bytes * 1e9 * threads / busyNanos;
+        }
+    }
+
+    /**
+     * The figures of a whole run.
+     */
+    public record Stats(int files, long bytes, long wallNanos, List<StageStats> stages) {
+        public void print() {
+            System.out.printf(Locale.ROOT, "Staged %d files (%.1f MB) in %d ms%n", files, bytes / 1048576.0, wallNanos / 1_000_000);
+            for (StageStats stage : stages) {
+                System.out.printf(Locale.ROOT, "  %-9s %2d threads %8d files %10.1f MB  busy %7d ms  waiting %7d ms  %8.1f MB/s%n",
+                        stage.name(), stage.threads(), stage.files(), stage.bytes() / 1048576.0,
+                        stage.busyNanos() / 1_000_000, stage.waitNanos() / 1_000_000, stage.capacityBytesPerSecond() / 1048576.0);
+            }
+        }
+    }
+
+    /**
+     * One file on its way through the stages.
+     */
+    private static final class Item {
+        final int index;
+        final String path;
+        long modifiedTime;
+        int permits;
+        byte[] data;
+        String sha;
+        byte[] compressed;
+        boolean chunked;
+
+        Item(int index, String path) {
+            this.index = index;
+            this.path = path;
+        }
+    }
+
+    private interface Work {
+        /**
+         * Handles a file and returns whether it goes on to the next stage.
+         */
+        boolean process(Item item) throws IOException;
+    }
+
+    private final class Stage {
+        final String name;
+        final int threads;
+        final BlockingQueue<Item> input;
+        final Work work;
+        final AtomicInteger running;
+        final LongAdder files = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        Stage next;
+
+        Stage(String name, int threads, BlockingQueue<Item> input, Work work) {
+            this.name = name;
+            this.threads = threads;
+            this.input = input;
+            this.work = work;
+            this.running = new AtomicInteger(threads);
+        }
+
+        void run() {
+            try {
+                while (true) {
+                    long waitStart = System.nanoTime();
+                    Item item = input.take();
+                    waitNanos.add(System.nanoTime() - waitStart);
+                    if (item == END) {
+                        break;
+                    }
+
+                    long start = System.nanoTime();
+                    boolean forward = work.process(item);
+                    busyNanos.add(System.nanoTime() - start);
+                    files.increment();
+                    bytes.add(item.data == null ? 0 : item.data.length);
+
+                    if (forward) {
+                        waitStart = System.nanoTime();
+                        next.input.put(item);
+                        waitNanos.add(System.nanoTime() - waitStart);
+                    } else {
+                        finish(item);
+                    }
+                }
+                // The last thread of a stage to finish ends the next one
+                if (running.decrementAndGet() == 0 && next != null) {
+                    for (int i = 0; i < next.threads; i++) {
+                        next.input.put(END);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped because another stage failed
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        StageStats stats() {
+            return new StageStats(name, threads, files.sum(), bytes.sum(), busyNanos.sum(), waitNanos.sum());
+        }
+    }
+
+    private final File workTree;
+    private final ObjectStore objectStore;
+    private final RepoConfig config;
+    private final Semaphore inFlight = new Semaphore(IN_FLIGHT_BYTES);
+    // Contents claimed by a file of this run, so the same blob is not written twice at once
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+    private final Object chunkedWriteLock = new Object();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final List<ExecutorService> pools = new CopyOnWriteArrayList<>();
+    private IndexEntry[] entries;
+    private Stats stats;
+
+    public StagingPipeline(File workTree, ObjectStore objectStore) {
+        this.workTree = workTree;
+        this.objectStore = objectStore;
+        this.config = new RepoConfig(objectStore.getGitDir());
+    }
+
+    /**
+     * Stores the files as blobs and returns their index entries, in the order of the paths.
+     * A pipeline stages files once.
+     *
+     * @param paths index paths such as {@code "./src/a.txt"}, relative to the working tree
+     */
+    public List<IndexEntry> stage(List<String> paths) throws IOException {
+        long start = System.nanoTime();
+        int processors = Runtime.getRuntime().availableProcessors();
+        int readThreads = threads(READ_THREADS_KEY, DEFAULT_IO_THREADS);
+        int hashThreads = threads(HASH_THREADS_KEY, processors);
+        int compressThreads = threads(COMPRESS_THREADS_KEY, processors);
+        int writeThreads = threads(WRITE_THREADS_KEY, DEFAULT_IO_THREADS);
+
+        // Step 1: Queue every file for the readers, then connect the stages by bounded queues
+        BlockingQueue<Item> readQueue = new LinkedBlockingQueue<>();
+        for (int i = 0; i < paths.size(); i++) {
+            readQueue.add(new Item(i, paths.get(i)));
+        }
+        for (int i = 0; i < readThreads; i++) {
+            readQueue.add(END);
+        }
+        Stage read = new Stage("read", readThreads, readQueue, this::read);
+        Stage hash = new Stage("hash", hashThreads, new ArrayBlockingQueue<>(hashThreads * QUEUE_SLOTS_PER_THREAD), this::hash);
+        Stage compress = new Stage("compress", compressThreads, new ArrayBlockingQueue<>(compressThreads * QUEUE_SLOTS_PER_THREAD), this::compress);
+        Stage write = new Stage("write", writeThreads, new ArrayBlockingQueue<>(writeThreads * QUEUE_SLOTS_PER_THREAD), this::write);
+        read.next = hash;
+        hash.next = compress;
+        compress.next = write;
+        List<Stage> stages = List.of(read, hash, compress, write);
+
+        // Step 2: Run every stage on its own threads until the last one has drained
+        entries = new IndexEntry[paths.size()];
+        for (Stage stage : stages) {
+            pools.add(Executors.newFixedThreadPool(stage.threads,
+                    Thread.ofPlatform().name("gitty-add-" + stage.name + "-", 1).daemon().factory()));
+        }
+        try {
+            for (int s = 0; s < stages.size(); s++) {
+                for (int i = 0; i < stages.get(s).threads; i++) {
+                    pools.get(s).execute(stages.get(s)::run);
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            // A stage already failed and stopped the pools
+        }
+        for (ExecutorService pool : pools) {
+            pool.shutdown();
+        }
+        try {
+            for (ExecutorService pool : pools) {
+                while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // Keep waiting; a failing stage stops all of them
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pools.forEach(ExecutorService::shutdownNow);
+            throw new IOException("Interrupted while staging files", e);
+        }
+
+        Exception error = failure.get();
+        if (error instanceof IOException ioException) {
+            throw ioException;
+        } else if (error != null) {
+            throw (RuntimeException) error;
+        }
+
+        // Step 3: Keep the figures of each stage
+        long bytes = 0;
+        for (IndexEntry entry : entries) {
+            bytes += entry.getSize();
+        }
+        List<StageStats> stageStats = new ArrayList<>();
+        for (Stage stage : stages) {
+            stageStats.add(stage.stats());
+        }
+        stats = new Stats(entries.length, bytes, System.nanoTime() - start, stageStats);
+        return Arrays.asList(entries);
+    }
+
+    /**
+     * Returns the figures of the run, or null before {@link #stage(List)} has finished.
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    private boolean read(Item item) throws IOException {
+        File file = new File(workTree, item.path);
+        // Stat before reading, so a write in between leaves the entry looking changed
+        item.modifiedTime = file.lastModified();
+        item.permits = (int) Math.min(IN_FLIGHT_BYTES, Math.max(1, file.length()));
+        try {
+            inFlight.acquire(item.permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while staging files", e);
+        }
+        try {
+            item.data = FileUtils.readFile(file);
+        } catch (IOException | RuntimeException e) {
+            inFlight.release(item.permits);
+            throw e;
+        }
+        return true;
+    }
+
+    private boolean hash(Item item) {
+        item.sha = ObjectStore.hashObject("blob", item.data, 0, item.data.length);
+        if (objectStore.knowsObject(item.sha) || !claimed.add(item.sha)) {
+            return false; // Already stored, or being stored for another file
+        }
+        item.chunked = objectStore.storesChunked(item.data.length);
+        return true;
+    }
+
+    private boolean compress(Item item) throws IOException {
+        if (!item.chunked) {
+            item.compressed = ObjectStore.compressObject("blob", item.data);
+        }
+        return true;
+    }
+
+    private boolean write(Item item) throws IOException {
+        if (item.chunked) {
+            // Files may share chunks, which must not be written by two threads at once
+            synchronized (chunkedWriteLock) {
+                objectStore.storeBlob(item.data);
+            }
+        } else {
+            objectStore.writeCompressed(item.sha, item.compressed);
+        }
+        return false;
+    }
+
+    private void finish(Item item) {
+        entries[item.index] = new IndexEntry(item.path, item.sha, item.modifiedTime, item.data.length);
+        item.data = null;
+        item.compressed = null;
+        inFlight.release(item.permits);
+    }
+
+    private void fail(Exception e) {
+        if (failure.compareAndSet(null, e)) {
+            // Stages blocked on a queue are interrupted, so nothing waits for a stage that stopped
+            pools.forEach(ExecutorService::shutdownNow);
+        }
+    }
+
+    private int threads(String key, int defaultThreads) {
+        long threads = config.getLong(key, defaultThreads);
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + threads);
+        }
+        return (int) threads;
+    }
+}
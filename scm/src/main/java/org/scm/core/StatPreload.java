@@ -0,0 +1,124 @@
+package org.scm.core;
+
+import org.scm.models.IndexEntry;
+import org.scm.utils.FileUtils;
+import org.scm.utils.Futures;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares index entries with the working tree before {@code status} or {@code add} look at
+ * them, so those commands work from the result instead of waiting on one stat call after
+ * another.
+ *
+ * <p>Entries are checked in batches on virtual threads, so on network or overlay filesystems
+ * where a stat takes milliseconds the waits overlap. A file whose size and modification time
+ * match its entry is taken as unchanged without being read. An entry whose time is not older
+ * than the index file itself is racy: the file may have changed again within the same
+ * timestamp tick after it was staged, so its stat data proves nothing and it counts as dirty.
+ */
+class StatPreload {
+    private static final int BATCH_SIZE = 64;
+
+    enum State {
+        /**
+         * The file matches its entry.
+         */
+        CLEAN,
+        /**
+         * The file no longer exists.
+         */
+        DELETED,
+        /**
+         * The file's stat data differs from its entry, or with content checks, its content does.
+         */
+        DIRTY
+    }
+
+    private StatPreload() {
+    }
+
+    /**
+     * Checks every file of the index against the working tree.
+     *
+     * @see #preload(File, PathTrie, int[], long, boolean)
+     */
+    static State[] preload(File workTree, PathTrie entries, long indexModifiedMillis, boolean checkContent)
+            throws IOException {
+        int[] files = new int[entries.size()];
+        for (int file = 0; file < files.length; file++) {
+            files[file] = file;
+        }
+        return preload(workTree, entries, files, indexModifiedMillis, checkContent);
+    }
+
+    /**
+     * Checks the given files of the index against the working tree. An entry is made only for
+     * the file being checked, so the index is never held as entries all at once.
+     *
+     * @param workTree           the directory index paths are relative to
+     * @param files              the numbers of the files in the trie to check
+     * @param indexModifiedMillis the modification time of the index file, for the racy check
+     * @param checkContent       hash files whose stat data changed, so only a changed content
+     *                           counts as dirty
+     * @return the state of each file, in the order of {@code files}
+     */
+    static State[] preload(File workTree, PathTrie entries, int[] files, long indexModifiedMillis, boolean checkContent)
+            throws IOException {
+        State[] states = new State[files.length];
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> batches = new ArrayList<>();
+            for (int start = 0; start < files.length; start += BATCH_SIZE) {
+                int from = start;
+                int to = Math.min(start + BATCH_SIZE, files.length);
+                batches.add(executor.submit(() -> {
+                    for (int i = from; i < to; i++) {
+                        states[i] = check(workTree, entries.getEntry(files[i]), indexModifiedMillis, checkContent);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> batch : batches) {
+                Futures.await(batch, "checking the working tree");
+            }
+        }
+        return states;
+    }
+
+    private static State check(File workTree, IndexEntry entry, long indexModifiedMillis, boolean checkContent)
+            throws IOException {
+        if (SparseCheckout.isSparseDirectory(entry)) {
+            return State.CLEAN; // Unselected directory, absent from the working tree on purpose
+        }
+        File file = new File(workTree, entry.getPath());
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return State.DELETED;
+        }
+        if (!attributes.isRegularFile()) {
+            return State.DELETED;
+        }
+
+        long modifiedMillis = attributes.lastModifiedTime().toMillis();
+        boolean racy = entry.getModifiedTime() >= indexModifiedMillis;
+        if (!racy && attributes.size() == entry.getSize() && modifiedMillis == entry.getModifiedTime()) {
+            return State.CLEAN;
+        }
+        if (!checkContent) {
+            return State.DIRTY;
+        }
+        byte[] data = FileUtils.readFile(file);
+        return ObjectStore.hashObject("blob", data, 0, data.length).equals(entry.getSha1()) ? State.CLEAN : State.DIRTY;
+    }
+}
@@ -1,70 +1,220 @@
 package org.scm.core;
 
 import org.scm.models.IndexEntry;
+import org.scm.models.TreeEntry;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.zip.InflaterInputStream;
-
-import static org.scm.core.GitObject.createObject;
+import java.util.*;
 
 public class TreeManager {
-    public String createTreeObject(List<IndexEntry> entries) throws IOException, NoSuchAlgorithmException {
-        // Step 1: Build directory map
-        Map<String, List<IndexEntry>> directoryMap = new HashMap<>();
-        for (IndexEntry entry : entries) {
-            String path = entry.getPath();
-            int lastSlash = path.lastIndexOf('/');
-            String directory = lastSlash == -1 ? "" : path.substring(0, lastSlash);
-            directoryMap.computeIfAbsent(directory, k -> new ArrayList<>()).add(entry);
-        }
+    private static final byte[] FILE_ENTRY_PREFIX = "100644 ".getBytes(StandardCharsets.US_ASCII);
+    // The kinds of flattened listing kept in the FlatTreeCache
+    private static final String FILES_LISTING = "files";
+    private static final String ENTRIES_LISTING = "entries";
 
-        // Step 2: Recursively create tree objects starting from the root
-        return writeTree(directoryMap, "");
+    private final ObjectStore objectStore;
+    private FlatTreeCache flatTrees;
+
+    public TreeManager() {
+        this(new ObjectStore());
     }
 
+    public TreeManager(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+    }
 
-    private String writeTree(Map<String, List<IndexEntry>> directoryMap, String currentDir) throws IOException, NoSuchAlgorithmException {
+    public String createTreeObject(List<IndexEntry> entries) throws IOException {
+        return createTreeObject(PathTrie.of(entries));
+    }
+
+    /**
+     * Writes a tree object for every directory of the index, bottom up, and returns the SHA of
+     * the root tree. Each tree lists its files by name, then its subdirectories, which are
+     * named by their full path such as {@code "./src/main"}.
+     */
+    public String createTreeObject(PathTrie entries) throws IOException {
+        return writeTree(entries, entries.getRoot());
+    }
+
+    private String writeTree(PathTrie entries, PathTrie.Directory directory) throws IOException {
         ByteArrayOutputStream treeContent = new ByteArrayOutputStream();
-        List<IndexEntry> entries = directoryMap.getOrDefault(currentDir, new ArrayList<>());
 
-        // Add blobs (files) to the tree
-        for (IndexEntry entry : entries) {
-            String fileName = entry.getPath().substring(currentDir.length() + (currentDir.isEmpty() ? 0 : 1));
-            treeContent.write(String.format("100644 %s\0", fileName).getBytes(StandardCharsets.UTF_8));
-            treeContent.write(hexToRawBytes(entry.getSha1())); // Convert hex SHA1 to raw bytes
+        // Add blobs (files) to the tree, name and raw SHA1 copied from the trie as they are
+        for (int file : directory.getFiles()) {
+            treeContent.write(FILE_ENTRY_PREFIX);
+            entries.writeName(file, treeContent);
+            treeContent.write(0);
+            entries.writeSha1(file, treeContent);
         }
 
         // Add subdirectories to the tree
-        for (String dir : directoryMap.keySet()) {
-            if (dir.startsWith(currentDir) && !dir.equals(currentDir)) {
-                // Process subdirectories
-                String subDir = dir.substring(currentDir.length() + (currentDir.isEmpty() ? 0 : 1));
-                if (subDir.contains("/")) {
-                    String directSubDir = subDir.split("/")[0]; // Get the first level of the subdirectory
-                    String subTreeHash = writeTree(directoryMap, dir); // Recursively process the subdirectory
-                    treeContent.write(String.format("040000 %s\0", dir).getBytes(StandardCharsets.UTF_8));
-                    treeContent.write(hexToRawBytes(subTreeHash)); // Convert hex SHA1 to raw bytes
-                }
-            }
+        for (PathTrie.Directory subdirectory : directory.getSubdirectories()) {
+            String subTreeHash = writeTree(entries, subdirectory);
+            treeContent.write(String.format("040000 %s\0", subdirectory.getPath()).getBytes(StandardCharsets.UTF_8));
+            treeContent.write(hexToRawBytes(subTreeHash)); // Convert hex SHA1 to raw bytes
         }
 
         // Create the tree object
         byte[] treeData = treeContent.toByteArray();
-        return createObject(treeData, "tree", true);
+        return objectStore.writeObject("tree", treeData);
     }
 
+    /**
+     * Lists the entries of a tree and of every tree below it: file names as stored in their
+     * tree, and subdirectories by their full path with a trailing "/". The listing is kept in
+     * memory and on disk, and is read-only.
+     */
     public Map<String, String> readTree(String treeSha) throws IOException {
+        return readTree(treeSha, true);
+    }
+
+    // Only the listing asked for is stored on disk, not those of the subtrees it is built from
+    private Map<String, String> readTree(String treeSha, boolean store) throws IOException {
+        Map<String, String> cached = RepoCache.getTree(treeSha);
+        if (cached != null) {
+            return cached;
+        }
+        if (store) {
+            Map<String, String> stored = flatTrees().get(treeSha, ENTRIES_LISTING);
+            if (stored != null) {
+                return RepoCache.putTree(treeSha, stored);
+            }
+        }
         Map<String, String> treeEntries = new HashMap<>();
 
+        for (TreeEntry entry : readTreeEntries(treeSha)) {
+            // Skip the entry if it already exists in the map
+            if (treeEntries.containsKey(entry.getName())) {
+                continue; // Skip duplicate entries
+            }
+
+            if (entry.isDirectory()) {
+                // Directory entry (tree)
+                treeEntries.put(entry.getName() + "/", entry.getSha1());
+
+                // Recursive call to process nested trees
+                Map<String, String> subTreeEntries = readTree(entry.getSha1(), false);
+                for (Map.Entry<String, String> subEntry : subTreeEntries.entrySet()) {
+                    // Add entries with unique names
+                    String fullPath = subEntry.getKey();
+                    if (!treeEntries.containsKey(fullPath)) {
+                        treeEntries.put(fullPath, subEntry.getValue());
+                    }
+                }
+            } else if (entry.getMode().equals(TreeEntry.FILE_MODE)) {
+                // File entry (blob)
+                treeEntries.put(entry.getName(), entry.getSha1());
+            }
+        }
+        return RepoCache.putTree(treeSha, store ? flatTrees().put(treeSha, ENTRIES_LISTING, treeEntries) : treeEntries);
+    }
+
+    private FlatTreeCache flatTrees() {
+        if (flatTrees == null) {
+            flatTrees = new FlatTreeCache(objectStore.getGitDir());
+        }
+        return flatTrees;
+    }
+
+    /**
+     * Finds the blob stored at a path, reading only the trees on the way to it.
+     *
+     * @param path the file path, with or without a leading "./"
+     * @return the blob SHA, or null if the tree has no file at that path
+     */
+    public String findBlob(String treeSha, String path) throws IOException {
+        return findBlob(treeSha, "", stripDot(path));
+    }
+
+    private String findBlob(String treeSha, String directory, String path) throws IOException {
+        for (TreeEntry entry : readTreeEntries(treeSha)) {
+            if (entry.isDirectory()) {
+                // Subtrees are named by their full path from the root
+                String subDirectory = stripDot(entry.getName());
+                if (path.startsWith(subDirectory + "/")) {
+                    String sha = findBlob(entry.getSha1(), subDirectory, path);
+                    if (sha != null) {
+                        return sha;
+                    }
+                }
+            } else {
+                String filePath = stripDot(directory.isEmpty() ? entry.getName() : directory + "/" + entry.getName());
+                if (filePath.equals(path)) {
+                    return entry.getSha1();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the paths that differ between two trees: changed, added and removed files plus
+     * every directory containing one. Subtrees with equal SHAs are not read.
+     *
+     * @param oldTreeSha the tree to compare against, or null to list every path of the new tree
+     */
+    public Set<String> changedPaths(String newTreeSha, String oldTreeSha) throws IOException {
+        Set<String> paths = new TreeSet<>();
+        collectChangedPaths(newTreeSha, oldTreeSha, "", paths);
+
+        // A path filter on a directory has to match the changes below it
+        for (String path : new ArrayList<>(paths)) {
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                paths.add(path.substring(0, slash));
+            }
+        }
+        return paths;
+    }
+
+    private void collectChangedPaths(String newTreeSha, String oldTreeSha, String directory, Set<String> paths) throws IOException {
+        if (Objects.equals(newTreeSha, oldTreeSha)) {
+            return;
+        }
+        Map<String, TreeEntry> newEntries = entriesByPath(newTreeSha, directory);
+        Map<String, TreeEntry> oldEntries = entriesByPath(oldTreeSha, directory);
+        Set<String> allPaths = new HashSet<>(newEntries.keySet());
+        allPaths.addAll(oldEntries.keySet());
+
+        for (String path : allPaths) {
+            TreeEntry newEntry = newEntries.get(path);
+            TreeEntry oldEntry = oldEntries.get(path);
+            if (newEntry != null && oldEntry != null && newEntry.getSha1().equals(oldEntry.getSha1())) {
+                continue;
+            }
+            boolean newIsTree = newEntry != null && newEntry.isDirectory();
+            boolean oldIsTree = oldEntry != null && oldEntry.isDirectory();
+            if (newIsTree || oldIsTree) {
+                collectChangedPaths(newIsTree ? newEntry.getSha1() : null, oldIsTree ? oldEntry.getSha1() : null, path, paths);
+            }
+            if ((newEntry != null && !newIsTree) || (oldEntry != null && !oldIsTree)) {
+                paths.add(path);
+            }
+        }
+    }
+
+    private Map<String, TreeEntry> entriesByPath(String treeSha, String directory) throws IOException {
+        Map<String, TreeEntry> entries = new HashMap<>();
+        if (treeSha == null) {
+            return entries;
+        }
+        for (TreeEntry entry : readTreeEntries(treeSha)) {
+            String name = entry.isDirectory() || directory.isEmpty() ? entry.getName() : directory + "/" + entry.getName();
+            entries.put(stripDot(name), entry);
+        }
+        return entries;
+    }
+
+    private static String stripDot(String path) {
+        return path.startsWith("./") ? path.substring(2) : path;
+    }
+
+    /**
+     * Reads the entries stored directly in one tree object, without descending into subtrees.
+     */
+    public List<TreeEntry> readTreeEntries(String treeSha) throws IOException {
         // Locate and decompress the tree object
-        File objectFile = getObjectFile(treeSha);
-        byte[] objectData = decompressObject(objectFile);
+        byte[] objectData = objectStore.readObject(treeSha);
 
         // Skip the header (e.g., "tree <size>\0")
         int headerEnd = 0;
@@ -74,6 +224,7 @@ public class TreeManager {
         headerEnd++; // Move past the null terminator
 
         ByteArrayInputStream inputStream = new ByteArrayInputStream(objectData, headerEnd, objectData.length - headerEnd);
+        List<TreeEntry> entries = new ArrayList<>();
 
         // Parse tree entries
         while (inputStream.available() > 0) {
@@ -85,100 +236,129 @@ public class TreeManager {
                 mode.append((char) b);
             }
 
-            // Read the file or directory name
-            StringBuilder name = new StringBuilder();
+            // Read the file or directory name, UTF-8 as the index writes it
+            ByteArrayOutputStream name = new ByteArrayOutputStream();
             while (true) {
                 int b = inputStream.read();
                 if (b == 0) break; // Null terminator signals end of name
-                name.append((char) b);
+                name.write(b);
             }
 
             // Read the raw SHA1 (20 bytes)
             byte[] sha1Bytes = new byte[20];
             inputStream.read(sha1Bytes);
-            String sha1 = rawBytesToHex(sha1Bytes);
-
-            // Skip the entry if it already exists in the map
-            if (treeEntries.containsKey(name.toString())) {
-                continue; // Skip duplicate entries
-            }
-
-            if (mode.toString().equals("040000")) {
-                // Directory entry (tree)
-                treeEntries.put(name.toString() + "/", sha1);
-
-                // Recursive call to process nested trees
-                Map<String, String> subTreeEntries = readTree(sha1);
-                for (Map.Entry<String, String> entry : subTreeEntries.entrySet()) {
-                    // Add entries with unique names
-                    String fullPath = entry.getKey();
-                    if (!treeEntries.containsKey(fullPath)) {
-                        treeEntries.put(fullPath, entry.getValue());
-                    }
-                }
-            } else if (mode.toString().equals("100644")) {
-                // File entry (blob)
-                treeEntries.put(name.toString(), sha1);
-            }
+            entries.add(new TreeEntry(mode.toString(), name.toString(StandardCharsets.UTF_8), rawBytesToHex(sha1Bytes)));
         }
-        return treeEntries;
+        return entries;
     }
 
 
 
+    /**
+     * Compares two trees by full path. Added files that match a deleted or modified file of the
+     * parent tree are reported as renames and copies instead of additions and deletions.
+     *
+     * @return lists keyed "added", "deleted", "modified", "renamed" and "copied", plus
+     *         "modifiedShas" and "renamedShas" holding the current and parent SHA of each
+     *         modified or renamed file in turn
+     */
     public Map<String, List<String>> compareTrees(String currentTreeSha, String parentTreeSha) throws IOException {
-        Map<String, String> currentTree = readTree(currentTreeSha);
-        Map<String, String> parentTree = parentTreeSha != null ? readTree(parentTreeSha) : new HashMap<>();
-
-
-        List<String> addedFiles = new ArrayList<>();
-        List<String> deletedFiles = new ArrayList<>();
-        List<String> modifiedFiles = new ArrayList<>();
-        List<String> modifiedFilesShas = new ArrayList<>();
-
-        // Detect added files
-        for (String filePath : currentTree.keySet()) {
-            if (!filePath.contains("/")){
-                if (!parentTree.containsKey(filePath)) {
-                    addedFiles.add(filePath);
-                } else {
-                    // Check if the file has been modified (compare SHA1)
-                    String currentSha1 = currentTree.get(filePath);
-                    String parentSha1 = parentTree.get(filePath);
-                    if (!currentSha1.equals(parentSha1)) {
-                        modifiedFiles.add(filePath);
-                        modifiedFilesShas.add(currentSha1);
-                        modifiedFilesShas.add(parentSha1);
-                    }
-                }
-        }
+        Map<String, String> currentTree = flattenTree(currentTreeSha);
+        Map<String, String> parentTree = parentTreeSha != null ? flattenTree(parentTreeSha) : new HashMap<>();
+
+        Map<String, String> addedFiles = new TreeMap<>();
+        Map<String, String> deletedFiles = new TreeMap<>();
+        Map<String, String> modifiedFiles = new TreeMap<>();
+
+        // Detect added and modified files
+        for (Map.Entry<String, String> file : currentTree.entrySet()) {
+            String parentSha1 = parentTree.get(file.getKey());
+            if (parentSha1 == null) {
+                addedFiles.put(file.getKey(), file.getValue());
+            } else if (!parentSha1.equals(file.getValue())) {
+                modifiedFiles.put(file.getKey(), parentSha1);
+            }
         }
 
         // Detect deleted files
-        for (String filePath : parentTree.keySet()) {
-            if (!currentTree.containsKey(filePath)) {
-                deletedFiles.add(filePath);
+        for (Map.Entry<String, String> file : parentTree.entrySet()) {
+            if (!currentTree.containsKey(file.getKey())) {
+                deletedFiles.put(file.getKey(), file.getValue());
             }
         }
 
+        List<RenameDetector.Rename> renames = new RenameDetector(objectStore)
+                .detect(addedFiles, deletedFiles, modifiedFiles, parentTree);
+
+        List<String> modifiedFilesShas = new ArrayList<>();
+        for (Map.Entry<String, String> file : modifiedFiles.entrySet()) {
+            modifiedFilesShas.add(currentTree.get(file.getKey()));
+            modifiedFilesShas.add(file.getValue());
+        }
+        List<String> renamedFiles = new ArrayList<>();
+        List<String> copiedFiles = new ArrayList<>();
+        List<String> renamedFilesShas = new ArrayList<>();
+        for (RenameDetector.Rename rename : renames) {
+            (rename.copy() ? copiedFiles : renamedFiles).add(rename.toString());
+            renamedFilesShas.add(rename.newSha());
+            renamedFilesShas.add(rename.oldSha());
+        }
+
         // Prepare the changes map
         Map<String, List<String>> changes = new HashMap<>();
-        changes.put("added", addedFiles);
-        changes.put("deleted", deletedFiles);
-        changes.put("modified", modifiedFiles);
-        changes.put("modifiedShas",modifiedFilesShas);
+        changes.put("added", new ArrayList<>(addedFiles.keySet()));
+        changes.put("deleted", new ArrayList<>(deletedFiles.keySet()));
+        changes.put("modified", new ArrayList<>(modifiedFiles.keySet()));
+        changes.put("modifiedShas", modifiedFilesShas);
+        changes.put("renamed", renamedFiles);
+        changes.put("copied", copiedFiles);
+        changes.put("renamedShas", renamedFilesShas);
 
         return changes;
     }
 
+    /**
+     * Lists every file below a tree by its full path from the root, without a leading "./".
+     * The listing is read-only, and after the first time it is read from one cached file.
+     */
+    public Map<String, String> flattenTree(String treeSha) throws IOException {
+        Map<String, String> stored = flatTrees().get(treeSha, FILES_LISTING);
+        if (stored != null) {
+            return stored;
+        }
+        Map<String, String> files = new HashMap<>();
+        flattenTree(treeSha, "", files);
+        return flatTrees().put(treeSha, FILES_LISTING, files);
+    }
+
+    /**
+     * Lists every directory below a tree by its full path, mapped to its tree SHA.
+     */
+    public Map<String, String> listDirectories(String treeSha) throws IOException {
+        Map<String, String> directories = new HashMap<>();
+        listDirectories(treeSha, "", directories);
+        return directories;
+    }
 
+    private void listDirectories(String treeSha, String directory, Map<String, String> directories) throws IOException {
+        for (Map.Entry<String, TreeEntry> entry : entriesByPath(treeSha, directory).entrySet()) {
+            // A directory can be listed by more than one ancestor, its subtrees only need one visit
+            if (entry.getValue().isDirectory() && directories.put(entry.getKey(), entry.getValue().getSha1()) == null) {
+                listDirectories(entry.getValue().getSha1(), entry.getKey(), directories);
+            }
+        }
+    }
 
-    // Utility to locate a Git object file by SHA
-    File getObjectFile(String sha) {
-        String dir = sha.substring(0, 2);
-        String file = sha.substring(2);
-        return new File(".gitty/objects/" + dir + "/" + file);
+    private void flattenTree(String treeSha, String directory, Map<String, String> files) throws IOException {
+        for (Map.Entry<String, TreeEntry> entry : entriesByPath(treeSha, directory).entrySet()) {
+            if (entry.getValue().isDirectory()) {
+                flattenTree(entry.getValue().getSha1(), entry.getKey(), files);
+            } else {
+                files.put(entry.getKey(), entry.getValue().getSha1());
+            }
+        }
     }
+
     private String rawBytesToHex(byte[] sha1Bytes) {
         StringBuilder hexString = new StringBuilder();
         for (byte b : sha1Bytes) {
@@ -187,19 +367,6 @@ public class TreeManager {
         return hexString.toString();
     }
 
-    // Utility to decompress Git objects (zlib)
-    private byte[] decompressObject(File objectFile) throws IOException {
-        try (FileInputStream fis = new FileInputStream(objectFile);
-             InflaterInputStream inflater = new InflaterInputStream(fis);
-             ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
-            byte[] temp = new byte[1024];
-            int len;
-            while ((len = inflater.read(temp)) != -1) {
-                buffer.write(temp, 0, len);
-            }
-            return buffer.toByteArray();
-        }
-    }
     private byte[] hexToRawBytes(String hex) {
         int length = hex.length();
         byte[] rawBytes = new byte[length / 2];
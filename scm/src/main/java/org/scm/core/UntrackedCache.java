@@ -0,0 +1,175 @@
+package org.scm.core;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The untracked-cache extension of the index: for each directory scanned by {@code status},
+ * its modification time, the untracked files directly inside it and the subdirectories that
+ * were entered.
+ *
+ * <p>Adding, removing or renaming an entry changes a directory's modification time, so while
+ * it is unchanged the cached listing is still right and the directory need not be listed
+ * again. A directory modified within {@link #RACY_MARGIN_NANOS} of the scan is not cached,
+ * since a change in the same timestamp tick would leave its time as recorded. The cache is
+ * dropped as a whole when {@code .gittyignore} or the sparse checkout cones change, and a
+ * directory is dropped when one of its files leaves the index, since the file may now be
+ * untracked. Files added to the index are filtered out when the cache is used.
+ */
+class UntrackedCache {
+    static final String SIGNATURE = "UNTR";
+    // Wider than the coarsest common timestamp resolution (2 seconds on FAT)
+    private static final long RACY_MARGIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * The cached listing of one directory.
+     *
+     * @param files          names of the untracked files directly inside it
+     * @param subdirectories names of the subdirectories to scan
+     */
+    record Directory(long modifiedNanos, List<String> files, List<String> subdirectories) {
+    }
+
+    private final String settingsStamp;
+    private final Map<String, Directory> directories;
+    private final long scanStartNanos = currentTimeNanos();
+    private boolean changed;
+
+    private UntrackedCache(String settingsStamp, Map<String, Directory> directories) {
+        this.settingsStamp = settingsStamp;
+        this.directories = directories;
+    }
+
+    /**
+     * Returns an empty cache for the current ignore and sparse checkout settings.
+     */
+    static UntrackedCache empty(File workTree) {
+        UntrackedCache cache = new UntrackedCache(settingsStamp(workTree), new HashMap<>());
+        cache.changed = true;
+        return cache;
+    }
+
+    /**
+     * Parses the extension data, or returns an empty cache if it is missing or was recorded
+     * under other ignore or sparse checkout settings.
+     */
+    static UntrackedCache parse(File workTree, byte[] data) throws IOException {
+        if (data == null) {
+            return empty(workTree);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        String stamp = in.readUTF();
+        if (!stamp.equals(settingsStamp(workTree))) {
+            return empty(workTree);
+        }
+        int directoryCount = in.readInt();
+        Map<String, Directory> directories = new HashMap<>(directoryCount * 2);
+        for (int i = 0; i < directoryCount; i++) {
+            String path = in.readUTF();
+            long modifiedNanos = in.readLong();
+            directories.put(path, new Directory(modifiedNanos, readNames(in), readNames(in)));
+        }
+        return new UntrackedCache(stamp, directories);
+    }
+
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(settingsStamp);
+        out.writeInt(directories.size());
+        for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().modifiedNanos());
+            writeNames(out, entry.getValue().files());
+            writeNames(out, entry.getValue().subdirectories());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the cached listing of a directory if it has not been modified since.
+     *
+     * @param path the directory relative to the working tree, such as {@code "./src"}
+     */
+    Directory get(String path, long modifiedNanos) {
+        Directory directory = directories.get(path);
+        return directory != null && directory.modifiedNanos() == modifiedNanos ? directory : null;
+    }
+
+    /**
+     * Records the listing of a directory, unless it was modified too recently to be trusted.
+     */
+    Directory put(String path, long modifiedNanos, List<String> files, List<String> subdirectories) {
+        Directory directory = new Directory(modifiedNanos, files, subdirectories);
+        if (modifiedNanos + RACY_MARGIN_NANOS < scanStartNanos) {
+            changed |= !directory.equals(directories.put(path, directory));
+        } else {
+            changed |= directories.remove(path) != null;
+        }
+        return directory;
+    }
+
+    /**
+     * Drops the directory holding a file that left the index.
+     *
+     * @param path an index path such as {@code "./src/a.txt"}
+     */
+    void invalidateParent(String path) {
+        String parent = new File(path).getParent();
+        if (parent != null && directories.remove(parent) != null) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Whether the cache differs from what was read, so the index should be rewritten.
+     */
+    boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Returns the modification time of a directory in nanoseconds, or -1 if it cannot be read.
+     */
+    static long modifiedNanos(File directory) {
+        try {
+            return Files.readAttributes(directory.toPath(), BasicFileAttributes.class)
+                    .lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Size and time of every file that decides which files are scanned
+    private static String settingsStamp(File workTree) {
+        StringBuilder stamp = new StringBuilder();
+        for (File file : new File[]{new File(workTree, ".gittyignore"), new File(workTree, ".gitty/info/sparse-checkout")}) {
+            stamp.append(file.length()).append(':').append(file.exists() ? modifiedNanos(file) : -1).append(';');
+        }
+        return stamp.toString();
+    }
+
+    private static long currentTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+}
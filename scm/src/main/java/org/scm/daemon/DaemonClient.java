@@ -0,0 +1,66 @@
+package org.scm.daemon;
+
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Forwards a command to a running {@link GittyDaemon} and relays its output.
+ */
+public class DaemonClient {
+    /** Returned by {@link #forward(String[])} when the command has to run in this process. */
+    public static final int NOT_FORWARDED = DaemonProtocol.EXIT_FALLBACK;
+
+    /**
+     * Runs the command in the daemon of the current repository, if one is listening.
+     *
+     * @param args the command line arguments
+     * @return the command's exit code, or {@link #NOT_FORWARDED} if no daemon took it
+     * @throws IOException if the daemon fails after accepting the command
+     */
+    public static int forward(String[] args) throws IOException {
+        File socketFile = DaemonProtocol.SOCKET_FILE.getAbsoluteFile();
+        if (System.getenv("GITTY_NO_DAEMON") != null || !socketFile.exists()) {
+            return NOT_FORWARDED;
+        }
+
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.toPath()));
+        } catch (IOException e) {
+            return NOT_FORWARDED; // Stale socket file, nobody is listening
+        }
+
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (type == DaemonProtocol.EXIT) {
+                    System.out.flush();
+                    return length;
+                }
+
+                PrintStream target = type == DaemonProtocol.STDERR ? System.err : System.out;
+                while (length > 0) {
+                    int read = in.read(buffer, 0, Math.min(buffer.length, length));
+                    if (read == -1) {
+                        throw new EOFException("Daemon closed the connection");
+                    }
+                    target.write(buffer, 0, read);
+                    length -= read;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.scm.daemon;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wire format shared by the daemon and its client.
+ *
+ * <p>The client sends its working directory and arguments as {@code writeUTF} strings. The
+ * daemon answers with frames of {@code [type byte][length int][bytes]}; an {@link #EXIT} frame
+ * carries the exit code instead of bytes and ends the conversation.
+ */
+final class DaemonProtocol {
+    static final File SOCKET_FILE = new File(".gitty/daemon.sock");
+
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 0;
+
+    // Exit code telling the client to run the command itself
+    static final int EXIT_FALLBACK = -1;
+
+    private DaemonProtocol() {
+    }
+
+    /**
+     * An output stream that wraps everything written to it into frames of one type.
+     */
+    static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.scm.daemon;
+
+import org.scm.Main;
+import org.scm.core.ObjectStore;
+import org.scm.core.RepoCache;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Long-lived server that runs gitty commands for {@link DaemonClient} so repeated commands skip
+ * JVM startup and reuse the parsed index, refs, commits and trees held by {@link RepoCache}.
+ *
+ * <p>Commands print to {@code System.out} and resolve paths against the working directory, so
+ * the daemon serves one repository (the one it was started in) and runs one command at a time.
+ */
+public class GittyDaemon {
+    // Commands after which cached HEAD, refs and index are known to be current
+    private static final Set<String> READ_ONLY_COMMANDS = Set.of("status", "log", "cat-file", "diffs", "grep", "archive", "--help");
+
+    public void serve() throws IOException {
+        if (!new File(".gitty").isDirectory()) {
+            throw new IOException("No .gitty repository found. Are you inside a repository?");
+        }
+
+        File socketFile = DaemonProtocol.SOCKET_FILE.getAbsoluteFile();
+        Files.deleteIfExists(socketFile.toPath()); // Left behind by a daemon that was killed
+        String workDir = new File("").getAbsolutePath();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bindOwnerOnly(server, socketFile.toPath());
+            Runtime.getRuntime().addShutdownHook(new Thread(socketFile::delete));
+            System.out.println("Gitty daemon listening on " + socketFile.getPath());
+
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client, workDir);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Daemon request failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Binds the socket so that only its owner can connect: other users could otherwise run
+     * commands in the repository as the daemon's user. The socket is made in a directory only the
+     * owner can enter, given owner-only permissions there and then moved into place, so it is
+     * never reachable with the default permissions. Where files have no POSIX permissions the
+     * socket is bound in place.
+     */
+    private static void bindOwnerOnly(ServerSocketChannel server, Path socketPath) throws IOException {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory(socketPath.getParent(), "daemon",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            return;
+        }
+        try {
+            Path privatePath = directory.resolve(socketPath.getFileName());
+            server.bind(UnixDomainSocketAddress.of(privatePath));
+            Files.setPosixFilePermissions(privatePath, PosixFilePermissions.fromString("rw-------"));
+            Files.move(privatePath, socketPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(directory.resolve(socketPath.getFileName()));
+            Files.delete(directory);
+        }
+    }
+
+    private void handle(SocketChannel client, String workDir) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+
+        String clientDir = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+
+        // Relative .gitty paths would point at the wrong repository, let the client run it
+        if (!clientDir.equals(workDir)) {
+            writeExit(out, DaemonProtocol.EXIT_FALLBACK);
+            return;
+        }
+
+        int exitCode = 0;
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        PrintStream commandOut = new PrintStream(new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDOUT), false, StandardCharsets.UTF_8);
+        PrintStream commandErr = new PrintStream(new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.STDERR), true, StandardCharsets.UTF_8);
+        System.setOut(commandOut);
+        System.setErr(commandErr);
+        try {
+            // Objects may have been pruned by a command that did not run here
+            ObjectStore.revalidateKnownObjects();
+            Main.run(args);
+        } catch (Throwable e) {
+            // Even an Error such as running out of memory only fails this command
+            e.printStackTrace();
+            exitCode = 1;
+        } finally {
+            commandOut.flush();
+            commandErr.flush();
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+
+        // A failed command may have left files half updated behind the cached copies
+        if (exitCode != 0 || args.length == 0 || !READ_ONLY_COMMANDS.contains(args[0])) {
+            RepoCache.invalidateFiles();
+        }
+        writeExit(out, exitCode);
+    }
+
+    private void writeExit(DataOutputStream out, int exitCode) throws IOException {
+        out.writeByte(DaemonProtocol.EXIT);
+        out.writeInt(exitCode);
+        out.flush();
+    }
+}
@@ -3,12 +3,18 @@ package org.scm.models;
 import java.util.List;
 
 public class Commit {
+    private String sha;
     private String treeSha;
     private List<String> parentShas;
     private String author;
     private String committer;
     private String message;
 
+    public Commit(String sha, String treeSha, List<String> parentShas, String author, String committer, String message) {
+        this(treeSha, parentShas, author, committer, message);
+        this.sha = sha;
+    }
+
     public Commit(String treeSha, List<String> parentShas, String author, String committer, String message) {
         this.treeSha = treeSha;
         this.parentShas = parentShas;
@@ -17,12 +23,29 @@ public class Commit {
         this.message = message;
     }
 
+    public String getSha() { return sha; }
     public String getTreeSha() { return treeSha; }
     public List<String> getParentShas() { return parentShas; }
     public String getAuthor() { return author; }
     public String getCommitter() { return committer; }
     public String getMessage() { return message; }
 
+    /**
+     * Returns the committer timestamp in seconds since the epoch, or 0 if it cannot be parsed.
+     */
+    public long getCommitTime() {
+        // The committer line ends with "<timestamp> <timezone>"
+        String[] parts = committer == null ? new String[0] : committer.split(" ");
+        if (parts.length >= 2) {
+            try {
+                return Long.parseLong(parts[parts.length - 2]);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
     @Override
     public String toString() {
         return "Tree: " + treeSha + "\n" +
@@ -0,0 +1,24 @@
+package org.scm.models;
+
+public class TreeEntry {
+    public static final String FILE_MODE = "100644";
+    public static final String DIRECTORY_MODE = "040000";
+
+    private final String mode;
+    private final String name;
+    private final String sha1;
+
+    public TreeEntry(String mode, String name, String sha1) {
+        this.mode = mode;
+        this.name = name;
+        this.sha1 = sha1;
+    }
+
+    public String getMode() { return mode; }
+    public String getName() { return name; }
+    public String getSha1() { return sha1; }
+
+    public boolean isDirectory() {
+        return DIRECTORY_MODE.equals(mode);
+    }
+}
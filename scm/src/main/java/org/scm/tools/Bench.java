@@ -0,0 +1,401 @@
+package org.scm.tools;
+
+import org.scm.Main;
+import org.scm.core.RefDatabase;
+import org.scm.utils.FileUtils;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * End-to-end benchmark of the command line on a generated repository, for comparing gitty
+ * versions before rolling them out.
+ *
+ * <p>The repository is generated through the commands themselves: files at a fixed directory
+ * depth with log-normally distributed sizes, a history of commits each changing about one
+ * file in a hundred, and branches that each add one commit. Every command, during generation
+ * and measurement, runs in its own JVM as a user would start it, through
+ * {@link #main(String[])}, which reports how long the command took inside the JVM and how
+ * much it allocated. Each iteration measures {@code status}, {@code log} and {@code diffs},
+ * then {@code add} and {@code commit} of a change, {@code merge} of a branch and {@code clone},
+ * on a fresh copy of the generated repository, so every iteration starts from the same state.
+ *
+ * <p>The report is JSON: for each command the minimum, percentiles, mean and maximum of the
+ * process time, the time inside the JVM and the allocation, plus the files (or for {@code log}
+ * commits) handled per second at the median. Percentiles are nearest-rank, so with few
+ * iterations the high ones equal the maximum. Progress goes to stderr and the output of the
+ * commands to {@code bench.log} in the benchmark directory.
+ */
+public class Bench {
+    private static final String RESULT_PREFIX = "gitty-bench ";
+    private static final int MAX_BLOB_SIZE = 16 * 1024 * 1024;
+    private static final int FILES_PER_DIRECTORY = 16;
+    private static final int[] PERCENTILES = {50, 90, 99};
+
+    /**
+     * What to generate and how often to measure.
+     *
+     * @param blobSize  the median file size in bytes
+     * @param blobSigma the spread of file sizes, as the sigma of their log-normal distribution
+     * @param directory where to create the repository, or null for a temporary directory
+     * @param keep      keep the benchmark directory afterwards
+     */
+    public record Options(int files, int depth, int blobSize, double blobSigma, int commits, int branches,
+                          int iterations, long seed, File directory, boolean keep) {
+
+        /**
+         * Parses {@code --name=value} options.
+         *
+         * @throws IllegalArgumentException for an unknown option or a value out of range
+         */
+        public static Options parse(List<String> args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                if (arg.equals("--keep")) {
+                    values.put("keep", "true");
+                } else if (arg.startsWith("--") && arg.contains("=")) {
+                    values.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+                } else {
+                    throw new IllegalArgumentException("Unknown option '" + arg + "' for 'bench' command.");
+                }
+            }
+            Options options = new Options(
+                    intValue(values, "files", 1000), intValue(values, "depth", 3),
+                    intValue(values, "blob-size", 4096), Double.parseDouble(values.getOrDefault("blob-sigma", "1.0")),
+                    intValue(values, "commits", 10), intValue(values, "branches", 2),
+                    intValue(values, "iterations", 5), Long.parseLong(values.getOrDefault("seed", "42")),
+                    values.containsKey("dir") ? new File(values.remove("dir")) : null, values.remove("keep") != null);
+            for (String name : List.of("files", "depth", "blob-size", "blob-sigma", "commits", "branches", "iterations", "seed")) {
+                values.remove(name);
+            }
+            if (!values.isEmpty()) {
+                throw new IllegalArgumentException("Unknown option '--" + values.keySet().iterator().next() + "' for 'bench' command.");
+            }
+            if (options.files < 1 || options.depth < 0 || options.blobSize < 0 || options.blobSigma < 0
+                    || options.commits < 1 || options.branches < 0 || options.iterations < 1) {
+                throw new IllegalArgumentException("Bench options out of range: files, commits and iterations must be "
+                        + "at least 1, the others at least 0.");
+            }
+            if (options.branches > 0 && options.files < 2) {
+                throw new IllegalArgumentException("Bench options out of range: branches need at least 2 files, so the "
+                        + "measured commit can change a file the merged branch did not.");
+            }
+            return options;
+        }
+
+        private static int intValue(Map<String, String> values, String name, int defaultValue) {
+            return Integer.parseInt(values.getOrDefault(name, String.valueOf(defaultValue)));
+        }
+    }
+
+    /**
+     * One command run: the time of the whole process and the time and allocation inside the JVM.
+     */
+    private record Sample(long processNanos, long commandNanos, long allocatedBytes) {
+    }
+
+    private final Options options;
+    private final Random random;
+    private final String java = ProcessHandle.current().info().command().orElse("java");
+    private File benchDir;
+    private File logFile;
+    private final List<String> paths = new ArrayList<>();
+    // Files changed on bench-1, which the measured commit leaves alone so that merging bench-1 never conflicts
+    private final Set<String> mergedBranchPaths = new HashSet<>();
+    private long repositoryBytes;
+    private int directories;
+    private int changeCount;
+
+    public Bench(Options options) {
+        this.options = options;
+        this.random = new Random(options.seed());
+    }
+
+    /**
+     * Runs one command in this JVM for the benchmark and prints its measurements, as
+     * {@code "gitty-bench <nanos> <allocated bytes>"}, instead of its output.
+     */
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+        long start = System.nanoTime();
+        try {
+            Main.run(args);
+        } finally {
+            long nanos = System.nanoTime() - start;
+            long allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+            System.setOut(originalOut);
+            System.out.println(RESULT_PREFIX + nanos + " " + allocated);
+        }
+    }
+
+    /**
+     * Generates the repository, measures every command and writes the JSON report.
+     */
+    public void run(OutputStream reportOutput) throws IOException {
+        benchDir = options.directory() != null ? options.directory() : Files.createTempDirectory("gitty-bench").toFile();
+        File pristine = new File(benchDir, "repo");
+        if (pristine.exists()) {
+            throw new IOException("Bench directory already holds a repository: " + pristine.getPath());
+        }
+        pristine.mkdirs();
+        logFile = new File(benchDir, "bench.log");
+
+        try {
+            // Step 1: Generate the repository through the commands themselves
+            long generationStart = System.nanoTime();
+            System.err.println("Generating " + options.files() + " files in " + pristine.getPath());
+            runCommand(pristine, "init");
+            generateFiles(pristine);
+            Sample initialAdd = runCommand(pristine, "add");
+            Sample initialCommit = runCommand(pristine, "commit", "initial");
+            for (int i = 1; i < options.commits(); i++) {
+                changeFiles(pristine, Set.of());
+                runCommand(pristine, "add");
+                runCommand(pristine, "commit", "change " + i);
+            }
+            String mainBranch = new RefDatabase(new File(pristine, ".gitty")).getCurrentBranch();
+            for (int i = 1; i <= options.branches(); i++) {
+                createBranch(pristine, "bench-" + i, mainBranch);
+            }
+            long generationNanos = System.nanoTime() - generationStart;
+
+            // Step 2: Measure each command on a fresh copy per iteration
+            Map<String, List<Sample>> samples = new LinkedHashMap<>();
+            Map<String, Long> workPerRun = new LinkedHashMap<>();
+            int changedPerIteration = changesPerCommit();
+            for (int iteration = 1; iteration <= options.iterations(); iteration++) {
+                System.err.println("Iteration " + iteration + " of " + options.iterations());
+                File work = new File(benchDir, "work");
+                File clone = new File(benchDir, "clone");
+                copyDirectory(pristine.toPath(), work.toPath());
+                try {
+                    measure(samples, workPerRun, "status", paths.size(), work, "status");
+                    measure(samples, workPerRun, "log", options.commits(), work, "log");
+                    if (options.branches() > 0) {
+                        measure(samples, workPerRun, "diffs", paths.size(), work, "diffs", "bench-1");
+                    }
+                    changeFiles(work, mergedBranchPaths);
+                    measure(samples, workPerRun, "add", changedPerIteration, work, "add");
+                    measure(samples, workPerRun, "commit", paths.size(), work, "commit", "bench change");
+                    if (options.branches() > 0) {
+                        measure(samples, workPerRun, "merge", paths.size(), work, "merge", "bench-1");
+                    }
+                    measure(samples, workPerRun, "clone", paths.size(), work, "clone", clone.getAbsolutePath());
+                } finally {
+                    deleteIfExists(work);
+                    deleteIfExists(clone);
+                }
+            }
+
+            // Step 3: Report
+            PrintStream out = new PrintStream(reportOutput, true, StandardCharsets.UTF_8);
+            out.println(report(generationNanos, initialAdd, initialCommit, samples, workPerRun));
+            out.flush();
+        } finally {
+            if (!options.keep()) {
+                deleteIfExists(benchDir);
+            } else {
+                System.err.println("Kept " + benchDir.getPath());
+            }
+        }
+    }
+
+    private void measure(Map<String, List<Sample>> samples, Map<String, Long> workPerRun, String name, long work,
+                         File repository, String... args) throws IOException {
+        samples.computeIfAbsent(name, n -> new ArrayList<>()).add(runCommand(repository, args));
+        workPerRun.put(name, work);
+    }
+
+    private Sample runCommand(File repository, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"), Bench.class.getName()));
+        command.addAll(List.of(args));
+        ProcessBuilder builder = new ProcessBuilder(command).directory(repository);
+        builder.environment().put("GITTY_NO_DAEMON", "1");
+        builder.redirectError(ProcessBuilder.Redirect.appendTo(logFile));
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+        String result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                }
+            }
+        }
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + args[0], e);
+        }
+        long processNanos = System.nanoTime() - start;
+        if (exitCode != 0 || result == null) {
+            throw new IOException("Bench command '" + String.join(" ", args) + "' failed with exit code " + exitCode
+                    + "; see " + logFile.getPath());
+        }
+        String[] fields = result.split(" ");
+        return new Sample(processNanos, Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+    }
+
+    private void generateFiles(File repository) throws IOException {
+        // Enough directories per level that the deepest ones hold about FILES_PER_DIRECTORY files each
+        int width = options.depth() == 0 ? 1
+                : Math.max(2, (int) Math.ceil(Math.pow(Math.max(1.0, options.files() / (double) FILES_PER_DIRECTORY), 1.0 / options.depth())));
+        Set<String> directoryPaths = new HashSet<>();
+        for (int i = 0; i < options.files(); i++) {
+            StringBuilder directory = new StringBuilder();
+            for (int level = 0; level < options.depth(); level++) {
+                directory.append("dir").append(random.nextInt(width)).append('/');
+            }
+            directoryPaths.add(directory.toString());
+            String path = directory + "file" + i + ".txt";
+            byte[] content = randomText(blobSize());
+            FileUtils.writeFile(new File(repository, path).getPath(), content);
+            paths.add(path);
+            repositoryBytes += content.length;
+        }
+        directories = directoryPaths.size();
+    }
+
+    // Appends a line to about one file in a hundred, as a typical commit would, skipping the excluded
+    // paths, and returns the earlier content of the changed files by path
+    private Map<String, byte[]> changeFiles(File repository, Set<String> excluded) throws IOException {
+        List<String> candidates = excluded.isEmpty() ? paths : paths.stream().filter(p -> !excluded.contains(p)).toList();
+        Map<String, byte[]> originals = new HashMap<>();
+        for (int i = 0; i < changesPerCommit(); i++) {
+            String path = candidates.get(random.nextInt(candidates.size()));
+            File file = new File(repository, path);
+            if (!originals.containsKey(path)) {
+                originals.put(path, Files.readAllBytes(file.toPath()));
+            }
+            Files.write(file.toPath(), ("bench change " + (++changeCount) + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+        }
+        return originals;
+    }
+
+    private void createBranch(File repository, String branch, String mainBranch) throws IOException {
+        runCommand(repository, "branch", branch);
+        runCommand(repository, "checkout", branch);
+        Map<String, byte[]> originals = changeFiles(repository, Set.of());
+        runCommand(repository, "add");
+        runCommand(repository, "commit", "change on " + branch);
+        if (branch.equals("bench-1")) {
+            mergedBranchPaths.addAll(originals.keySet());
+        }
+
+        // Checkout only moves HEAD, so the files changed on the branch are put back and staged again
+        runCommand(repository, "checkout", mainBranch);
+        for (Map.Entry<String, byte[]> original : originals.entrySet()) {
+            Files.write(new File(repository, original.getKey()).toPath(), original.getValue());
+        }
+        runCommand(repository, "add");
+    }
+
+    private int changesPerCommit() {
+        return Math.max(1, paths.size() / 100);
+    }
+
+    private int blobSize() {
+        double size = options.blobSize() * Math.exp(options.blobSigma() * random.nextGaussian());
+        return (int) Math.min(MAX_BLOB_SIZE, Math.round(size));
+    }
+
+    // Lines of lowercase letters, so line-based diffs and merges have realistic work to do
+    private byte[] randomText(int size) {
+        byte[] text = new byte[size];
+        for (int i = 0; i < size; i++) {
+            text[i] = (i % 61 == 60 || i == size - 1) ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        return text;
+    }
+
+    private String report(long generationNanos, Sample initialAdd, Sample initialCommit,
+                          Map<String, List<Sample>> samples, Map<String, Long> workPerRun) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("  \"os\": \"").append(System.getProperty("os.name")).append(' ').append(System.getProperty("os.arch")).append("\",\n");
+        json.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"options\": {\"files\": ").append(options.files()).append(", \"depth\": ").append(options.depth())
+                .append(", \"blobSize\": ").append(options.blobSize()).append(", \"blobSigma\": ").append(options.blobSigma())
+                .append(", \"commits\": ").append(options.commits()).append(", \"branches\": ").append(options.branches())
+                .append(", \"iterations\": ").append(options.iterations()).append(", \"seed\": ").append(options.seed()).append("},\n");
+        json.append("  \"repository\": {\"files\": ").append(paths.size()).append(", \"directories\": ").append(directories)
+                .append(", \"bytes\": ").append(repositoryBytes).append(", \"commits\": ").append(options.commits() + options.branches())
+                .append(", \"branches\": ").append(options.branches() + 1).append("},\n");
+        json.append("  \"generation\": {\"seconds\": ").append(format(generationNanos / 1e9))
+                .append(", \"initialAddMillis\": ").append(format(initialAdd.processNanos() / 1e6))
+                .append(", \"initialCommitMillis\": ").append(format(initialCommit.processNanos() / 1e6)).append("},\n");
+        json.append("  \"commands\": {");
+        String separator = "\n";
+        for (Map.Entry<String, List<Sample>> command : samples.entrySet()) {
+            List<Sample> runs = command.getValue();
+            double[] processMillis = runs.stream().mapToDouble(s -> s.processNanos() / 1e6).toArray();
+            double[] commandMillis = runs.stream().mapToDouble(s -> s.commandNanos() / 1e6).toArray();
+            double[] allocatedMegabytes = runs.stream().mapToDouble(s -> s.allocatedBytes() / 1048576.0).toArray();
+            double medianSeconds = percentile(commandMillis, 50) / 1000;
+            String unit = command.getKey().equals("log") ? "commits/s" : "files/s";
+
+            json.append(separator).append("    \"").append(command.getKey()).append("\": {\"runs\": ").append(runs.size())
+                    .append(",\n      \"processMillis\": ").append(statistics(processMillis))
+                    .append(",\n      \"commandMillis\": ").append(statistics(commandMillis))
+                    .append(",\n      \"allocatedMB\": ").append(statistics(allocatedMegabytes))
+                    .append(",\n      \"throughput\": {\"value\": ")
+                    .append(format(medianSeconds > 0 ? workPerRun.get(command.getKey()) / medianSeconds : 0))
+                    .append(", \"unit\": \"").append(unit).append("\"}}");
+            separator = ",\n";
+        }
+        json.append("\n  }\n}");
+        return json.toString();
+    }
+
+    private static String statistics(double[] values) {
+        StringBuilder json = new StringBuilder("{\"min\": ").append(format(Arrays.stream(values).min().orElse(0)));
+        for (int percentile : PERCENTILES) {
+            json.append(", \"p").append(percentile).append("\": ").append(format(percentile(values, percentile)));
+        }
+        json.append(", \"max\": ").append(format(Arrays.stream(values).max().orElse(0)));
+        json.append(", \"mean\": ").append(format(Arrays.stream(values).average().orElse(0)));
+        return json.append('}').toString();
+    }
+
+    // Nearest-rank percentile
+    private static double percentile(double[] values, int percentile) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static void copyDirectory(Path source, Path target) throws IOException {
+        try (var files = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Path copy = target.resolve(source.relativize(path));
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(copy);
+                } else {
+                    Files.copy(path, copy, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+        }
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+        if (file.exists()) {
+            FileUtils.deleteRecursively(file);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.scm.tools;
+
+import org.scm.Main;
+import org.scm.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+/**
+ * Training workload for the AppCDS archive built by {@code mvn package}.
+ *
+ * <p>The build runs this class with {@code -XX:ArchiveClassesAtExit} so every class loaded by
+ * the everyday commands ends up in the archive the launcher script maps at startup. It must
+ * run inside a scratch directory because commands work on the current directory. Commands
+ * go through {@link Main#main(String[])} so the daemon probe is trained as well.
+ */
+public class CdsTraining {
+    private static final String MARKER = ".cds-training";
+
+    public static void main(String[] args) throws Exception {
+        File workDir = new File("").getAbsoluteFile();
+        File marker = new File(workDir, MARKER);
+        File gitDir = new File(workDir, ".gitty");
+        if (gitDir.exists() && !marker.exists()) {
+            throw new IOException("Refusing to train inside a real repository: " + workDir);
+        }
+
+        // Start from a clean scratch repository on every build
+        if (gitDir.exists()) {
+            FileUtils.deleteRecursively(gitDir);
+        }
+        new File(workDir, ".gittyignore").delete();
+        Files.writeString(marker.toPath(), "AppCDS training directory, safe to delete\n");
+        new File(workDir, "src/docs").mkdirs();
+        Files.writeString(new File(workDir, "src/Hello.txt").toPath(), "hello\nworld\n");
+        Files.writeString(new File(workDir, "src/docs/Readme.txt").toPath(), "training\n");
+        Files.writeString(new File(workDir, "src/docs/Greeting.txt").toPath(), "hello\n");
+
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Main.main(new String[]{"--help"});
+            Main.main(new String[]{"init"});
+            Main.main(new String[]{"add"});
+            Main.main(new String[]{"commit", "initial"});
+            Main.main(new String[]{"branch", "training"});
+            Main.main(new String[]{"checkout", "training"});
+            Files.writeString(new File(workDir, "src/Hello.txt").toPath(), "hello\nthere\n");
+            Main.main(new String[]{"add"});
+            Main.main(new String[]{"commit", "change"});
+            Main.main(new String[]{"status"});
+            Main.main(new String[]{"log"});
+            Main.main(new String[]{"diffs", "main"});
+            Main.main(new String[]{"cat-file", "ce013625030ba8dba906f756967f9e9ca394464a"}); // Greeting.txt
+            Main.main(new String[]{"checkout", "main"});
+            Main.main(new String[]{"merge", "training"});
+        } finally {
+            System.setOut(originalOut);
+        }
+    }
+}
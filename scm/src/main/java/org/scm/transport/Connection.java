@@ -0,0 +1,35 @@
+package org.scm.transport;
+
+import java.io.*;
+
+/**
+ * A bidirectional byte stream to the pack service of another repository.
+ */
+public class Connection implements Closeable {
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Closeable onClose;
+
+    public Connection(InputStream in, OutputStream out, Closeable onClose) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.onClose = onClose;
+    }
+
+    public DataInputStream getInputStream() {
+        return in;
+    }
+
+    public DataOutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            onClose.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.scm.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Runs the remote side in a thread of this JVM, connected through pipes.
+ */
+public class LocalTransport implements Transport {
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final File remoteRoot;
+
+    public LocalTransport(File remoteRoot) {
+        this.remoteRoot = remoteRoot;
+    }
+
+    @Override
+    public Connection open(String service) throws IOException {
+        PipedInputStream clientIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+        PipedInputStream serverIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+
+        Connection serverSide = new Connection(serverIn, serverOut, () -> { });
+        Thread server = new Thread(() -> {
+            try (serverSide) {
+                PackService.run(service, new File(remoteRoot, ".gitty"), serverSide);
+            } catch (IOException e) {
+                System.err.println("Remote " + service + " failed: " + e.getMessage());
+            }
+        }, "gitty-" + service);
+        server.setDaemon(true);
+        server.start();
+
+        return new Connection(clientIn, clientOut, () -> {
+            try {
+                server.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+}
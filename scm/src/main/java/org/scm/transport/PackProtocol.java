@@ -0,0 +1,182 @@
+package org.scm.transport;
+
+import org.scm.core.HashUtils;
+import org.scm.core.ObjectStore;
+import org.scm.utils.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Messages exchanged by fetch and push, plus the ref helpers both sides need.
+ *
+ * <p>Strings travel as {@code writeUTF}. A ref advertisement is a count followed by
+ * name/SHA pairs. A bundle is a count followed by, per object, its raw 20-byte SHA, the length
+ * of the deflated object file and the file bytes, which are copied as stored on either side.
+ */
+public final class PackProtocol {
+    // Each chunk list entry is a raw chunk SHA and the chunk's length as a big-endian int
+    private static final int CHUNK_ENTRY_SIZE = 20 + 4;
+
+    private PackProtocol() {
+    }
+
+    public static void writeRefs(DataOutputStream out, Map<String, String> refs) throws IOException {
+        out.writeInt(refs.size());
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            out.writeUTF(ref.getKey());
+            out.writeUTF(ref.getValue());
+        }
+        out.flush();
+    }
+
+    public static Map<String, String> readRefs(DataInputStream in) throws IOException {
+        Map<String, String> refs = new TreeMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            refs.put(in.readUTF(), in.readUTF());
+        }
+        return refs;
+    }
+
+    public static void writeShas(DataOutputStream out, List<String> shas) throws IOException {
+        out.writeInt(shas.size());
+        for (String sha : shas) {
+            out.writeUTF(sha);
+        }
+        out.flush();
+    }
+
+    public static List<String> readShas(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        String[] shas = new String[count];
+        for (int i = 0; i < count; i++) {
+            shas[i] = in.readUTF();
+        }
+        return List.of(shas);
+    }
+
+    public static void writeBundle(DataOutputStream out, ObjectStore objectStore, List<String> objects) throws IOException {
+        out.writeInt(objects.size());
+        for (String sha : objects) {
+            byte[] compressed = objectStore.readCompressed(sha);
+            out.write(HashUtils.hexToBytes(sha));
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        }
+        out.flush();
+    }
+
+    /**
+     * Stores every object of a bundle, checking that each one hashes to its name. A chunked
+     * blob is stored last, once its chunks are in and it reassembles into the blob it names.
+     *
+     * @return the number of objects received
+     */
+    public static int readBundle(DataInputStream in, ObjectStore objectStore) throws IOException {
+        int count = in.readInt();
+        byte[] rawSha = new byte[20];
+        Map<String, ReceivedChunkList> chunkLists = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            in.readFully(rawSha);
+            byte[] compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+
+            String sha = FileUtils.bytesToHex(rawSha);
+            byte[] data = inflate(compressed);
+            if (isChunkList(data)) {
+                chunkLists.put(sha, new ReceivedChunkList(data, compressed)); // Its chunks may still be on the way
+                continue;
+            }
+            if (!HashUtils.computeSHA1(data).equals(sha)) {
+                throw new IOException("Received corrupt object " + sha);
+            }
+            objectStore.writeCompressed(sha, compressed);
+        }
+
+        for (Map.Entry<String, ReceivedChunkList> chunkList : chunkLists.entrySet()) {
+            verifyChunks(chunkList.getKey(), chunkList.getValue().data(), objectStore);
+            objectStore.writeCompressed(chunkList.getKey(), chunkList.getValue().compressed());
+        }
+        return count;
+    }
+
+    /**
+     * Reads past a bundle without storing anything, for a push that is refused anyway.
+     */
+    public static void skipBundle(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            in.skipNBytes(20);
+            in.skipNBytes(in.readInt());
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        try (InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+            return inflater.readAllBytes();
+        }
+    }
+
+    private static boolean isChunkList(byte[] data) {
+        return new String(data, 0, Math.min(7, data.length), StandardCharsets.UTF_8).equals("chunks ");
+    }
+
+    // A chunk list is stored under the SHA of the blob it reassembles into, not its own, so the
+    // blob is rebuilt from its chunks one at a time and hashed as it goes
+    private static void verifyChunks(String sha, byte[] chunkList, ObjectStore objectStore) throws IOException {
+        int headerEnd = 0;
+        while (headerEnd < chunkList.length && chunkList[headerEnd] != 0) {
+            headerEnd++;
+        }
+        long size;
+        try {
+            size = Long.parseLong(new String(chunkList, 7, headerEnd - 7, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IOException("Received corrupt object " + sha);
+        }
+        if ((chunkList.length - headerEnd - 1) % CHUNK_ENTRY_SIZE != 0) {
+            throw new IOException("Received corrupt chunk list " + sha);
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 algorithm not found", e);
+        }
+        digest.update(("blob " + size + "\0").getBytes(StandardCharsets.UTF_8));
+        ByteBuffer entries = ByteBuffer.wrap(chunkList, headerEnd + 1, chunkList.length - headerEnd - 1);
+        byte[] rawChunkSha = new byte[20];
+        long total = 0;
+        while (entries.hasRemaining()) {
+            entries.get(rawChunkSha);
+            int length = entries.getInt();
+            String chunkSha = FileUtils.bytesToHex(rawChunkSha);
+            if (!objectStore.knowsObject(chunkSha)) {
+                throw new IOException("Received chunked blob " + sha + " without its chunk " + chunkSha);
+            }
+            byte[] chunk = objectStore.readContent(chunkSha);
+            if (chunk.length != length) {
+                throw new IOException("Received corrupt chunk list " + sha + ": chunk " + chunkSha
+                        + " has " + chunk.length + " bytes, not " + length);
+            }
+            digest.update(chunk);
+            total += length;
+        }
+        if (total != size || !FileUtils.bytesToHex(digest.digest()).equals(sha)) {
+            throw new IOException("Received corrupt object " + sha);
+        }
+    }
+
+    private record ReceivedChunkList(byte[] data, byte[] compressed) {
+    }
+}
@@ -0,0 +1,98 @@
+package org.scm.transport;
+
+import org.scm.core.ObjectStore;
+import org.scm.core.ObjectWalk;
+import org.scm.core.RefDatabase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The remote side of fetch ({@code upload-pack}) and push ({@code receive-pack}).
+ * It never prints: in a child process stdout is the protocol stream.
+ */
+public final class PackService {
+    private PackService() {
+    }
+
+    public static void run(String service, File gitDir, Connection connection) throws IOException {
+        switch (service) {
+            case Transport.UPLOAD_PACK -> uploadPack(gitDir, connection);
+            case Transport.RECEIVE_PACK -> receivePack(gitDir, connection);
+            default -> throw new IOException("Unknown service: " + service);
+        }
+    }
+
+    private static void uploadPack(File gitDir, Connection connection) throws IOException {
+        DataInputStream in = connection.getInputStream();
+        DataOutputStream out = connection.getOutputStream();
+        ObjectStore objectStore = new ObjectStore(gitDir);
+
+        PackProtocol.writeRefs(out, new RefDatabase(gitDir).listRefs());
+        List<String> wants = PackProtocol.readShas(in);
+        if (wants.isEmpty()) {
+            return;
+        }
+
+        // Acknowledge the client's haves we also have until it sends an empty batch
+        Set<String> common = new HashSet<>();
+        while (true) {
+            List<String> haves = PackProtocol.readShas(in);
+            if (haves.isEmpty()) {
+                break;
+            }
+            List<String> acks = new ArrayList<>();
+            for (String have : haves) {
+                if (objectStore.knowsObject(have)) {
+                    acks.add(have);
+                }
+            }
+            common.addAll(acks);
+            PackProtocol.writeShas(out, acks);
+        }
+
+        List<String> objects = new ObjectWalk(objectStore).findObjectsToSend(wants, common);
+        PackProtocol.writeBundle(out, objectStore, objects);
+    }
+
+    private static void receivePack(File gitDir, Connection connection) throws IOException {
+        DataInputStream in = connection.getInputStream();
+        DataOutputStream out = connection.getOutputStream();
+
+        PackProtocol.writeRefs(out, new RefDatabase(gitDir).listRefs());
+        String refName = in.readUTF();
+        if (refName.isEmpty()) {
+            return; // Nothing to push
+        }
+        String oldSha = in.readUTF();
+        String newSha = in.readUTF();
+        ObjectStore objectStore = new ObjectStore(gitDir);
+        RefDatabase refDatabase = new RefDatabase(gitDir);
+
+        // A push refused for its ref stores nothing; the bundle is still read so the client can finish sending
+        String status = null;
+        if (refName.equals(refDatabase.getHeadRef())) {
+            // Its index and working files would no longer match the branch
+            status = "ng " + refName + " is checked out in the remote repository";
+        } else if (!refName.startsWith("refs/heads/") || refName.contains("..")) {
+            status = "ng invalid ref name " + refName;
+        }
+        if (status != null) {
+            PackProtocol.skipBundle(in);
+        } else {
+            PackProtocol.readBundle(in, objectStore);
+            if (!new ObjectWalk(objectStore).isComplete(newSha, refDatabase.listRefs().values())) {
+                status = "ng missing objects in the history of " + newSha;
+            } else if (!refDatabase.updateRef(refName, oldSha, newSha)) {
+                status = "ng " + refName + " changed during the push, fetch first";
+            } else {
+                status = "ok";
+            }
+        }
+        out.writeUTF(status);
+        out.flush();
+    }
+}
@@ -0,0 +1,38 @@
+package org.scm.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Starts {@code gitty upload-pack|receive-pack <path>} as a child process and talks to it over
+ * its stdin and stdout, standing in for a remote reached through a shell.
+ */
+public class ProcessTransport implements Transport {
+    private final File remoteRoot;
+
+    public ProcessTransport(File remoteRoot) {
+        this.remoteRoot = remoteRoot;
+    }
+
+    @Override
+    public Connection open(String service) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        ProcessBuilder builder = new ProcessBuilder(List.of(java, "-cp", System.getProperty("java.class.path"),
+                "org.scm.Main", service, remoteRoot.getPath()));
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        builder.environment().put("GITTY_NO_DAEMON", "1");
+        Process process = builder.start();
+
+        return new Connection(process.getInputStream(), process.getOutputStream(), () -> {
+            try {
+                if (process.waitFor() != 0) {
+                    throw new IOException("Remote " + service + " exited with code " + process.exitValue());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            }
+        });
+    }
+}
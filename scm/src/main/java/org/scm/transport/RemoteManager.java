@@ -0,0 +1,185 @@
+package org.scm.transport;
+
+import org.scm.core.CommitManager;
+import org.scm.core.ObjectStore;
+import org.scm.core.ObjectWalk;
+import org.scm.core.RefDatabase;
+import org.scm.models.Commit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Fetches from and pushes to another repository. Fetched branches are recorded as
+ * {@code refs/remotes/origin/<branch>} and in {@code FETCH_HEAD}; pushes only fast-forward.
+ */
+public class RemoteManager {
+    private static final String REMOTE_NAME = "origin";
+    // Haves sent per negotiation round, and how many may go unacknowledged before giving up
+    private static final int HAVES_PER_ROUND = 32;
+    private static final int MAX_UNACKNOWLEDGED_HAVES = 256;
+
+    private final File gitDir = new File(".gitty");
+    private final ObjectStore objectStore = new ObjectStore(gitDir);
+    private final RefDatabase refDatabase = new RefDatabase(gitDir);
+
+    public void fetch(String url, String branchName) throws IOException {
+        try (Connection connection = Transport.forRemote(url).open(Transport.UPLOAD_PACK)) {
+            DataInputStream in = connection.getInputStream();
+            DataOutputStream out = connection.getOutputStream();
+
+            Map<String, String> remoteBranches = new TreeMap<>();
+            for (Map.Entry<String, String> ref : PackProtocol.readRefs(in).entrySet()) {
+                if (ref.getKey().startsWith("refs/heads/")
+                        && (branchName == null || ref.getKey().equals("refs/heads/" + branchName))) {
+                    remoteBranches.put(ref.getKey().substring("refs/heads/".length()), ref.getValue());
+                }
+            }
+            if (branchName != null && remoteBranches.isEmpty()) {
+                PackProtocol.writeShas(out, List.of());
+                throw new IOException("Remote branch " + branchName + " does not exist.");
+            }
+
+            List<String> wants = new ArrayList<>();
+            for (String sha : new LinkedHashSet<>(remoteBranches.values())) {
+                if (!objectStore.knowsObject(sha)) {
+                    wants.add(sha);
+                }
+            }
+            PackProtocol.writeShas(out, wants);
+
+            int received = 0;
+            if (!wants.isEmpty()) {
+                negotiate(in, out);
+                received = PackProtocol.readBundle(in, objectStore);
+            }
+
+            System.out.println("From " + url);
+            StringBuilder fetchHead = new StringBuilder();
+            for (Map.Entry<String, String> branch : remoteBranches.entrySet()) {
+                String trackingRef = "refs/remotes/" + REMOTE_NAME + "/" + branch.getKey();
+                String oldSha = Objects.requireNonNullElse(refDatabase.resolve(trackingRef), "");
+                if (!oldSha.equals(branch.getValue())) {
+                    if (!refDatabase.updateRef(trackingRef, oldSha, branch.getValue())) {
+                        // Another fetch moved it first; its FETCH_HEAD line is left out as well
+                        System.out.println(" ! [rejected]  " + branch.getKey() + " -> " + REMOTE_NAME + "/" + branch.getKey()
+                                + " (" + trackingRef + " changed during the fetch)");
+                        continue;
+                    }
+                    System.out.println("   " + (oldSha.isEmpty() ? "[new branch]" : oldSha.substring(0, 7) + ".." + branch.getValue().substring(0, 7))
+                            + "  " + branch.getKey() + " -> " + REMOTE_NAME + "/" + branch.getKey());
+                }
+                fetchHead.append(branch.getValue()).append("\tbranch '").append(branch.getKey()).append("' of ").append(url).append("\n");
+            }
+            Files.writeString(new File(gitDir, "FETCH_HEAD").toPath(), fetchHead.toString());
+            System.out.println(received == 0 ? "Already up to date." : "Received " + received + " objects.");
+        }
+    }
+
+    /**
+     * Tells the remote which commits we have, newest first, until it has acknowledged the
+     * commits our history shares with it. Ancestors of an acknowledged commit are not sent.
+     */
+    private void negotiate(DataInputStream in, DataOutputStream out) throws IOException {
+        CommitManager commitManager = new CommitManager(objectStore);
+        Map<String, Long> commitTimes = new HashMap<>();
+        PriorityQueue<String> queue = new PriorityQueue<>(
+                Comparator.comparing((String sha) -> commitTimes.get(sha)).reversed());
+        Set<String> queued = new HashSet<>();
+        Set<String> common = new HashSet<>();
+
+        for (String sha : refDatabase.listRefs().values()) {
+            if (objectStore.hasObject(sha) && queued.add(sha)) {
+                commitTimes.put(sha, commitManager.readCommit(sha).getCommitTime());
+                queue.add(sha);
+            }
+        }
+
+        int unacknowledged = 0;
+        while (!queue.isEmpty() && unacknowledged < MAX_UNACKNOWLEDGED_HAVES) {
+            List<String> batch = new ArrayList<>();
+            while (!queue.isEmpty() && batch.size() < HAVES_PER_ROUND) {
+                String sha = queue.poll();
+                Commit commit = commitManager.readCommit(sha);
+                boolean isCommon = common.contains(sha);
+                if (!isCommon) {
+                    batch.add(sha);
+                }
+                for (String parent : commit.getParentShas()) {
+                    if (isCommon) {
+                        common.add(parent);
+                    }
+                    if (queued.add(parent) && objectStore.hasObject(parent)) {
+                        commitTimes.put(parent, commitManager.readCommit(parent).getCommitTime());
+                        queue.add(parent);
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            PackProtocol.writeShas(out, batch);
+            List<String> acks = PackProtocol.readShas(in);
+            unacknowledged = acks.isEmpty() ? unacknowledged + batch.size() : 0;
+            for (String ack : acks) {
+                common.add(ack);
+                common.addAll(commitManager.readCommit(ack).getParentShas());
+            }
+        }
+        PackProtocol.writeShas(out, List.of());
+    }
+
+    public void push(String url, String branchName) throws IOException {
+        if (branchName == null) {
+            branchName = refDatabase.getCurrentBranch();
+        }
+        String refName = RefDatabase.HEADS_PREFIX + branchName;
+        String localSha = refDatabase.resolve(refName);
+        if (localSha == null) {
+            throw new IOException("Branch " + branchName + " has no commits to push.");
+        }
+
+        try (Connection connection = Transport.forRemote(url).open(Transport.RECEIVE_PACK)) {
+            DataInputStream in = connection.getInputStream();
+            DataOutputStream out = connection.getOutputStream();
+
+            Map<String, String> remoteRefs = PackProtocol.readRefs(in);
+            String remoteSha = remoteRefs.getOrDefault(refName, "");
+            ObjectWalk walk = new ObjectWalk(objectStore);
+
+            if (localSha.equals(remoteSha)) {
+                out.writeUTF("");
+                out.flush();
+                System.out.println("Everything up-to-date");
+                return;
+            }
+            if (!remoteSha.isEmpty() && (!objectStore.hasObject(remoteSha) || !walk.isAncestor(remoteSha, localSha))) {
+                out.writeUTF("");
+                out.flush();
+                System.out.println("! [rejected] " + branchName + " -> " + branchName + " (fetch first)");
+                return;
+            }
+
+            // Whatever the remote's refs point to and we also have is already over there
+            List<String> objects = walk.findObjectsToSend(List.of(localSha), remoteRefs.values());
+            out.writeUTF(refName);
+            out.writeUTF(remoteSha);
+            out.writeUTF(localSha);
+            PackProtocol.writeBundle(out, objectStore, objects);
+
+            String status = in.readUTF();
+            System.out.println("To " + url);
+            if (status.equals("ok")) {
+                System.out.println("   " + (remoteSha.isEmpty() ? "[new branch]" : remoteSha.substring(0, 7) + ".." + localSha.substring(0, 7))
+                        + "  " + branchName + " -> " + branchName + " (" + objects.size() + " objects)");
+            } else {
+                System.out.println(" ! [remote rejected] " + branchName + " -> " + branchName + " (" + status.substring(3) + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.scm.transport;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Opens connections to the {@code upload-pack} (fetch) or {@code receive-pack} (push) service
+ * of another repository.
+ */
+public interface Transport {
+    String UPLOAD_PACK = "upload-pack";
+    String RECEIVE_PACK = "receive-pack";
+
+    Connection open(String service) throws IOException;
+
+    /**
+     * Picks a transport for a remote location: {@code process:<path>} talks to a separate gitty
+     * process over its stdin/stdout, the way a remote would; a plain path stays in this JVM.
+     */
+    static Transport forRemote(String url) throws IOException {
+        if (url.startsWith("process:")) {
+            return new ProcessTransport(checkRepository(url.substring("process:".length())));
+        }
+        return new LocalTransport(checkRepository(url));
+    }
+
+    private static File checkRepository(String path) throws IOException {
+        File root = new File(path).getCanonicalFile();
+        if (!new File(root, ".gitty").isDirectory()) {
+            throw new IOException("Not a gitty repository: " + path);
+        }
+        return root;
+    }
+}
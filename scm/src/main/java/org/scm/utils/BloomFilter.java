@@ -0,0 +1,79 @@
+package org.scm.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Bloom filter over strings: {@link #mightContain} never misses a key that was added, and
+ * answers yes for a key that was not with a probability of about 1% at 10 bits per key.
+ */
+public final class BloomFilter {
+    public static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+
+    private final byte[] bits;
+
+    private BloomFilter(byte[] bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * Creates an empty filter sized for the given number of keys.
+     */
+    public static BloomFilter create(int expectedKeys) {
+        int bytes = Math.max(1, (expectedKeys * BITS_PER_KEY + 7) / 8);
+        return new BloomFilter(new byte[bytes]);
+    }
+
+    /**
+     * Wraps the bytes of a filter previously returned by {@link #toBytes()}.
+     */
+    public static BloomFilter fromBytes(byte[] bits) {
+        return new BloomFilter(bits);
+    }
+
+    public byte[] toBytes() {
+        return bits;
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        int bitCount = bits.length * 8;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = index(hash, i, bitCount);
+            bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int bitCount = bits.length * 8;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = index(hash, i, bitCount);
+            if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Double hashing: the i-th probe is h1 + i * h2, both halves of one 64-bit hash
+    private static int index(long hash, int i, int bitCount) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return Math.floorMod(h1 + i * h2, bitCount);
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, so the filter does not depend on String.hashCode
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        // Spread the bits so both 32-bit halves are usable on their own
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
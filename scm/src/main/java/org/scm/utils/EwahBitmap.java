@@ -0,0 +1,94 @@
+package org.scm.utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Word-aligned run-length compression of a bitmap (EWAH).
+ *
+ * <p>The bitmap is cut into 64-bit words. A marker word describes a run of "clean" words that
+ * are all zeros or all ones, followed by a number of "literal" words copied as is:
+ * bit 0 is the run bit, bits 1-32 the run length and bits 33-63 the literal count.
+ * Bitmaps of reachable objects are mostly long runs of ones, so they shrink to a few words.
+ */
+public final class EwahBitmap {
+    private static final long MAX_RUN = 0xFFFFFFFFL;
+    private static final long MAX_LITERALS = 0x7FFFFFFFL;
+
+    private EwahBitmap() {
+    }
+
+    /**
+     * Compresses a bitmap.
+     *
+     * @param bits the bitmap to compress
+     * @return the compressed words
+     */
+    public static long[] compress(BitSet bits) {
+        long[] words = bits.toLongArray();
+        List<Long> out = new ArrayList<>();
+
+        int i = 0;
+        while (i < words.length) {
+            long runBit = words[i] == -1L ? 1 : 0;
+            long runLength = 0;
+            while (i < words.length && runLength < MAX_RUN && isClean(words[i], runBit)) {
+                runLength++;
+                i++;
+            }
+
+            int literalStart = i;
+            while (i < words.length && i - literalStart < MAX_LITERALS && words[i] != 0 && words[i] != -1L) {
+                i++;
+            }
+            long literalCount = i - literalStart;
+
+            out.add(runBit | (runLength << 1) | (literalCount << 33));
+            for (int j = literalStart; j < i; j++) {
+                out.add(words[j]);
+            }
+        }
+
+        long[] compressed = new long[out.size()];
+        for (int j = 0; j < compressed.length; j++) {
+            compressed[j] = out.get(j);
+        }
+        return compressed;
+    }
+
+    /**
+     * Expands compressed words back into a bitmap.
+     *
+     * @param compressed words produced by {@link #compress(BitSet)}
+     * @return the bitmap
+     */
+    public static BitSet decompress(long[] compressed) {
+        int size = 0;
+        for (int i = 0; i < compressed.length; i++) {
+            long literalCount = compressed[i] >>> 33;
+            size += (int) ((compressed[i] >>> 1) & MAX_RUN) + (int) literalCount;
+            i += (int) literalCount;
+        }
+
+        long[] words = new long[size];
+        int position = 0;
+        for (int i = 0; i < compressed.length; i++) {
+            long marker = compressed[i];
+            long fill = (marker & 1) == 1 ? -1L : 0L;
+            int runLength = (int) ((marker >>> 1) & MAX_RUN);
+            for (int j = 0; j < runLength; j++) {
+                words[position++] = fill;
+            }
+            int literalCount = (int) (marker >>> 33);
+            System.arraycopy(compressed, i + 1, words, position, literalCount);
+            position += literalCount;
+            i += literalCount;
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private static boolean isClean(long word, long runBit) {
+        return runBit == 1 ? word == -1L : word == 0;
+    }
+}
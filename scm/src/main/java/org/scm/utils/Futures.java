@@ -0,0 +1,31 @@
+package org.scm.utils;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class Futures {
+    private Futures() {
+    }
+
+    /**
+     * Waits for a task and returns its result, rethrowing what the task threw: an IOException
+     * as it is, anything else unchecked.
+     *
+     * @param activity what is waited for, for the message when interrupted, such as "archiving"
+     * @throws IOException if the task failed with one, or the wait was interrupted
+     */
+    public static <T> T await(Future<T> result, String activity) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while " + activity, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
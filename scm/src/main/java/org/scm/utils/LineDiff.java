@@ -0,0 +1,158 @@
+package org.scm.utils;
+
+import java.util.*;
+
+/**
+ * Line-level diff using Myers' O(ND) algorithm, reporting which lines the two versions share.
+ *
+ * <p>The linear-space variant is used: each step finds the middle snake of the edit path by
+ * searching from both ends at once and recurses on the two halves, so memory stays O(N + M)
+ * however different the versions are. A search that needs more than {@value #MAX_COST} edits
+ * gives up and leaves its region unmatched, which bounds the time spent on a rewrite.
+ */
+public final class LineDiff {
+    private static final int MAX_COST = 4096;
+
+    private LineDiff() {
+    }
+
+    /**
+     * Matches the lines of a new version against an old one.
+     *
+     * @param oldLines the lines of the old version
+     * @param newLines the lines of the new version
+     * @return for every new line, the index of the same line in the old version, or -1 if the
+     *         line was added or changed
+     */
+    public static int[] matchLines(List<String> oldLines, List<String> newLines) {
+        int[] matches = new int[newLines.size()];
+        Arrays.fill(matches, -1);
+
+        // Most edits touch a small region, so trim the common prefix and suffix first
+        int prefix = 0;
+        while (prefix < oldLines.size() && prefix < newLines.size() && oldLines.get(prefix).equals(newLines.get(prefix))) {
+            matches[prefix] = prefix;
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < oldLines.size() - prefix && suffix < newLines.size() - prefix
+                && oldLines.get(oldLines.size() - 1 - suffix).equals(newLines.get(newLines.size() - 1 - suffix))) {
+            matches[newLines.size() - 1 - suffix] = oldLines.size() - 1 - suffix;
+            suffix++;
+        }
+
+        // Compare interned line ids instead of strings
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = toIds(oldLines.subList(prefix, oldLines.size() - suffix), ids);
+        int[] b = toIds(newLines.subList(prefix, newLines.size() - suffix), ids);
+        int reach = Math.min(MAX_COST, (a.length + b.length + 1) / 2) + 1;
+        new Search(a, b, matches, prefix, reach).diff(0, a.length, 0, b.length);
+        return matches;
+    }
+
+    private static int[] toIds(List<String> lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.computeIfAbsent(lines.get(i), key -> ids.size());
+        }
+        return result;
+    }
+
+    /**
+     * The frontiers of both search directions, shared by every step of the recursion.
+     */
+    private static final class Search {
+        private final int[] a;
+        private final int[] b;
+        private final int[] matches;
+        private final int offset;
+        private final int reach;
+        // Furthest x reached on each diagonal k, at index reach + k; backwards counts from the end
+        private final int[] forward;
+        private final int[] backward;
+
+        Search(int[] a, int[] b, int[] matches, int offset, int reach) {
+            this.a = a;
+            this.b = b;
+            this.matches = matches;
+            this.offset = offset;
+            this.reach = reach;
+            this.forward = new int[2 * reach + 1];
+            this.backward = new int[2 * reach + 1];
+        }
+
+        void diff(int aStart, int aEnd, int bStart, int bEnd) {
+            while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+                match(aStart++, bStart++);
+            }
+            while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+                match(--aEnd, --bEnd);
+            }
+            if (aStart == aEnd || bStart == bEnd) {
+                return;
+            }
+
+            int[] snake = middleSnake(aStart, aEnd, bStart, bEnd);
+            if (snake == null) {
+                return; // Too costly, the rest of this region stays unmatched
+            }
+            for (int x = snake[0], y = snake[1]; x < snake[2]; x++, y++) {
+                match(aStart + x, bStart + y);
+            }
+            diff(aStart, aStart + snake[0], bStart, bStart + snake[1]);
+            diff(aStart + snake[2], aEnd, bStart + snake[3], bEnd);
+        }
+
+        // Returns the middle snake as {x, y, u, v} relative to the region, or null past MAX_COST
+        private int[] middleSnake(int aStart, int aEnd, int bStart, int bEnd) {
+            int n = aEnd - aStart;
+            int m = bEnd - bStart;
+            int delta = n - m;
+            boolean odd = (delta & 1) != 0;
+            forward[reach + 1] = 0;
+            backward[reach + 1] = 0;
+
+            for (int d = 0; d <= (n + m + 1) / 2; d++) {
+                if (d >= reach) {
+                    return null;
+                }
+                for (int k = -d; k <= d; k += 2) {
+                    int x = (k == -d || (k != d && forward[reach + k - 1] < forward[reach + k + 1]))
+                            ? forward[reach + k + 1] : forward[reach + k - 1] + 1;
+                    int y = x - k;
+                    int startX = x;
+                    while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                        x++;
+                        y++;
+                    }
+                    forward[reach + k] = x;
+                    // With an odd delta the paths can only meet right after a forward step
+                    int backK = delta - k;
+                    if (odd && backK >= -(d - 1) && backK <= d - 1 && x + backward[reach + backK] >= n) {
+                        return new int[]{startX, startX - k, x, y};
+                    }
+                }
+                for (int k = -d; k <= d; k += 2) {
+                    int x = (k == -d || (k != d && backward[reach + k - 1] < backward[reach + k + 1]))
+                            ? backward[reach + k + 1] : backward[reach + k - 1] + 1;
+                    int y = x - k;
+                    int startX = x;
+                    while (x < n && y < m && a[aEnd - 1 - x] == b[bEnd - 1 - y]) {
+                        x++;
+                        y++;
+                    }
+                    backward[reach + k] = x;
+                    int forwardK = delta - k;
+                    if (!odd && forwardK >= -d && forwardK <= d && x + forward[reach + forwardK] >= n) {
+                        return new int[]{n - x, m - y, n - startX, m - (startX - k)};
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void match(int oldLine, int newLine) {
+            matches[offset + newLine] = offset + oldLine;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+#!/usr/bin/env bash
+#
+# Startup benchmark for the short commands: reports the median time to the first line of
+# output with a plain cold JVM ("before") and with the launcher and its AppCDS archive ("after").
+#
+# Usage: src/main/scripts/startup-bench.sh [appassembler dir] [runs]
+#   run after 'mvn package'; defaults to target/appassembler and 10 runs per command.
+
+set -euo pipefail
+
+APP_DIR=$(cd "${1:-target/appassembler}" && pwd)
+RUNS=${2:-10}
+JAVACMD=${JAVA_HOME:+$JAVA_HOME/bin/}java
+export GITTY_NO_DAEMON=1
+
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+cd "$WORK_DIR"
+
+before() { "$JAVACMD" -classpath "$APP_DIR/jars/*" org.scm.Main "$@"; }
+after() { "$APP_DIR/bin/run.sh" "$@"; }
+
+# Milliseconds from launch until the command prints its first line
+first_output_ms() {
+    local start end
+    start=$(date +%s%N)
+    "$@" | {
+        IFS= read -r _ || true
+        end=$(date +%s%N)
+        echo $(( (end - start) / 1000000 ))
+        cat > /dev/null
+    }
+}
+
+median_ms() {
+    local samples=()
+    for ((i = 0; i < RUNS; i++)); do
+        samples+=("$(first_output_ms "$@")")
+    done
+    printf '%s\n' "${samples[@]}" | sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }'
+}
+
+# Small repository to run the commands against
+mkdir -p src
+printf 'hello\n' > src/hello.txt
+after init > /dev/null
+after add > /dev/null
+after commit "benchmark" > /dev/null
+BLOB_SHA=$( { printf 'blob 6\0'; cat src/hello.txt; } | sha1sum | cut -d' ' -f1)
+
+# One untimed run per launcher so a stale archive is regenerated before measuring
+before status > /dev/null
+after status > /dev/null
+
+printf '%-10s %12s %12s\n' "command" "before (ms)" "after (ms)"
+for command in "status" "log" "cat-file $BLOB_SHA"; do
+    # shellcheck disable=SC2086
+    printf '%-10s %12s %12s\n' "${command%% *}" "$(median_ms before $command)" "$(median_ms after $command)"
+done